@@ -0,0 +1,517 @@
+package nxt;
+
+import nxt.data.Point;
+import nxt.data.Position;
+import nxt.nav.Navigation;
+
+/**
+ * A class to choose where to fire from in the launch area. A launch position is
+ * described by the bearing from the robot to the target and the distance
+ * between them, which are searched continuously. Each position is scored by
+ * the time needed to drive and turn there from the previous position, plus a
+ * penalty for the range error of the balls fired from it. When a destination
+ * is given, the robot drives back to it after every target, and those drives
+ * are included. The positions for all targets are chosen together, and the
+ * search stops refining once its time budget runs out.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class LaunchOptimizer {
+	/**
+	 * The step in degrees between the bearings tried in the initial search.
+	 */
+	private static final double BEARING_STEP = 5;
+	private static final double MINIMUM_BEARING_STEP = 0.25;
+	private static final double MINIMUM_DISTANCE_STEP = 0.1;
+
+	/**
+	 * The number of distances tried for each bearing in the initial search.
+	 */
+	private static final int DISTANCE_SAMPLES = 3;
+
+	/**
+	 * The number of initial positions kept for each target.
+	 */
+	private static final int CANDIDATES_PER_TARGET = 6;
+
+	/**
+	 * The cost in s given to each cm of root mean square range error.
+	 */
+	private static final double MISS_PENALTY = 1.0;
+
+	private final double _xMin;
+	private final double _xMax;
+	private final double _yMin;
+	private final double _yMax;
+
+	private Position _start;
+	private Point _end;
+	private Point[] _targets;
+	private double[] _minimumDistances;
+	private double[] _maximumDistances;
+	private int[] _firstBalls;
+	private int[] _ballsPerTarget;
+	private long _deadline;
+	private double _totalCost;
+
+	private double[][] _candidateBearings;
+	private double[][] _candidateDistances;
+	private double[][] _candidateCosts;
+	private int[] _candidateCounts;
+
+	private boolean[] _isReachable;
+	private double[] _bearings;
+	private double[] _distances;
+
+	/**
+	 * Creates an optimizer for the given rectangle, in which the robot can turn
+	 * in place safely.
+	 */
+	public LaunchOptimizer(double xMin, double xMax, double yMin, double yMax) {
+		this._xMin = xMin;
+		this._xMax = xMax;
+		this._yMin = yMin;
+		this._yMax = yMax;
+	}
+
+	/**
+	 * Computes the positions to fire at each target from, in order, starting
+	 * from the given position and returning to the given point after each
+	 * target, which may be null. The balls are fired in sequence, starting from
+	 * the given ball number, with the given number of balls for each target. A
+	 * position is null if the target cannot be reached from the launch area.
+	 * The time budget is in ms, and no refinement is done if it is 0.
+	 */
+	public final Position[] computeLaunchPositions(Position start,
+			Point[] targets, int firstBall, int[] ballsPerTarget, Point end,
+			long timeBudget) {
+		this._deadline = System.currentTimeMillis() + timeBudget;
+		this._start = new Position(start);
+		this._end = end;
+		this._targets = targets;
+		this._ballsPerTarget = ballsPerTarget;
+		this._isReachable = new boolean[targets.length];
+		for (int i = 0; i < targets.length; ++i) {
+			this._isReachable[i] = true;
+		}
+		// Skipping a target changes the balls fired at the next ones.
+		do {
+			initializeTargets(firstBall);
+		} while (!findCandidates());
+		chooseCandidates();
+		if (timeBudget > 0)
+			refine();
+		this._totalCost = computeTotalCost();
+
+		Position[] launchPositions = new Position[targets.length];
+		for (int i = 0; i < targets.length; ++i) {
+			if (this._isReachable[i]) {
+				launchPositions[i] = computePosition(i, this._bearings[i],
+						this._distances[i]);
+			}
+		}
+		return launchPositions;
+	}
+
+	/**
+	 * Returns the cost in s of the positions found by the last call to
+	 * computeLaunchPositions.
+	 */
+	public final double getTotalCost() {
+		return this._totalCost;
+	}
+
+	/**
+	 * Computes the range of launch distances for each target. A target is
+	 * skipped when no position in the launch area can reach it, so its balls
+	 * are fired at the next target instead.
+	 */
+	private void initializeTargets(int firstBall) {
+		int numberOfTargets = this._targets.length;
+		this._minimumDistances = new double[numberOfTargets];
+		this._maximumDistances = new double[numberOfTargets];
+		this._firstBalls = new int[numberOfTargets];
+		int ball = firstBall;
+		for (int i = 0; i < numberOfTargets; ++i) {
+			this._firstBalls[i] = ball;
+			this._minimumDistances[i] = NXTConstants.distanceOfLaunch(ball);
+			this._maximumDistances[i] = NXTConstants.distanceOfLaunch(ball
+					+ this._ballsPerTarget[i] - 1);
+			this._isReachable[i] = this._isReachable[i]
+					&& canReachLaunchArea(this._targets[i],
+							this._minimumDistances[i],
+							this._maximumDistances[i]);
+			if (this._isReachable[i]) {
+				ball += this._ballsPerTarget[i];
+			}
+		}
+	}
+
+	/**
+	 * Samples the bearings and distances around all targets in a single pass,
+	 * keeping the best few positions for each target scored from the start.
+	 * Returns false if a target turned out to have no position in the launch
+	 * area.
+	 */
+	private boolean findCandidates() {
+		int numberOfTargets = this._targets.length;
+		this._candidateBearings =
+				new double[numberOfTargets][CANDIDATES_PER_TARGET];
+		this._candidateDistances =
+				new double[numberOfTargets][CANDIDATES_PER_TARGET];
+		this._candidateCosts =
+				new double[numberOfTargets][CANDIDATES_PER_TARGET];
+		this._candidateCounts = new int[numberOfTargets];
+		for (double bearing = 0; bearing < 360; bearing += BEARING_STEP) {
+			double cosine = Math.cos(Math.toRadians(bearing));
+			double sine = Math.sin(Math.toRadians(bearing));
+			for (int i = 0; i < numberOfTargets; ++i) {
+				if (!this._isReachable[i])
+					continue;
+				for (int j = 0; j < DISTANCE_SAMPLES; ++j) {
+					double distance = getDistanceSample(i, j);
+					double x = this._targets[i].x - distance * cosine;
+					double y = this._targets[i].y - distance * sine;
+					if (!isInLaunchArea(x, y))
+						continue;
+					Position position = new Position(x, y, bearing
+							- NXTConstants.LAUNCH_ANGLE);
+					double cost = computeMovementCost(this._start, position)
+							+ computeMissCost(i, distance);
+					addCandidate(i, bearing, distance, cost);
+				}
+			}
+		}
+		boolean isConsistent = true;
+		for (int i = 0; i < numberOfTargets; ++i) {
+			if (this._isReachable[i] && this._candidateCounts[i] == 0) {
+				this._isReachable[i] = false;
+				isConsistent = false;
+			}
+		}
+		return isConsistent;
+	}
+
+	/**
+	 * Keeps the candidates of each target sorted by cost, dropping the worst
+	 * one when full.
+	 */
+	private void addCandidate(int target, double bearing, double distance,
+			double cost) {
+		int count = this._candidateCounts[target];
+		double[] bearings = this._candidateBearings[target];
+		double[] distances = this._candidateDistances[target];
+		double[] costs = this._candidateCosts[target];
+		if (count == CANDIDATES_PER_TARGET) {
+			if (cost >= costs[count - 1])
+				return;
+			--count;
+		}
+		int index = count;
+		while (index > 0 && costs[index - 1] > cost) {
+			bearings[index] = bearings[index - 1];
+			distances[index] = distances[index - 1];
+			costs[index] = costs[index - 1];
+			--index;
+		}
+		bearings[index] = bearing;
+		distances[index] = distance;
+		costs[index] = cost;
+		this._candidateCounts[target] = count + 1;
+	}
+
+	/**
+	 * Chooses one candidate per target minimizing the total cost of visiting
+	 * the targets in order, by dynamic programming over the candidates.
+	 */
+	private void chooseCandidates() {
+		int numberOfTargets = this._targets.length;
+		double[][] totalCosts =
+				new double[numberOfTargets][CANDIDATES_PER_TARGET];
+		int[][] previousChoices =
+				new int[numberOfTargets][CANDIDATES_PER_TARGET];
+		int previousTarget = -1;
+		for (int i = 0; i < numberOfTargets; ++i) {
+			if (!this._isReachable[i])
+				continue;
+			for (int j = 0; j < this._candidateCounts[i]; ++j) {
+				if (previousTarget == -1) {
+					totalCosts[i][j] = this._candidateCosts[i][j];
+					continue;
+				}
+				Position position = computePosition(i,
+						this._candidateBearings[i][j],
+						this._candidateDistances[i][j]);
+				totalCosts[i][j] = Double.POSITIVE_INFINITY;
+				int previousCount = this._candidateCounts[previousTarget];
+				for (int k = 0; k < previousCount; ++k) {
+					Position previous = computePosition(previousTarget,
+							this._candidateBearings[previousTarget][k],
+							this._candidateDistances[previousTarget][k]);
+					double cost = totalCosts[previousTarget][k]
+							+ computeTransitionCost(previous, position)
+							+ computeMissCost(i,
+									this._candidateDistances[i][j]);
+					if (cost < totalCosts[i][j]) {
+						totalCosts[i][j] = cost;
+						previousChoices[i][j] = k;
+					}
+				}
+			}
+			previousTarget = i;
+		}
+
+		this._bearings = new double[numberOfTargets];
+		this._distances = new double[numberOfTargets];
+		if (previousTarget == -1)
+			return;
+		int choice = 0;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int j = 0; j < this._candidateCounts[previousTarget]; ++j) {
+			double cost = totalCosts[previousTarget][j]
+					+ computeReturnCost(computePosition(previousTarget,
+							this._candidateBearings[previousTarget][j],
+							this._candidateDistances[previousTarget][j]));
+			if (cost < bestCost) {
+				bestCost = cost;
+				choice = j;
+			}
+		}
+		for (int i = previousTarget; i >= 0; --i) {
+			if (!this._isReachable[i])
+				continue;
+			this._bearings[i] = this._candidateBearings[i][choice];
+			this._distances[i] = this._candidateDistances[i][choice];
+			choice = previousChoices[i][choice];
+		}
+	}
+
+	/**
+	 * Improves the chosen positions by a coordinate search on the bearing and
+	 * distance of each target in turn, halving the steps when no move helps.
+	 * Stops at the smallest steps or when the time budget runs out.
+	 */
+	private void refine() {
+		double bearingStep = BEARING_STEP / 2;
+		double distanceStep = getDistanceStep();
+		double cost = computeTotalCost();
+		while (bearingStep >= MINIMUM_BEARING_STEP
+				|| distanceStep >= MINIMUM_DISTANCE_STEP) {
+			boolean improved = false;
+			for (int i = 0; i < this._targets.length; ++i) {
+				if (!this._isReachable[i])
+					continue;
+				if (System.currentTimeMillis() >= this._deadline)
+					return;
+				double bearing = this._bearings[i];
+				double distance = this._distances[i];
+				for (int step = 0; step < 4; ++step) {
+					this._bearings[i] = bearing;
+					this._distances[i] = distance;
+					switch (step) {
+					case 0:
+						this._bearings[i] += bearingStep;
+						break;
+					case 1:
+						this._bearings[i] -= bearingStep;
+						break;
+					case 2:
+						this._distances[i] += distanceStep;
+						break;
+					default:
+						this._distances[i] -= distanceStep;
+						break;
+					}
+					if (!isValid(i))
+						continue;
+					double newCost = computeTotalCost();
+					if (newCost < cost) {
+						cost = newCost;
+						bearing = this._bearings[i];
+						distance = this._distances[i];
+						improved = true;
+					}
+				}
+				this._bearings[i] = bearing;
+				this._distances[i] = distance;
+			}
+			if (!improved) {
+				bearingStep /= 2;
+				distanceStep /= 2;
+			}
+		}
+	}
+
+	private double computeTotalCost() {
+		double cost = 0;
+		Position previous = null;
+		for (int i = 0; i < this._targets.length; ++i) {
+			if (!this._isReachable[i])
+				continue;
+			Position position = computePosition(i, this._bearings[i],
+					this._distances[i]);
+			if (previous == null) {
+				cost += computeMovementCost(this._start, position);
+			} else {
+				cost += computeTransitionCost(previous, position);
+			}
+			cost += computeMissCost(i, this._distances[i]);
+			previous = position;
+		}
+		if (previous == null)
+			return cost;
+		return cost + computeReturnCost(previous);
+	}
+
+	/**
+	 * Estimates the time needed to go from the launch position of one target
+	 * to that of the next, through the end point if there is one.
+	 */
+	private double computeTransitionCost(Position from, Position to) {
+		if (this._end == null)
+			return computeMovementCost(from, to);
+		return computeReturnCost(from)
+				+ computeMovementCost(computeReturnPosition(from), to);
+	}
+
+	/**
+	 * Returns the position of the robot at the end point after driving back
+	 * to it from the given position, facing the way it drove.
+	 */
+	private Position computeReturnPosition(Position from) {
+		double xDifference = this._end.x - from.x;
+		double yDifference = this._end.y - from.y;
+		if (xDifference * xDifference + yDifference * yDifference < 1.0)
+			return new Position(this._end.x, this._end.y, from.orientation);
+		double direction = Math.toDegrees(Math.atan2(yDifference, xDifference));
+		if (Navigation.estimateTurnTime(from.orientation, direction)
+				> Navigation.estimateTurnTime(from.orientation,
+						direction + 180)) {
+			direction += 180;
+		}
+		return new Position(this._end.x, this._end.y, direction);
+	}
+
+	/**
+	 * Estimates the time needed to drive from the position to the end point.
+	 * The robot drives backward when the end point is behind it, so it never
+	 * turns by more than 90 degrees.
+	 */
+	private double computeReturnCost(Position from) {
+		if (this._end == null)
+			return 0;
+		double xDifference = this._end.x - from.x;
+		double yDifference = this._end.y - from.y;
+		double distance = Math.sqrt(xDifference * xDifference + yDifference
+				* yDifference);
+		double direction = Math.toDegrees(Math.atan2(yDifference, xDifference));
+		double turnTime = Navigation.estimateTurnTime(from.orientation,
+				direction);
+		double turnTimeBackward = Navigation.estimateTurnTime(
+				from.orientation, direction + 180);
+		return Math.min(turnTime, turnTimeBackward)
+				+ Navigation.estimateTravelTime(distance);
+	}
+
+	/**
+	 * Estimates the time needed to turn toward the position, drive to it, and
+	 * turn to its orientation.
+	 */
+	private static double computeMovementCost(Position from, Position to) {
+		double xDifference = to.x - from.x;
+		double yDifference = to.y - from.y;
+		double distance = Math.sqrt(xDifference * xDifference + yDifference
+				* yDifference);
+		if (distance < 1.0) {
+			return Navigation
+					.estimateTurnTime(from.orientation, to.orientation);
+		}
+		double direction = Math.toDegrees(Math.atan2(yDifference, xDifference));
+		return Navigation.estimateTurnTime(from.orientation, direction)
+				+ Navigation.estimateTravelTime(distance)
+				+ Navigation.estimateTurnTime(direction, to.orientation);
+	}
+
+	/**
+	 * Computes the penalty for the root mean square difference between the
+	 * distance to the target and the launch distances of the balls fired at
+	 * it.
+	 */
+	private double computeMissCost(int target, double distance) {
+		double sumOfSquares = 0;
+		for (int i = 0; i < this._ballsPerTarget[target]; ++i) {
+			double error = distance
+					- NXTConstants.distanceOfLaunch(this._firstBalls[target]
+							+ i);
+			sumOfSquares += error * error;
+		}
+		return MISS_PENALTY
+				* Math.sqrt(sumOfSquares / this._ballsPerTarget[target]);
+	}
+
+	private Position computePosition(int target, double bearing,
+			double distance) {
+		double bearingInRadians = Math.toRadians(bearing);
+		return new Position(this._targets[target].x - distance
+				* Math.cos(bearingInRadians), this._targets[target].y
+				- distance * Math.sin(bearingInRadians), bearing
+				- NXTConstants.LAUNCH_ANGLE);
+	}
+
+	private boolean isValid(int target) {
+		double distance = this._distances[target];
+		if (distance < this._minimumDistances[target]
+				|| distance > this._maximumDistances[target])
+			return false;
+		Position position = computePosition(target, this._bearings[target],
+				distance);
+		return isInLaunchArea(position.x, position.y);
+	}
+
+	private boolean isInLaunchArea(double x, double y) {
+		return this._xMin <= x && x <= this._xMax && this._yMin <= y
+				&& y <= this._yMax;
+	}
+
+	/**
+	 * Returns false if the launch area lies entirely outside the ring of
+	 * launch distances around the target.
+	 */
+	private boolean canReachLaunchArea(Point target, double minimumDistance,
+			double maximumDistance) {
+		double closestX = Math.max(this._xMin, Math.min(target.x, this._xMax));
+		double closestY = Math.max(this._yMin, Math.min(target.y, this._yMax));
+		double farthestX = Math.abs(target.x - this._xMin) > Math.abs(target.x
+				- this._xMax) ? this._xMin : this._xMax;
+		double farthestY = Math.abs(target.y - this._yMin) > Math.abs(target.y
+				- this._yMax) ? this._yMin : this._yMax;
+		double closest = Math.sqrt((closestX - target.x)
+				* (closestX - target.x) + (closestY - target.y)
+				* (closestY - target.y));
+		double farthest = Math.sqrt((farthestX - target.x)
+				* (farthestX - target.x) + (farthestY - target.y)
+				* (farthestY - target.y));
+		return closest <= maximumDistance && farthest >= minimumDistance;
+	}
+
+	private double getDistanceSample(int target, int sample) {
+		double range = this._maximumDistances[target]
+				- this._minimumDistances[target];
+		return this._minimumDistances[target] + sample * range
+				/ (DISTANCE_SAMPLES - 1);
+	}
+
+	/**
+	 * Returns half the spacing between the distances tried in the initial
+	 * search.
+	 */
+	private double getDistanceStep() {
+		double largestRange = 0;
+		for (int i = 0; i < this._targets.length; ++i) {
+			largestRange = Math.max(largestRange, this._maximumDistances[i]
+					- this._minimumDistances[i]);
+		}
+		return largestRange / (2 * (DISTANCE_SAMPLES - 1));
+	}
+}
@@ -0,0 +1,276 @@
+package nxt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nxt.data.LaunchStop;
+import nxt.data.Point;
+import nxt.data.Position;
+
+/**
+ * A class to choose the order in which to fire at the targets and where to
+ * fire from, minimizing the total time from the start until the robot is back
+ * at the destination, to which it returns after each target. Orders are
+ * compared using the launch optimizer without refinement. Up to
+ * MAXIMUM_TARGETS_FOR_EXACT_SOLUTION targets, every order is tried. Beyond
+ * that, an order is built by cheapest insertion and improved by moving single
+ * targets and swapping pairs of targets until the time budget runs out.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class MissionPlanner {
+	private static final int MAXIMUM_TARGETS_FOR_EXACT_SOLUTION = 4;
+
+	/**
+	 * The part of the time budget in ms kept to refine the launch positions of
+	 * the chosen order.
+	 */
+	private static final long MINIMUM_REFINEMENT_TIME = 200;
+
+	/**
+	 * The cost in s added for each target that an order cannot reach, larger
+	 * than the time of any mission so that orders reaching more targets always
+	 * win.
+	 */
+	private static final double SKIPPED_TARGET_PENALTY = 10000;
+
+	private final LaunchOptimizer _launchOptimizer;
+	private final long _timeBudget;
+
+	private Position _start;
+	private Point _destination;
+	private Point[] _targets;
+	private int[] _shotsPerTarget;
+	private int _firstBall;
+	private long _deadline;
+
+	private int[] _bestOrder;
+	private double _bestCost;
+
+	/**
+	 * Creates a planner using the given launch optimizer. The time budget is in
+	 * ms.
+	 */
+	public MissionPlanner(LaunchOptimizer launchOptimizer, long timeBudget) {
+		this._launchOptimizer = launchOptimizer;
+		this._timeBudget = timeBudget;
+	}
+
+	/**
+	 * Returns the stops to make, in order, to fire the given number of shots at
+	 * each target, starting from the given position and ball number and
+	 * returning to the destination. Targets that cannot be reached or have no
+	 * shots are left out.
+	 */
+	public final LaunchStop[] plan(Position start, Point[] targets,
+			int[] shotsPerTarget, int firstBall, Point destination) {
+		this._deadline = System.currentTimeMillis() + this._timeBudget
+				- MINIMUM_REFINEMENT_TIME;
+		this._start = new Position(start);
+		this._destination = destination;
+		this._targets = targets;
+		this._shotsPerTarget = shotsPerTarget;
+		this._firstBall = firstBall;
+
+		int[] order = getTargetsWithShots();
+		this._bestOrder = order;
+		this._bestCost = Double.POSITIVE_INFINITY;
+		if (order.length <= MAXIMUM_TARGETS_FOR_EXACT_SOLUTION) {
+			tryAllOrders(order, 0);
+		} else {
+			order = buildOrderByInsertion(order);
+			this._bestOrder = order;
+			this._bestCost = evaluate(order);
+			improveOrder();
+		}
+
+		return computeStops(this._bestOrder, Math.max(MINIMUM_REFINEMENT_TIME,
+				this._deadline + MINIMUM_REFINEMENT_TIME
+						- System.currentTimeMillis()));
+	}
+
+	private int[] getTargetsWithShots() {
+		int count = 0;
+		for (int i = 0; i < this._targets.length; ++i) {
+			if (this._shotsPerTarget[i] > 0)
+				++count;
+		}
+		int[] order = new int[count];
+		count = 0;
+		for (int i = 0; i < this._targets.length; ++i) {
+			if (this._shotsPerTarget[i] > 0)
+				order[count++] = i;
+		}
+		return order;
+	}
+
+	/**
+	 * Tries every order of the targets from the given index onward, keeping
+	 * the best one.
+	 */
+	private void tryAllOrders(int[] order, int index) {
+		if (index == order.length) {
+			tryOrder(order.clone());
+			return;
+		}
+		for (int i = index; i < order.length; ++i) {
+			swap(order, index, i);
+			tryAllOrders(order, index + 1);
+			swap(order, index, i);
+		}
+	}
+
+	/**
+	 * Inserts the targets one at a time where they increase the cost the
+	 * least.
+	 */
+	private int[] buildOrderByInsertion(int[] targets) {
+		int[] order = new int[0];
+		for (int target : targets) {
+			int[] bestOrder = null;
+			double bestCost = Double.POSITIVE_INFINITY;
+			for (int i = 0; i <= order.length; ++i) {
+				int[] newOrder = insert(order, i, target);
+				double cost = evaluate(newOrder);
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestOrder = newOrder;
+				}
+			}
+			order = bestOrder;
+		}
+		return order;
+	}
+
+	/**
+	 * Moves single targets and swaps pairs of targets in the best order while
+	 * this lowers the cost and there is time left.
+	 */
+	private void improveOrder() {
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			for (int i = 0; i < this._bestOrder.length; ++i) {
+				for (int j = 0; j < this._bestOrder.length; ++j) {
+					if (i == j)
+						continue;
+					if (System.currentTimeMillis() > this._deadline)
+						return;
+					improved |= tryOrder(move(this._bestOrder, i, j));
+					if (i < j) {
+						int[] order = this._bestOrder.clone();
+						swap(order, i, j);
+						improved |= tryOrder(order);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps the given order if it is better than the best one. Returns true if
+	 * it was kept.
+	 */
+	private boolean tryOrder(int[] order) {
+		double cost = evaluate(order);
+		if (cost < this._bestCost) {
+			this._bestCost = cost;
+			this._bestOrder = order;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the cost in s of visiting the targets in the given order, with
+	 * unrefined launch positions. A skipped target adds no travel, so it is
+	 * penalized instead.
+	 */
+	private double evaluate(int[] order) {
+		Position[] launchPositions = this._launchOptimizer
+				.computeLaunchPositions(this._start, getTargets(order),
+						this._firstBall, getShots(order), this._destination, 0);
+		double cost = this._launchOptimizer.getTotalCost();
+		for (int i = 0; i < launchPositions.length; ++i) {
+			if (launchPositions[i] == null)
+				cost += SKIPPED_TARGET_PENALTY;
+		}
+		return cost;
+	}
+
+	private LaunchStop[] computeStops(int[] order, long timeBudget) {
+		Position[] launchPositions = this._launchOptimizer
+				.computeLaunchPositions(this._start, getTargets(order),
+						this._firstBall, getShots(order), this._destination,
+						timeBudget);
+		List<LaunchStop> stops = new ArrayList<>();
+		int ball = this._firstBall;
+		for (int i = 0; i < order.length; ++i) {
+			if (launchPositions[i] == null)
+				continue;
+			int shots = this._shotsPerTarget[order[i]];
+			stops.add(new LaunchStop(launchPositions[i], order[i], ball,
+					shots));
+			ball += shots;
+		}
+		LaunchStop[] result = new LaunchStop[stops.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = stops.get(i);
+		}
+		return result;
+	}
+
+	private Point[] getTargets(int[] order) {
+		Point[] targets = new Point[order.length];
+		for (int i = 0; i < order.length; ++i) {
+			targets[i] = this._targets[order[i]];
+		}
+		return targets;
+	}
+
+	private int[] getShots(int[] order) {
+		int[] shots = new int[order.length];
+		for (int i = 0; i < order.length; ++i) {
+			shots[i] = this._shotsPerTarget[order[i]];
+		}
+		return shots;
+	}
+
+	private static int[] insert(int[] order, int index, int target) {
+		int[] newOrder = new int[order.length + 1];
+		for (int i = 0; i < index; ++i) {
+			newOrder[i] = order[i];
+		}
+		newOrder[index] = target;
+		for (int i = index; i < order.length; ++i) {
+			newOrder[i + 1] = order[i];
+		}
+		return newOrder;
+	}
+
+	/**
+	 * Returns a copy of the order with the target at the first index moved to
+	 * the second index.
+	 */
+	private static int[] move(int[] order, int from, int to) {
+		int[] newOrder = new int[order.length];
+		int target = order[from];
+		int count = 0;
+		for (int i = 0; i < order.length; ++i) {
+			if (i != from)
+				newOrder[count++] = order[i];
+		}
+		for (int i = order.length - 1; i > to; --i) {
+			newOrder[i] = newOrder[i - 1];
+		}
+		newOrder[to] = target;
+		return newOrder;
+	}
+
+	private static void swap(int[] order, int first, int second) {
+		int temp = order[first];
+		order[first] = order[second];
+		order[second] = temp;
+	}
+}
@@ -4,6 +4,7 @@ import lejos.nxt.Button;
 import lejos.nxt.LCD;
 import lejos.nxt.Sound;
 import nxt.data.DataCenter;
+import nxt.data.LaunchStop;
 import nxt.data.Point;
 import nxt.data.Position;
 import nxt.data.Tile;
@@ -12,15 +13,22 @@ import nxt.drivers.CSPoller;
 import nxt.drivers.Launcher;
 import nxt.drivers.USPoller;
 import nxt.nav.CSLocalization;
+import nxt.nav.CombinedLocalization;
 import nxt.nav.Direction;
+import nxt.nav.GlobalLocalization;
+import nxt.nav.LineCrossingLocalization;
 import nxt.nav.Navigation;
 import nxt.nav.Odometer;
 import nxt.nav.CSCorrection;
+import nxt.nav.MultiUSLocalization;
 import nxt.nav.USLocalization;
+import nxt.nav.path.Grid;
 import nxt.nav.path.Path;
-import nxt.nav.path.PathGenerator;
+import nxt.nav.path.PathCache;
 import nxt.util.AngleUtility;
 import nxt.comm.BluetoothBroadcaster;
+import nxt.comm.BluetoothProtocol;
+import nxt.comm.CommandListener;
 
 /**
  * A class to provide an interface for the operation of an NXT robot with three
@@ -37,6 +45,20 @@ public class NXT extends Thread {
 	private static final double LAUNCH_AREA_Y_MIN = convertGridToCentimeters(8);
 	private static final double LAUNCH_AREA_Y_MAX = convertGridToCentimeters(11);
 
+	private static final String PATH_CACHE_FILE_NAME = "paths.dat";
+
+	/**
+	 * The time in ms allowed to choose the order of the targets and where to
+	 * fire from.
+	 */
+	private static final long MISSION_PLANNER_TIME_BUDGET = 1000;
+
+	/**
+	 * The time in ms allowed to match a turn to the map when localizing
+	 * anywhere on the field.
+	 */
+	private static final long GLOBAL_LOCALIZATION_TIME_BUDGET = 1000;
+
 	private DataCenter _dataCenter;
 	private Odometer _odometer;
 	private CSCorrection _odometerCorrection;
@@ -46,8 +68,12 @@ public class NXT extends Thread {
 	private USPoller _rightUS;
 	private CSPoller _cs;
 	private USLocalization _usLocalization;
+	private MultiUSLocalization _multiUSLocalization;
 	private CSLocalization _csLocalization;
+	private CombinedLocalization _combinedLocalization;
+	private LineCrossingLocalization _lineCrossingLocalization;
 	private BluetoothBroadcaster _bluetooth;
+	private MissionPlanner _missionPlanner;
 
 	private int _ballToFire = 1;
 
@@ -62,8 +88,21 @@ public class NXT extends Thread {
 		this._cs = new CSPoller(this._dataCenter);
 		this._usLocalization = new USLocalization(this._dataCenter,
 				this._navigation);
+		this._multiUSLocalization = new MultiUSLocalization(this._dataCenter,
+				this._navigation);
 		this._csLocalization = new CSLocalization(this._dataCenter,
 				this._navigation);
+		this._combinedLocalization = new CombinedLocalization(
+				this._dataCenter, this._navigation, this._csLocalization);
+		this._lineCrossingLocalization = new LineCrossingLocalization(
+				this._dataCenter);
+		LaunchOptimizer launchOptimizer = new LaunchOptimizer(
+				LAUNCH_AREA_X_MIN, LAUNCH_AREA_X_MAX
+						- NXTConstants.ROBOT_FRONT_RADIUS_OF_ROTATION,
+				LAUNCH_AREA_Y_MIN, LAUNCH_AREA_Y_MAX
+						- NXTConstants.ROBOT_FRONT_RADIUS_OF_ROTATION);
+		this._missionPlanner = new MissionPlanner(launchOptimizer,
+				MISSION_PLANNER_TIME_BUDGET);
 	}
 
 	@Override
@@ -115,6 +154,102 @@ public class NXT extends Thread {
 		System.exit(0);
 	}
 
+	/**
+	 * Localizes with all three US sensors and goes to (0, 0) facing 90 degrees.
+	 */
+	protected final void testMultiUSLocalization() {
+		this._odometer.start();
+		this._leftUS.start();
+		this._frontUS.start();
+		this._rightUS.start();
+		this._bluetooth = new BluetoothBroadcaster(this._dataCenter);
+		this._bluetooth.start();
+		this._multiUSLocalization.doLocalization();
+		this._navigation.travelTo(new Point());
+		this._navigation.turnTo(90);
+		System.exit(0);
+	}
+
+	/**
+	 * Localizes with all three US sensors from anywhere on the field with the
+	 * given obstacles, and goes to (0, 0) facing 90 degrees if the turn matched
+	 * the map.
+	 */
+	protected final void testGlobalLocalization(Tile[] obstacles) {
+		Grid grid = new Grid(12, 12);
+		grid.addObstacles(obstacles);
+		GlobalLocalization globalLocalization = new GlobalLocalization(
+				this._dataCenter, this._navigation, grid,
+				GLOBAL_LOCALIZATION_TIME_BUDGET);
+		this._odometer.start();
+		this._leftUS.start();
+		this._frontUS.start();
+		this._rightUS.start();
+		this._bluetooth = new BluetoothBroadcaster(this._dataCenter);
+		this._bluetooth.start();
+		globalLocalization.doLocalization();
+		if (globalLocalization.isMatch()) {
+			this._navigation.travelTo(new Point());
+			this._navigation.turnTo(90);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Carries out the commands sent by the computer, with odometer correction
+	 * enabled, until escape is pressed or the computer ends the transmission.
+	 * The robot must start off at the origin facing 0 degrees.
+	 */
+	protected final void testRemoteControl() {
+		this._odometer.start();
+		this._leftUS.start();
+		this._frontUS.start();
+		this._rightUS.start();
+		this._cs.start();
+		this._odometerCorrection.start();
+		this._bluetooth = new BluetoothBroadcaster(this._dataCenter);
+		this._bluetooth.setCommandListener(new CommandListener() {
+			public void travelTo(double x, double y) {
+				_navigation.travelTo(new Point(x, y));
+			}
+
+			public void turnTo(double orientation) {
+				_navigation.turnTo(orientation);
+			}
+
+			public void fire(int numberOfBalls) {
+				Launcher.fire(numberOfBalls);
+			}
+
+			public void stop() {
+				_navigation.stop();
+			}
+
+			public void resume() {
+				_navigation.resume();
+			}
+
+			public void setParameter(int parameter, int value) {
+				switch (parameter) {
+				case BluetoothProtocol.MAX_SPEED:
+					_navigation.setMaxSpeed((double) value
+							/ BluetoothProtocol.POSITION_SCALE);
+					break;
+				case BluetoothProtocol.TURN_SPEED:
+					_navigation.setTurnSpeed(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid parameter");
+				}
+			}
+		});
+		this._bluetooth.start();
+		while (Button.waitForAnyPress() != Button.ID_ESCAPE) {
+			// Keep carrying out commands.
+		}
+		System.exit(0);
+	}
+
 	/**
 	 * Continuously displays the color sensor readings on the computer.
 	 */
@@ -191,15 +326,16 @@ public class NXT extends Thread {
 		this._cs.start();
 		this._usLocalization.doLocalization();
 		this._csLocalization.doLocalization();
-		int ballsToFirePerTarget = 3;
-		if (turnToLaunch(convertGridToCentimeters(target1))) {
-			Launcher.fire(ballsToFirePerTarget);
-			this._ballToFire += 3;
-			returnToDestinationInLaunchArea(new Point());
-		}
-		if (turnToLaunch(convertGridToCentimeters(target2))) {
-			Launcher.fire(ballsToFirePerTarget);
-			this._ballToFire += 3;
+		Point[] targets = { convertGridToCentimeters(target1),
+				convertGridToCentimeters(target2) };
+		int[] shotsPerTarget = { 3, 3 };
+		LaunchStop[] stops = this._missionPlanner.plan(
+				this._dataCenter.getPosition(), targets, shotsPerTarget,
+				this._ballToFire, new Point());
+		for (LaunchStop stop : stops) {
+			turnToLaunch(stop.position);
+			Launcher.fire(stop.shots);
+			this._ballToFire += stop.shots;
 			returnToDestinationInLaunchArea(new Point());
 		}
 		System.exit(0);
@@ -285,8 +421,8 @@ public class NXT extends Thread {
 				new Tile(9, 3), new Tile(8, 3), new Tile(7, 3), new Tile(6, 3),
 				new Tile(5, 3), new Tile(4, 3) };
 		Tile destinationTile = new Tile(9, 9);
-		Path path = PathGenerator.generatePath(12, 12, destinationTile,
-				obstacles, randomObstacleZone);
+		Path path = new PathCache(PATH_CACHE_FILE_NAME).getPath(12, 12,
+				destinationTile, obstacles, randomObstacleZone);
 
 		Point pathStart = new Point(convertGridToCentimeters(0.5),
 				convertGridToCentimeters(0.5));
@@ -297,7 +433,9 @@ public class NXT extends Thread {
 		Point origin = new Point(convertGridToCentimeters(0),
 				convertGridToCentimeters(0));
 
-		int ballsToFirePerTarget = 3;
+		Point[] targets = { convertGridToCentimeters(firstTarget),
+				convertGridToCentimeters(secondTarget) };
+		int[] shotsPerTarget = { 3, 3 };
 
 		this._odometer.start();
 		this._leftUS.start();
@@ -305,22 +443,25 @@ public class NXT extends Thread {
 		this._rightUS.start();
 		this._cs.start();
 
-		this._usLocalization.doLocalization();
-		this._csLocalization.doLocalization();
+		this._combinedLocalization.doLocalization();
 		// Indicates that the localization is finished.
 		Sound.twoBeeps();
 
+		this._lineCrossingLocalization.reset();
+		this._lineCrossingLocalization.start();
 		this._navigation.travelTo(pathStart);
-		this._odometerCorrection.start();
 		this._navigation.travelForward(path);
-		this._odometerCorrection.stop();
 
-		this._csLocalization.doLocalization(destination);
+		localizeUnlessConfident(destination);
 
-		if (turnToLaunch(convertGridToCentimeters(firstTarget))) {
+		LaunchStop[] stops = this._missionPlanner.plan(
+				this._dataCenter.getPosition(), targets, shotsPerTarget,
+				this._ballToFire, destination);
+		for (LaunchStop stop : stops) {
+			turnToLaunch(stop.position);
 			// Fires at +- 5 degrees to increase chances of hitting.
 			this._navigation.turn(-5);
-			for (int i = 0; i < ballsToFirePerTarget; ++i) {
+			for (int i = 0; i < stop.shots; ++i) {
 				Launcher.fire();
 				++this._ballToFire;
 				this._navigation.turn(5);
@@ -328,25 +469,13 @@ public class NXT extends Thread {
 			returnToDestinationInLaunchArea(destination);
 		}
 
-		if (turnToLaunch(convertGridToCentimeters(secondTarget))) {
-			// Fires at +- 5 degrees to increase chances of hitting.
-			this._navigation.turn(-5);
-			for (int i = 0; i < ballsToFirePerTarget; ++i) {
-				Launcher.fire();
-				++this._ballToFire;
-				this._navigation.turn(5);
-			}
-			returnToDestinationInLaunchArea(destination);
-		}
-
-		this._csLocalization.doLocalization(destination);
+		localizeUnlessConfident(destination);
 
 		this._navigation.travelTo(reversePathStart);
-		this._odometerCorrection.start();
 		this._navigation.travelBackward(path);
-		this._odometerCorrection.stop();
 
-		this._csLocalization.doLocalization();
+		localizeUnlessConfident(origin);
+		this._lineCrossingLocalization.stop();
 
 		this._navigation.travelToPrecisely(origin);
 		this._navigation.turnTo(90);
@@ -355,29 +484,26 @@ public class NXT extends Thread {
 	}
 
 	/**
-	 * Positions itself to fire at the target using the navigation. Will try all
-	 * possible reference points in the launch area. Returns true on success.
+	 * Localizes at the grid line intersection unless the line crossings seen
+	 * while driving already give the position. The line crossing localization
+	 * must be running.
 	 */
-	private boolean turnToLaunch(Point target) {
-		Position launchPosition = null;
-		outerLoop: for (double x = LAUNCH_AREA_X_MIN; x < LAUNCH_AREA_X_MAX; x += convertGridToCentimeters(1)) {
-			for (double y = LAUNCH_AREA_Y_MIN; y < LAUNCH_AREA_Y_MAX; y += convertGridToCentimeters(1)) {
-				Position tempPosition = computePositionForLaunch(
-						new Point(x, y), target);
-				if (isPointInLaunchArea(tempPosition)) {
-					launchPosition = tempPosition;
-					break outerLoop;
-				}
-			}
-		}
-		if (launchPosition == null) {
-			// Cannot fire.
-			return false;
-		}
+	private void localizeUnlessConfident(Point gridLineIntersection) {
+		if (this._lineCrossingLocalization.isConfident())
+			return;
+		this._lineCrossingLocalization.stop();
+		this._csLocalization.doLocalization(gridLineIntersection);
+		this._lineCrossingLocalization.reset();
+		this._lineCrossingLocalization.start();
+	}
+
+	/**
+	 * Travels to the launch position and turns to its orientation.
+	 */
+	private void turnToLaunch(Position launchPosition) {
 		this._navigation.travelTo(launchPosition);
 		this._navigation.travelToPrecisely(launchPosition);
 		this._navigation.turnTo(launchPosition.orientation);
-		return true;
 	}
 
 	/**
@@ -409,14 +535,6 @@ public class NXT extends Thread {
 		return launchPosition;
 	}
 
-	private boolean isPointInLaunchArea(Point point) {
-		boolean isInXLaunchArea = (LAUNCH_AREA_X_MIN <= point.x && point.x <= LAUNCH_AREA_X_MAX
-				- NXTConstants.ROBOT_FRONT_RADIUS_OF_ROTATION);
-		boolean isInYLaunchArea = (LAUNCH_AREA_Y_MIN <= point.y && point.y <= LAUNCH_AREA_Y_MAX
-				- NXTConstants.ROBOT_FRONT_RADIUS_OF_ROTATION);
-		return isInXLaunchArea && isInYLaunchArea;
-	}
-
 	/**
 	 * Returns to the destination optimally such that it avoids hitting the
 	 * wall.
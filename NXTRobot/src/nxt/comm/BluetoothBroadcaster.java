@@ -1,55 +1,140 @@
 package nxt.comm;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 import nxt.data.DataCenter;
-import nxt.data.Position;
-import lejos.nxt.comm.BTConnection;
-import lejos.nxt.comm.Bluetooth;
 
 /**
  * A class for communicating via Bluetooth to the computer in order to send data
- * for analysis. The data is sent in pairs, with the first a byte being sent to
- * indicate the type of the second.
+ * for analysis. The data is split into the channels of the BluetoothProtocol,
+ * each sampled at the period the computer subscribed to, and the samples are
+ * sent in batches in its frames. The periods can be changed at any time with
+ * a SUBSCRIBE frame. Channels can be sent only when they change past
+ * deadbands instead, with a DEADBAND frame.
+ *
+ * The commands sent by the computer are handed to a CommandDispatcher, which
+ * carries them out through the CommandListener set, if any.
+ *
+ * Sampling never waits on the link. The samples go through a TelemetryRing to
+ * a TelemetrySender thread, which is the only one writing to the link. If the
+ * link falls behind or the samples exceed the LINK_BUDGET, the oldest samples
+ * are dropped.
+ *
+ * The last samples sent are kept, enough for HISTORY_CAPACITY samples. A
+ * broadcaster with a Connector waits for the computer to connect in the
+ * background, so that the robot never waits for the computer. Telemetry is
+ * sampled from the start and kept until the computer connects, when the
+ * samples kept are sent first. When the link is lost, the broadcaster waits
+ * for the computer to connect again, and holds the telemetry until the first
+ * frame of the computer. If it is a RESUME frame, the samples kept that the
+ * computer did not receive are sent again first, so that the streams have no
+ * gaps.
  * 
  * @author Andrei Purcarus
  * @author Leotard Niyonkuru
  *
  */
 public final class BluetoothBroadcaster extends Thread {
-	private static final long BROADCAST_PERIOD = 25;
+	private static final long BROADCAST_PERIOD = BluetoothProtocol.MIN_PERIOD;
+
+	/**
+	 * The number of samples kept while the link falls behind, enough for 1 s
+	 * of the default channels.
+	 */
+	private static final int RING_CAPACITY = 120;
+
+	/**
+	 * The number of bytes per second the telemetry may use, leaving room on
+	 * the link for the messages of the computer.
+	 */
+	private static final int LINK_BUDGET = 2000;
+
+	/**
+	 * The number of samples sent that are kept to be sent again after the
+	 * link is lost, enough for 2 s of the default channels.
+	 */
+	private static final int HISTORY_CAPACITY = 240;
 
-	private final DataInputStream _inputStream;
-	private final DataOutputStream _outputStream;
+	/**
+	 * The sequence numbers to resume from to send every sample kept.
+	 */
+	private static final int[] ALL_SAMPLES = { -1, -1, -1, -1, -1, -1, -1 };
 
-	private final DataCenter _dataCenter;
+	private final Connector _connector;
+	private Transport _transport;
+	private final FrameReader _reader;
+	private final FrameWriter _writer;
+	private final TelemetryRing _ring;
+	private final TelemetrySender _sender;
+	private final TelemetryChannels _channels;
+	private final CommandDispatcher _dispatcher;
+	private final Command _command;
+
+	private final TelemetrySample _sample;
+	private long _startTime;
 
 	private boolean _isBroadcasting;
-	private final Object _sendLock;
 
+	/**
+	 * Creates a broadcaster that waits for the computer to connect over
+	 * Bluetooth in the background.
+	 */
 	public BluetoothBroadcaster(DataCenter dataCenter) {
-		BTConnection connection = Bluetooth.waitForConnection();
-		this._inputStream = connection.openDataInputStream();
-		this._outputStream = connection.openDataOutputStream();
-		this._dataCenter = dataCenter;
+		this(dataCenter, new BluetoothConnector());
+	}
+
+	/**
+	 * Creates a broadcaster that waits for the computer to connect through
+	 * the given connector in the background, and again whenever the link is
+	 * lost.
+	 */
+	public BluetoothBroadcaster(DataCenter dataCenter, Connector connector) {
+		this(dataCenter, connector, null);
+	}
+
+	/**
+	 * Creates a broadcaster communicating over the given transport. The
+	 * telemetry stops if the link is lost.
+	 */
+	public BluetoothBroadcaster(DataCenter dataCenter, Transport transport) {
+		this(dataCenter, null, transport);
+	}
+
+	private BluetoothBroadcaster(DataCenter dataCenter, Connector connector,
+			Transport transport) {
+		this._connector = connector;
+		this._transport = transport;
+		this._reader = new FrameReader(transport == null ? null : transport
+				.getInputStream());
+		this._writer = new FrameWriter(transport == null ? null : transport
+				.getOutputStream());
+		this._ring = new TelemetryRing(RING_CAPACITY);
+		this._sender = new TelemetrySender(this._ring, this._writer,
+				LINK_BUDGET, HISTORY_CAPACITY);
+		if (transport == null)
+			this._sender.disconnect();
+		this._channels = new TelemetryChannels(dataCenter, this._ring);
+		this._dispatcher = new CommandDispatcher(this._writer);
+		this._command = new Command();
+		this._dispatcher.start();
+		this._sample = new TelemetrySample();
+		this._startTime = System.currentTimeMillis();
 		this._isBroadcasting = false;
-		this._sendLock = new Object();
-		waitForEndTransmissionFromComputerInNewThread();
+		readFromComputerInNewThread();
 	}
 
 	@Override
 	public final void run() {
 		startBroadcasting();
+		this._sender.start();
+		long lastStartTime = System.currentTimeMillis() - BROADCAST_PERIOD;
 		long startTime, endTime;
 		while (isBroadcasting()) {
 			startTime = System.currentTimeMillis();
-			try {
-				broadcastData();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			this._channels.setLateness((int) Math.max(0, startTime
+					- lastStartTime - BROADCAST_PERIOD));
+			lastStartTime = startTime;
+			broadcastData(startTime);
 			endTime = System.currentTimeMillis();
 			long timeElapsedSinceLastPeriod = endTime - startTime;
 			if (timeElapsedSinceLastPeriod < BROADCAST_PERIOD) {
@@ -58,44 +143,170 @@ public final class BluetoothBroadcaster extends Thread {
 		}
 	}
 
-	public final void endTransmission() throws IOException {
-		synchronized (this._sendLock) {
-			if (isBroadcasting()) {
-				this._outputStream
-						.writeByte(BluetoothProtocol.END_TRANSMISSION);
-				this._outputStream.flush();
-				stopBroadcasting();
+	/**
+	 * Stops sampling. The samples not yet sent are sent in the background,
+	 * followed by the end of the transmission.
+	 */
+	public final void endTransmission() {
+		stopBroadcasting();
+		this._ring.close();
+	}
+
+	/**
+	 * Returns the number of samples dropped because the link fell behind.
+	 */
+	public final int getDroppedSamples() {
+		return this._ring.getDroppedSamples();
+	}
+
+	/**
+	 * Sets the period in ms at which each channel is sent, with 0 to stop
+	 * sending it.
+	 */
+	public final void subscribe(int[] periods) {
+		this._channels.subscribe(periods);
+	}
+
+	/**
+	 * Sends the channels with deadbands only when one of their values moves
+	 * past its deadband, or every heartbeat period in ms. The deadbands of a
+	 * channel are null for it to be sent at every period.
+	 */
+	public final void setDeadbands(int[][] deadbands, int heartbeatPeriod) {
+		this._channels.setDeadbands(deadbands, heartbeatPeriod);
+	}
+
+	/**
+	 * Sets the listener that carries out the commands of the computer. The
+	 * commands are rejected while there is none.
+	 */
+	public final void setCommandListener(CommandListener listener) {
+		this._dispatcher.setListener(listener);
+	}
+
+	private void broadcastData(long time) {
+		TelemetrySample sample = this._sample;
+		int sampleTime = (int) (time - this._startTime);
+		for (int channel = 0; channel < BluetoothProtocol.NUMBER_OF_CHANNELS;
+				++channel) {
+			if (this._channels.isDue(channel, time)) {
+				this._channels.sample(channel, sampleTime, sample);
+				if (this._channels.isChanged(sample))
+					this._ring.add(sample);
 			}
 		}
 	}
 
-	private void broadcastData() throws IOException {
-		synchronized (this._sendLock) {
-			if (isBroadcasting()) {
-				Position position = this._dataCenter.getPosition();
-				this._outputStream.writeByte(BluetoothProtocol.X_POSITION);
-				this._outputStream.writeDouble(position.x);
-				this._outputStream.writeByte(BluetoothProtocol.Y_POSITION);
-				this._outputStream.writeDouble(position.y);
-				this._outputStream.writeByte(BluetoothProtocol.ORIENTATION);
-				this._outputStream.writeDouble(position.orientation);
-				this._outputStream
-						.writeByte(BluetoothProtocol.LEFT_US_DISTANCE);
-				this._outputStream.writeInt(this._dataCenter
-						.getFilteredUSDistanceAtAngle(90));
-				this._outputStream
-						.writeByte(BluetoothProtocol.FRONT_US_DISTANCE);
-				this._outputStream.writeInt(this._dataCenter
-						.getFilteredUSDistanceAtAngle(0));
-				this._outputStream
-						.writeByte(BluetoothProtocol.RIGHT_US_DISTANCE);
-				this._outputStream.writeInt(this._dataCenter
-						.getFilteredUSDistanceAtAngle(-90));
-				this._outputStream.writeByte(BluetoothProtocol.CS_VALUE);
-				this._outputStream.writeInt(this._dataCenter.getCSValue());
-				this._outputStream.flush();
+	/**
+	 * Reads the periods of a SUBSCRIBE frame last read by the reader. Channels
+	 * that are not known are ignored.
+	 */
+	private void readSubscription() throws IOException {
+		int[] periods = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		while (this._reader.getRemainingPayloadLength() > 0) {
+			int channel = this._reader.readUnsignedByte();
+			int period = this._reader.readUnsignedVarInt();
+			if (channel < BluetoothProtocol.NUMBER_OF_CHANNELS && period >= 0)
+				periods[channel] = period;
+		}
+		subscribe(periods);
+	}
+
+	/**
+	 * Reads the heartbeat period and deadbands of a DEADBAND frame last read
+	 * by the reader. A frame with a channel that is not known is ignored,
+	 * since the number of its deadbands is not known.
+	 */
+	private void readDeadbands() throws IOException {
+		int heartbeatPeriod = this._reader.readUnsignedVarInt();
+		int[][] deadbands = new int[BluetoothProtocol.NUMBER_OF_CHANNELS][];
+		while (this._reader.getRemainingPayloadLength() > 0) {
+			int channel = this._reader.readUnsignedByte();
+			if (channel >= BluetoothProtocol.NUMBER_OF_CHANNELS)
+				return;
+			deadbands[channel] = new int[BluetoothProtocol
+					.getChannelLength(channel)];
+			for (int i = 0; i < deadbands[channel].length; ++i) {
+				deadbands[channel][i] = this._reader.readUnsignedVarInt();
 			}
 		}
+		if (heartbeatPeriod > 0)
+			setDeadbands(deadbands, heartbeatPeriod);
+	}
+
+	/**
+	 * Reads the sequence numbers of a RESUME frame last read by the reader,
+	 * and has the sender resume from them.
+	 */
+	private void readResume() throws IOException {
+		int[] nextSequenceNumbers = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		for (int channel = 0; channel < nextSequenceNumbers.length; ++channel) {
+			nextSequenceNumbers[channel] = -1;
+		}
+		while (this._reader.getRemainingPayloadLength() > 0) {
+			int channel = this._reader.readUnsignedByte();
+			int sequenceNumber = this._reader.readUnsignedVarInt();
+			if (channel < BluetoothProtocol.NUMBER_OF_CHANNELS)
+				nextSequenceNumbers[channel] = sequenceNumber;
+		}
+		this._sender.resume(nextSequenceNumbers);
+	}
+
+	/**
+	 * Waits for the computer to connect again after the link is lost, and
+	 * returns false if there is no connector to wait with.
+	 */
+	private boolean reconnect() {
+		this._sender.disconnect();
+		this._transport.close();
+		if (this._connector == null)
+			return false;
+		connect();
+		return true;
+	}
+
+	/**
+	 * Waits for the computer to connect through the connector, and has the
+	 * reader and writer use the new link.
+	 */
+	private void connect() {
+		Transport transport = this._connector.connect();
+		this._reader.setInputStream(transport.getInputStream());
+		synchronized (this._writer) {
+			this._writer.setOutputStream(transport.getOutputStream());
+		}
+		this._transport = transport;
+	}
+
+	/**
+	 * Reads the COMMAND frame last read by the reader and hands it to the
+	 * dispatcher.
+	 */
+	private void readCommand() throws IOException {
+		Command command = this._command;
+		command.requestID = this._reader.readUnsignedVarInt();
+		command.type = this._reader.readUnsignedByte();
+		command.firstArgument = 0;
+		command.secondArgument = 0;
+		switch (command.type) {
+		case BluetoothProtocol.TRAVEL_TO:
+			command.firstArgument = this._reader.readSignedVarInt();
+			command.secondArgument = this._reader.readSignedVarInt();
+			break;
+		case BluetoothProtocol.TURN_TO:
+			command.firstArgument = this._reader.readUnsignedVarInt();
+			break;
+		case BluetoothProtocol.FIRE:
+			command.firstArgument = this._reader.readUnsignedByte();
+			break;
+		case BluetoothProtocol.SET_PARAMETER:
+			command.firstArgument = this._reader.readUnsignedByte();
+			command.secondArgument = this._reader.readSignedVarInt();
+			break;
+		default:
+			// Has no arguments, or is rejected by the dispatcher.
+		}
+		this._dispatcher.dispatch(command);
 	}
 
 	private synchronized boolean isBroadcasting() {
@@ -110,17 +321,46 @@ public final class BluetoothBroadcaster extends Thread {
 		this._isBroadcasting = false;
 	}
 
-	private void waitForEndTransmissionFromComputerInNewThread() {
+	/**
+	 * Starts a thread that reads the frames of the computer, after waiting for
+	 * it to connect if there is no link yet. The samples kept since the start
+	 * are sent once it connects.
+	 */
+	private void readFromComputerInNewThread() {
 		(new Thread() {
 			public void run() {
+				if (_transport == null) {
+					connect();
+					_sender.resume(ALL_SAMPLES);
+				}
+				boolean isReconnected = false;
 				while (true) {
-					byte message = BluetoothProtocol.NULL_MESSAGE;
+					byte type;
+					try {
+						type = _reader.readFrame();
+					} catch (IOException e) {
+						// The link is lost.
+						if (!reconnect())
+							return;
+						isReconnected = true;
+						continue;
+					}
+					if (isReconnected && type != BluetoothProtocol.RESUME)
+						_sender.connect();
+					isReconnected = false;
 					try {
-						message = _inputStream.readByte();
+						if (type == BluetoothProtocol.SUBSCRIBE)
+							readSubscription();
+						else if (type == BluetoothProtocol.COMMAND)
+							readCommand();
+						else if (type == BluetoothProtocol.RESUME)
+							readResume();
+						else if (type == BluetoothProtocol.DEADBAND)
+							readDeadbands();
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
-					if (message == BluetoothProtocol.END_TRANSMISSION) {
+					if (type == BluetoothProtocol.END_TRANSMISSION) {
 						stopBroadcasting();
 						System.exit(0);
 					}
@@ -0,0 +1,14 @@
+package nxt.comm;
+
+/**
+ * A connector waiting for the computer to connect over Bluetooth.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class BluetoothConnector implements Connector {
+	@Override
+	public final Transport connect() {
+		return new BluetoothTransport();
+	}
+}
@@ -0,0 +1,39 @@
+package nxt.comm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import lejos.nxt.comm.BTConnection;
+import lejos.nxt.comm.Bluetooth;
+
+/**
+ * A transport over a Bluetooth connection from the computer.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class BluetoothTransport implements Transport {
+	private final BTConnection _connection;
+
+	/**
+	 * Waits for the computer to connect.
+	 */
+	public BluetoothTransport() {
+		this._connection = Bluetooth.waitForConnection();
+	}
+
+	@Override
+	public final InputStream getInputStream() {
+		return this._connection.openInputStream();
+	}
+
+	@Override
+	public final OutputStream getOutputStream() {
+		return this._connection.openOutputStream();
+	}
+
+	@Override
+	public final void close() {
+		this._connection.close();
+	}
+}
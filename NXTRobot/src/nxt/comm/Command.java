@@ -0,0 +1,22 @@
+package nxt.comm;
+
+/**
+ * A simple data structure used to store a command sent by the computer, with
+ * its arguments in the units of the BluetoothProtocol.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class Command {
+	int requestID;
+	int type;
+	int firstArgument;
+	int secondArgument;
+
+	final void set(Command command) {
+		this.requestID = command.requestID;
+		this.type = command.type;
+		this.firstArgument = command.firstArgument;
+		this.secondArgument = command.secondArgument;
+	}
+}
@@ -0,0 +1,234 @@
+package nxt.comm;
+
+import java.io.IOException;
+
+/**
+ * A thread that carries out the commands sent by the computer in order,
+ * through a CommandListener. Commands are handed over by the thread reading
+ * from the computer, which never waits for them to be carried out, so that a
+ * STOP can interrupt the command being carried out. STOP and SET_PARAMETER
+ * are carried out at once instead of waiting their turn.
+ *
+ * Every command is acknowledged on the link shared with the telemetry, which
+ * is locked only for the length of an acknowledgement. Acknowledgements are
+ * queued while the dispatcher is locked and sent in order after it is
+ * released, so that the thread reading from the computer never writes to the
+ * link while holding the lock.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class CommandDispatcher extends Thread {
+	private static final int QUEUE_CAPACITY = 8;
+
+	/**
+	 * The most acknowledgements waiting to be sent. Each thread sends what it
+	 * queued before queuing more. A STOP queues one for each queued command
+	 * plus two of its own, and the thread carrying out the commands queues
+	 * one.
+	 */
+	private static final int ACKNOWLEDGEMENT_CAPACITY = QUEUE_CAPACITY + 3;
+
+	private final FrameWriter _writer;
+	private CommandListener _listener;
+
+	private final Command[] _queue;
+	private int _start;
+	private int _size;
+	private boolean _isCancelled;
+
+	private final int[] _acknowledgementRequestIDs;
+	private final int[] _acknowledgementStatuses;
+	private int _acknowledgementStart;
+	private int _acknowledgementSize;
+	private final Object _sendLock;
+
+	CommandDispatcher(FrameWriter writer) {
+		this._writer = writer;
+		this._listener = null;
+		this._queue = new Command[QUEUE_CAPACITY];
+		for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+			this._queue[i] = new Command();
+		}
+		this._start = 0;
+		this._size = 0;
+		this._isCancelled = false;
+		this._acknowledgementRequestIDs = new int[ACKNOWLEDGEMENT_CAPACITY];
+		this._acknowledgementStatuses = new int[ACKNOWLEDGEMENT_CAPACITY];
+		this._acknowledgementStart = 0;
+		this._acknowledgementSize = 0;
+		this._sendLock = new Object();
+		setDaemon(true);
+	}
+
+	synchronized final void setListener(CommandListener listener) {
+		this._listener = listener;
+	}
+
+	/**
+	 * Accepts the command and queues it, or carries it out at once if it is a
+	 * STOP or SET_PARAMETER. Commands that are invalid, or that arrive while
+	 * there is no listener or the queue is full, are rejected.
+	 */
+	final void dispatch(Command command) {
+		accept(command);
+		sendAcknowledgements();
+	}
+
+	private synchronized void accept(Command command) {
+		CommandListener listener = this._listener;
+		if (listener == null || !isValid(command.type)
+				|| (this._size == QUEUE_CAPACITY && !isImmediate(command.type))) {
+			queueAcknowledgement(command.requestID, BluetoothProtocol.REJECTED);
+			return;
+		}
+		queueAcknowledgement(command.requestID, BluetoothProtocol.ACCEPTED);
+		if (command.type == BluetoothProtocol.STOP) {
+			this._isCancelled = true;
+			listener.stop();
+			for (int i = 0; i < this._size; ++i) {
+				queueAcknowledgement(this._queue[(this._start + i)
+						% QUEUE_CAPACITY].requestID,
+						BluetoothProtocol.CANCELLED);
+			}
+			this._size = 0;
+			queueAcknowledgement(command.requestID, BluetoothProtocol.DONE);
+		} else if (command.type == BluetoothProtocol.SET_PARAMETER) {
+			int status = BluetoothProtocol.DONE;
+			try {
+				listener.setParameter(command.firstArgument,
+						command.secondArgument);
+			} catch (IllegalArgumentException e) {
+				status = BluetoothProtocol.REJECTED;
+			}
+			queueAcknowledgement(command.requestID, status);
+		} else {
+			this._queue[(this._start + this._size) % QUEUE_CAPACITY]
+					.set(command);
+			++this._size;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public final void run() {
+		Command command = new Command();
+		while (true) {
+			CommandListener listener;
+			synchronized (this) {
+				while (this._size == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+				command.set(this._queue[this._start]);
+				this._start = (this._start + 1) % QUEUE_CAPACITY;
+				--this._size;
+				this._isCancelled = false;
+				listener = this._listener;
+				// Resumes while locked, so that a STOP is either before the
+				// command was taken or after the resume.
+				if (listener != null)
+					listener.resume();
+			}
+			int status = BluetoothProtocol.DONE;
+			if (listener == null) {
+				// The listener was removed after the command was queued.
+				status = BluetoothProtocol.REJECTED;
+			} else {
+				try {
+					execute(listener, command);
+				} catch (IllegalArgumentException e) {
+					status = BluetoothProtocol.REJECTED;
+				}
+			}
+			synchronized (this) {
+				if (this._isCancelled)
+					status = BluetoothProtocol.CANCELLED;
+				queueAcknowledgement(command.requestID, status);
+			}
+			sendAcknowledgements();
+		}
+	}
+
+	private void execute(CommandListener listener, Command command) {
+		switch (command.type) {
+		case BluetoothProtocol.TRAVEL_TO:
+			listener.travelTo((double) command.firstArgument
+					/ BluetoothProtocol.POSITION_SCALE,
+					(double) command.secondArgument
+							/ BluetoothProtocol.POSITION_SCALE);
+			break;
+		case BluetoothProtocol.TURN_TO:
+			listener.turnTo((double) command.firstArgument
+					/ BluetoothProtocol.ORIENTATION_SCALE);
+			break;
+		case BluetoothProtocol.FIRE:
+			listener.fire(command.firstArgument);
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid command");
+		}
+	}
+
+	/**
+	 * Adds an acknowledgement to be sent. The dispatcher must be locked.
+	 */
+	private void queueAcknowledgement(int requestID, int status) {
+		int index = (this._acknowledgementStart + this._acknowledgementSize)
+				% ACKNOWLEDGEMENT_CAPACITY;
+		this._acknowledgementRequestIDs[index] = requestID;
+		this._acknowledgementStatuses[index] = status;
+		++this._acknowledgementSize;
+	}
+
+	/**
+	 * Sends the queued acknowledgements in the order they were queued. Only
+	 * one thread sends at a time, and the dispatcher is locked only to take
+	 * each acknowledgement from the queue.
+	 */
+	private void sendAcknowledgements() {
+		synchronized (this._sendLock) {
+			while (true) {
+				int requestID;
+				int status;
+				synchronized (this) {
+					if (this._acknowledgementSize == 0)
+						return;
+					requestID = this._acknowledgementRequestIDs[this._acknowledgementStart];
+					status = this._acknowledgementStatuses[this._acknowledgementStart];
+					this._acknowledgementStart = (this._acknowledgementStart + 1)
+							% ACKNOWLEDGEMENT_CAPACITY;
+					--this._acknowledgementSize;
+				}
+				sendAcknowledgement(requestID, status);
+			}
+		}
+	}
+
+	private void sendAcknowledgement(int requestID, int status) {
+		try {
+			synchronized (this._writer) {
+				this._writer.startFrame(BluetoothProtocol.ACKNOWLEDGEMENT);
+				this._writer.writeUnsignedVarInt(requestID);
+				this._writer.writeByte(status);
+				this._writer.endFrame();
+				this._writer.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static boolean isImmediate(int type) {
+		return type == BluetoothProtocol.STOP
+				|| type == BluetoothProtocol.SET_PARAMETER;
+	}
+
+	private static boolean isValid(int type) {
+		return type >= BluetoothProtocol.TRAVEL_TO
+				&& type <= BluetoothProtocol.SET_PARAMETER;
+	}
+}
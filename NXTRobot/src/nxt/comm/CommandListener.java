@@ -0,0 +1,40 @@
+package nxt.comm;
+
+/**
+ * An interface to be implemented by the classes that carry out the commands
+ * sent by the computer. The methods are called on the thread of a
+ * CommandDispatcher, except for stop and setParameter, which are called on
+ * the thread reading from the computer and must return quickly.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public interface CommandListener {
+	/**
+	 * Travels to the given position in cm.
+	 */
+	public void travelTo(double x, double y);
+
+	/**
+	 * Turns to the given orientation in degrees.
+	 */
+	public void turnTo(double orientation);
+
+	public void fire(int numberOfBalls);
+
+	/**
+	 * Makes the command being carried out return as soon as possible.
+	 */
+	public void stop();
+
+	/**
+	 * Undoes a stop, before the next command is carried out.
+	 */
+	public void resume();
+
+	/**
+	 * Sets one of the parameters of the BluetoothProtocol. Throws an
+	 * IllegalArgumentException if the parameter or value is invalid.
+	 */
+	public void setParameter(int parameter, int value);
+}
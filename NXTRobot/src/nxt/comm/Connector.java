@@ -0,0 +1,16 @@
+package nxt.comm;
+
+/**
+ * An interface to be implemented by the ways the computer connects to the
+ * robot, so that the robot can wait for it to connect again after the link is
+ * lost.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public interface Connector {
+	/**
+	 * Waits for the computer to connect and returns the link to it.
+	 */
+	public Transport connect();
+}
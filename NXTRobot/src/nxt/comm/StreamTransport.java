@@ -0,0 +1,43 @@
+package nxt.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A transport over a pair of streams already connected to the computer, such
+ * as in-memory pipes or the streams of a socket when the robot code runs in a
+ * simulation.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class StreamTransport implements Transport {
+	private final InputStream _inputStream;
+	private final OutputStream _outputStream;
+
+	public StreamTransport(InputStream inputStream, OutputStream outputStream) {
+		this._inputStream = inputStream;
+		this._outputStream = outputStream;
+	}
+
+	@Override
+	public final InputStream getInputStream() {
+		return this._inputStream;
+	}
+
+	@Override
+	public final OutputStream getOutputStream() {
+		return this._outputStream;
+	}
+
+	@Override
+	public final void close() {
+		try {
+			this._inputStream.close();
+			this._outputStream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
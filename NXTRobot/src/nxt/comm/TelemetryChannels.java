@@ -0,0 +1,177 @@
+package nxt.comm;
+
+import nxt.data.DataCenter;
+import nxt.data.Position;
+import nxt.drivers.MotorController;
+
+/**
+ * The registry of the telemetry channels of the robot. It holds the period at
+ * which each channel is subscribed to and takes the samples of a channel in
+ * the units of the BluetoothProtocol. A period of 0 means the channel is not
+ * sent.
+ *
+ * A channel with deadbands is only sent when it changes: a due sample is
+ * dropped unless one of its values moved past its deadband since the last
+ * sample sent, or the heartbeat period has passed since then.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetryChannels {
+	/**
+	 * The channels sent until the computer subscribes to others.
+	 */
+	private static final int[] DEFAULT_PERIODS = { 25, 25, 0, 25, 0, 0, 0 };
+
+	private final DataCenter _dataCenter;
+	private final TelemetryRing _ring;
+	private final int[] _periods;
+	private final long[] _nextSampleTimes;
+	private int _lateness;
+
+	private final TelemetryDeadbands _deadbands;
+
+	TelemetryChannels(DataCenter dataCenter, TelemetryRing ring) {
+		this._dataCenter = dataCenter;
+		this._ring = ring;
+		this._periods = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		this._nextSampleTimes = new long[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		this._deadbands = new TelemetryDeadbands();
+		subscribe(DEFAULT_PERIODS);
+	}
+
+	/**
+	 * Replaces the periods in ms of every channel, rounded up to a multiple of
+	 * MIN_PERIOD. A period of 0 stops the channel.
+	 */
+	synchronized final void subscribe(int[] periods) {
+		if (periods.length != BluetoothProtocol.NUMBER_OF_CHANNELS)
+			throw new IllegalArgumentException("Invalid periods");
+		for (int channel = 0; channel < periods.length; ++channel) {
+			if (periods[channel] < 0)
+				throw new IllegalArgumentException("Invalid period");
+		}
+		for (int channel = 0; channel < periods.length; ++channel) {
+			int period = periods[channel];
+			int remainder = period % BluetoothProtocol.MIN_PERIOD;
+			if (remainder != 0)
+				period += BluetoothProtocol.MIN_PERIOD - remainder;
+			this._periods[channel] = period;
+			this._nextSampleTimes[channel] = 0;
+			this._deadbands.sendNext(channel);
+		}
+	}
+
+	/**
+	 * Replaces the deadbands of the values of every channel, with null for
+	 * the channels sent at every period, and the heartbeat period in ms of the
+	 * others.
+	 */
+	synchronized final void setDeadbands(int[][] deadbands,
+			int heartbeatPeriod) {
+		this._deadbands.set(deadbands, heartbeatPeriod);
+	}
+
+	synchronized final int getPeriod(int channel) {
+		return this._periods[channel];
+	}
+
+	/**
+	 * Returns true if the channel should be sampled at the given time in ms,
+	 * and if so schedules its next sample.
+	 */
+	synchronized final boolean isDue(int channel, long time) {
+		int period = this._periods[channel];
+		if (period == 0 || time < this._nextSampleTimes[channel])
+			return false;
+		this._nextSampleTimes[channel] += period;
+		// Skips the samples missed rather than sending them late.
+		if (this._nextSampleTimes[channel] <= time)
+			this._nextSampleTimes[channel] = time + period;
+		return true;
+	}
+
+	/**
+	 * Returns true if the sample should be sent: if its channel has no
+	 * deadbands, if one of its values moved past its deadband since the last
+	 * sample sent, or if the heartbeat period has passed since then. If so,
+	 * keeps it as the last sample sent.
+	 */
+	synchronized final boolean isChanged(TelemetrySample sample) {
+		return this._deadbands.isChanged(sample);
+	}
+
+	/**
+	 * Sets how late in ms the broadcast loop started its last period, as sent
+	 * in the TIMING channel.
+	 */
+	synchronized final void setLateness(int lateness) {
+		this._lateness = lateness;
+	}
+
+	/**
+	 * Takes a sample of the channel at the given time in ms into the given
+	 * sample.
+	 */
+	final void sample(int channel, int time, TelemetrySample sample) {
+		sample.channel = channel;
+		sample.time = time;
+		int[] values = sample.values;
+		DataCenter dataCenter = this._dataCenter;
+		switch (channel) {
+		case BluetoothProtocol.POSE:
+			Position position = dataCenter.getPosition();
+			values[0] = toPositionUnits(position.x);
+			values[1] = toPositionUnits(position.y);
+			values[2] = toOrientationUnits(position.orientation);
+			break;
+		case BluetoothProtocol.US:
+			values[0] = dataCenter.getFilteredUSDistanceAtAngle(90);
+			values[1] = dataCenter.getFilteredUSDistanceAtAngle(0);
+			values[2] = dataCenter.getFilteredUSDistanceAtAngle(-90);
+			break;
+		case BluetoothProtocol.RAW_US:
+			values[0] = dataCenter.getRawUSDistanceAtAngle(90);
+			values[1] = dataCenter.getRawUSDistanceAtAngle(0);
+			values[2] = dataCenter.getRawUSDistanceAtAngle(-90);
+			break;
+		case BluetoothProtocol.CS:
+			values[0] = dataCenter.getCSValue();
+			break;
+		case BluetoothProtocol.TACHO:
+			values[0] = MotorController.getLeftTachoCount();
+			values[1] = MotorController.getRightTachoCount();
+			break;
+		case BluetoothProtocol.CORRECTION:
+			Position correction = dataCenter.getLastCorrection();
+			values[0] = dataCenter.getNumberOfCorrections();
+			values[1] = toPositionUnits(correction.x);
+			values[2] = toPositionUnits(correction.y);
+			values[3] = (int) Math.round(correction.orientation
+					* BluetoothProtocol.ORIENTATION_SCALE);
+			break;
+		case BluetoothProtocol.TIMING:
+			values[0] = (int) dataCenter.getOdometerInterval();
+			synchronized (this) {
+				values[1] = this._lateness;
+			}
+			values[2] = this._ring.getDroppedSamples();
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid channel");
+		}
+	}
+
+	private static int toPositionUnits(double position) {
+		return (int) Math.round(position * BluetoothProtocol.POSITION_SCALE);
+	}
+
+	private static int toOrientationUnits(double orientation) {
+		int units = (int) Math.round(orientation
+				* BluetoothProtocol.ORIENTATION_SCALE)
+				% BluetoothProtocol.ORIENTATION_RANGE;
+		if (units < 0)
+			units += BluetoothProtocol.ORIENTATION_RANGE;
+		return units;
+	}
+}
@@ -0,0 +1,55 @@
+package nxt.comm;
+
+/**
+ * The last samples handed to the link, kept in the order they were sent so
+ * that they can be sent again after the link is lost. The samples are
+ * preallocated, and the oldest is overwritten once the history is full.
+ *
+ * The history is only used by the thread sending the telemetry.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetryHistory {
+	private final TelemetrySample[] _samples;
+	private int _start;
+	private int _size;
+
+	TelemetryHistory(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Invalid capacity");
+		this._samples = new TelemetrySample[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			this._samples[i] = new TelemetrySample();
+		}
+		this._start = 0;
+		this._size = 0;
+	}
+
+	/**
+	 * Copies the sample into the history, overwriting the oldest one if it is
+	 * full.
+	 */
+	final void add(TelemetrySample sample) {
+		int index = (this._start + this._size) % this._samples.length;
+		if (this._size == this._samples.length)
+			this._start = (this._start + 1) % this._samples.length;
+		else
+			++this._size;
+		this._samples[index].set(sample);
+	}
+
+	final int size() {
+		return this._size;
+	}
+
+	/**
+	 * Returns the sample at the given index, from 0 for the oldest. The sample
+	 * is overwritten by later calls to add.
+	 */
+	final TelemetrySample get(int index) {
+		if (index < 0 || index >= this._size)
+			throw new IllegalArgumentException("Invalid index");
+		return this._samples[(this._start + index) % this._samples.length];
+	}
+}
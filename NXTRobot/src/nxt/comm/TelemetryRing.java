@@ -0,0 +1,213 @@
+package nxt.comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nxt.test.Assert;
+
+/**
+ * A ring of preallocated telemetry samples between the thread that takes them
+ * and the thread that sends them. Adding a sample never waits on the link:
+ * when the ring is full, the oldest sample is dropped and counted. Samples are
+ * numbered within their channel as they are added, so that the computer sees
+ * the drops as gaps in the sequence of the channel.
+ *
+ * The ring is guarded by its own lock, which is only held to copy a sample in
+ * or out and never while sending.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetryRing {
+	private final TelemetrySample[] _samples;
+	private int _start;
+	private int _size;
+	private final int[] _nextSequenceNumbers;
+	private int _droppedSamples;
+	private boolean _isClosed;
+
+	TelemetryRing(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Invalid capacity");
+		this._samples = new TelemetrySample[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			this._samples[i] = new TelemetrySample();
+		}
+		this._start = 0;
+		this._size = 0;
+		int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+		this._nextSequenceNumbers = new int[channels];
+		this._droppedSamples = 0;
+		this._isClosed = false;
+	}
+
+	/**
+	 * Copies the sample into the ring with the next sequence number of its
+	 * channel, dropping the oldest sample if the ring is full. Does nothing
+	 * once the ring is closed.
+	 */
+	synchronized final void add(TelemetrySample sample) {
+		if (this._isClosed)
+			return;
+		int index = (this._start + this._size) % this._samples.length;
+		if (this._size == this._samples.length) {
+			this._start = (this._start + 1) % this._samples.length;
+			++this._droppedSamples;
+		} else {
+			++this._size;
+		}
+		TelemetrySample ringSample = this._samples[index];
+		ringSample.set(sample);
+		ringSample.sequenceNumber = this._nextSequenceNumbers[sample.channel]++;
+		notifyAll();
+	}
+
+	/**
+	 * Waits at most timeout ms for a sample and copies the oldest one into the
+	 * given sample. Returns false if there was no sample to take.
+	 */
+	synchronized final boolean take(TelemetrySample sample, long timeout) {
+		long endTime = System.currentTimeMillis() + timeout;
+		long timeLeft = timeout;
+		while (this._size == 0 && !this._isClosed && timeLeft > 0) {
+			try {
+				wait(timeLeft);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			timeLeft = endTime - System.currentTimeMillis();
+		}
+		if (this._size == 0)
+			return false;
+		sample.set(this._samples[this._start]);
+		this._start = (this._start + 1) % this._samples.length;
+		--this._size;
+		return true;
+	}
+
+	/**
+	 * Returns true once the ring is closed and every sample was taken.
+	 */
+	synchronized final boolean isFinished() {
+		return this._isClosed && this._size == 0;
+	}
+
+	/**
+	 * Stops adding samples. The samples already added can still be taken.
+	 */
+	synchronized final void close() {
+		this._isClosed = true;
+		notifyAll();
+	}
+
+	synchronized final int getDroppedSamples() {
+		return this._droppedSamples;
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		TelemetryRingTest.testDropsOldest();
+		TelemetryRingTest.testAddsWithoutWaitingOnTheLink();
+	}
+
+	private static class TelemetryRingTest {
+		private static void testDropsOldest() {
+			TelemetryRing ring = new TelemetryRing(4);
+			TelemetrySample sample = new TelemetrySample();
+			for (int i = 0; i < 10; ++i) {
+				sample.channel = i % 2;
+				sample.time = i;
+				ring.add(sample);
+			}
+			Assert.assertTrue(ring.getDroppedSamples() == 6);
+			for (int i = 6; i < 10; ++i) {
+				Assert.assertTrue(ring.take(sample, 0));
+				Assert.assertTrue(sample.time == i,
+						"Oldest sample not dropped");
+				Assert.assertTrue(sample.sequenceNumber == i / 2);
+			}
+			Assert.assertFalse(ring.take(sample, 0));
+			ring.close();
+			ring.add(sample);
+			Assert.assertTrue(ring.isFinished());
+		}
+
+		/**
+		 * Adds samples every ms while a sender writes them to a link that
+		 * stalls, and checks that adding never waits, and that every sample
+		 * is either sent in order or counted as dropped.
+		 */
+		private static void testAddsWithoutWaitingOnTheLink()
+				throws IOException, InterruptedException {
+			final int numberOfSamples = 1000;
+			final ByteArrayOutputStream received = new ByteArrayOutputStream();
+			OutputStream link = new OutputStream() {
+				private int _writes = 0;
+
+				@Override
+				public void write(int b) {
+					received.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					// Stalls every tenth write, as a link that drops out.
+					try {
+						Thread.sleep(++this._writes % 10 == 0 ? 200 : 5);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					received.write(b, off, len);
+				}
+			};
+			TelemetryRing ring = new TelemetryRing(16);
+			FrameWriter writer = new FrameWriter(link);
+			TelemetrySender sender = new TelemetrySender(ring, writer, 2000,
+					16);
+			sender.start();
+
+			TelemetrySample sample = new TelemetrySample();
+			long maximumAddTime = 0;
+			for (int i = 0; i < numberOfSamples; ++i) {
+				sample.channel = BluetoothProtocol.POSE;
+				sample.time = i;
+				sample.values[0] = i;
+				long startTime = System.currentTimeMillis();
+				ring.add(sample);
+				maximumAddTime = Math.max(maximumAddTime,
+						System.currentTimeMillis() - startTime);
+				Thread.sleep(1);
+			}
+			ring.close();
+			sender.join();
+			Assert.assertTrue(maximumAddTime < 50, "Adding waited on the link");
+			Assert.assertTrue(ring.getDroppedSamples() > 0);
+
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(
+					received.toByteArray()));
+			int length = BluetoothProtocol
+					.getChannelLength(BluetoothProtocol.POSE);
+			int samplesSent = 0;
+			int nextSequenceNumber = 0;
+			while (reader.readFrame() == BluetoothProtocol.TELEMETRY) {
+				reader.readUnsignedByte();
+				int sequenceNumber = reader.readInt();
+				Assert.assertTrue(sequenceNumber >= nextSequenceNumber,
+						"Samples sent out of order");
+				while (reader.getRemainingPayloadLength() > 0) {
+					reader.readUnsignedVarInt();
+					for (int i = 0; i < length; ++i) {
+						reader.readSignedVarInt();
+					}
+					++samplesSent;
+					++sequenceNumber;
+				}
+				nextSequenceNumber = sequenceNumber;
+			}
+			Assert.assertTrue(samplesSent + ring.getDroppedSamples()
+					== numberOfSamples, "Samples neither sent nor dropped");
+		}
+	}
+}
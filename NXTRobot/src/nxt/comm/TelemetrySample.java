@@ -0,0 +1,24 @@
+package nxt.comm;
+
+/**
+ * A simple data structure used to store a sample of a telemetry channel, with
+ * its values in the units of the BluetoothProtocol. Samples are reused rather
+ * than allocated for each period.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetrySample {
+	int channel;
+	int sequenceNumber;
+	int time;
+	final int[] values = new int[BluetoothProtocol.MAX_CHANNEL_VALUES];
+
+	final void set(TelemetrySample sample) {
+		this.channel = sample.channel;
+		this.sequenceNumber = sample.sequenceNumber;
+		this.time = sample.time;
+		System.arraycopy(sample.values, 0, this.values, 0,
+				BluetoothProtocol.MAX_CHANNEL_VALUES);
+	}
+}
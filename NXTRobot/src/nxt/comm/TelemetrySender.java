@@ -0,0 +1,202 @@
+package nxt.comm;
+
+import java.io.IOException;
+
+/**
+ * A thread that sends the samples of a ring to the computer as they come in.
+ * It is the only thread that writes telemetry to the link, so a stalled link
+ * only stalls this thread. Other messages can be written between its frames by
+ * locking the writer. Once the ring is closed and emptied, it ends the
+ * transmission.
+ *
+ * The frames not yet full are sent every FLUSH_PERIOD. The bytes sent are kept
+ * within the link budget: after a burst, the thread waits until the link has
+ * had the time to send it, and the ring drops the oldest samples meanwhile.
+ *
+ * The samples sent are also kept in a TelemetryHistory. When the link is
+ * lost, the sender stops writing and only keeps the history, until the
+ * computer connects again and asks to resume from the samples it received.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetrySender extends Thread {
+	private static final long FLUSH_PERIOD = 100;
+
+	/**
+	 * The time in ms of unused budget that can be spent at once.
+	 */
+	private static final long MAX_BURST_TIME = 200;
+
+	private final TelemetryRing _ring;
+	private final FrameWriter _writer;
+	private final TelemetryEncoder _encoder;
+	private final TelemetryHistory _history;
+	private final int _linkBudget;
+
+	private boolean _isConnected;
+	private boolean _isResumeAsked;
+	private final int[] _askedSequenceNumbers;
+	private final int[] _resumeSequenceNumbers;
+
+	/**
+	 * The time in us at which the bytes written so far will have been sent at
+	 * the link budget.
+	 */
+	private long _budgetTime;
+	private long _bytesCharged;
+
+	/**
+	 * Creates a sender that sends at most linkBudget bytes per second, and
+	 * keeps the last historyCapacity samples sent.
+	 */
+	TelemetrySender(TelemetryRing ring, FrameWriter writer, int linkBudget,
+			int historyCapacity) {
+		if (linkBudget <= 0)
+			throw new IllegalArgumentException("Invalid link budget");
+		this._ring = ring;
+		this._writer = writer;
+		this._encoder = new TelemetryEncoder(writer);
+		this._history = new TelemetryHistory(historyCapacity);
+		this._linkBudget = linkBudget;
+		this._isConnected = true;
+		this._isResumeAsked = false;
+		this._askedSequenceNumbers = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		this._resumeSequenceNumbers = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		this._budgetTime = 0;
+		this._bytesCharged = 0;
+	}
+
+	@Override
+	public final void run() {
+		TelemetrySample sample = new TelemetrySample();
+		long nextFlushTime = System.currentTimeMillis() + FLUSH_PERIOD;
+		while (!this._ring.isFinished()) {
+			long timeout = nextFlushTime - System.currentTimeMillis();
+			try {
+				if (timeout > 0 && this._ring.take(sample, timeout)) {
+					this._history.add(sample);
+					synchronized (this._writer) {
+						if (isConnected())
+							this._encoder.addSample(sample);
+					}
+				}
+				synchronized (this._writer) {
+					resumeIfAsked();
+				}
+				if (System.currentTimeMillis() >= nextFlushTime) {
+					synchronized (this._writer) {
+						if (isConnected())
+							this._encoder.flush();
+					}
+					nextFlushTime = System.currentTimeMillis() + FLUSH_PERIOD;
+				}
+			} catch (IOException e) {
+				// The link is lost. The samples are kept in the history until
+				// the computer connects again.
+				disconnect();
+			}
+			waitForLinkBudget();
+		}
+		try {
+			synchronized (this._writer) {
+				if (!isConnected())
+					return;
+				this._encoder.flush();
+				this._writer.startFrame(BluetoothProtocol.END_TRANSMISSION);
+				this._writer.endFrame();
+				this._writer.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops writing to the link until the sender resumes, such as when there
+	 * is no link yet or it was lost. The writer must not be locked by the
+	 * caller, so that the sender is stopped before the writer is given the
+	 * stream of a new link.
+	 */
+	synchronized final void disconnect() {
+		this._isConnected = false;
+		this._isResumeAsked = false;
+	}
+
+	/**
+	 * Starts writing to the link again, first sending the samples kept in the
+	 * history from the given sequence number of each channel on. A sequence
+	 * number of -1 sends all of the samples kept of its channel.
+	 */
+	synchronized final void resume(int[] nextSequenceNumbers) {
+		System.arraycopy(nextSequenceNumbers, 0, this._askedSequenceNumbers,
+				0, BluetoothProtocol.NUMBER_OF_CHANNELS);
+		this._isResumeAsked = true;
+	}
+
+	/**
+	 * Starts writing to the link again with the next samples, without sending
+	 * any of the samples kept.
+	 */
+	synchronized final void connect() {
+		for (int channel = 0; channel < BluetoothProtocol.NUMBER_OF_CHANNELS;
+				++channel) {
+			this._askedSequenceNumbers[channel] = Integer.MAX_VALUE;
+		}
+		this._isResumeAsked = true;
+	}
+
+	private synchronized boolean isConnected() {
+		return this._isConnected;
+	}
+
+	/**
+	 * Sends the samples kept that were asked for, if the computer asked to
+	 * resume, and starts sending the next samples. The writer must be locked.
+	 */
+	private void resumeIfAsked() throws IOException {
+		synchronized (this) {
+			if (!this._isResumeAsked)
+				return;
+			this._isResumeAsked = false;
+			this._isConnected = true;
+			System.arraycopy(this._askedSequenceNumbers, 0,
+					this._resumeSequenceNumbers, 0,
+					BluetoothProtocol.NUMBER_OF_CHANNELS);
+		}
+		this._encoder.reset();
+		for (int i = 0; i < this._history.size(); ++i) {
+			TelemetrySample sample = this._history.get(i);
+			if (sample.sequenceNumber >= this._resumeSequenceNumbers[sample.channel])
+				this._encoder.addSample(sample);
+		}
+		this._encoder.flush();
+	}
+
+	/**
+	 * Charges the bytes written since the last call to the budget, and waits
+	 * while more was written than the link budget allows.
+	 */
+	private void waitForLinkBudget() {
+		long bytesWritten;
+		synchronized (this._writer) {
+			bytesWritten = this._writer.getBytesWritten();
+		}
+		long bytes = bytesWritten - this._bytesCharged;
+		if (bytes == 0)
+			return;
+		this._bytesCharged = bytesWritten;
+		long now = System.currentTimeMillis() * 1000;
+		this._budgetTime = Math.max(this._budgetTime, now - MAX_BURST_TIME
+				* 1000)
+				+ bytes * 1000000 / this._linkBudget;
+		long debt = (this._budgetTime - now) / 1000;
+		if (debt > 0) {
+			try {
+				Thread.sleep(debt);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -19,6 +19,21 @@ public final class DataCenter {
 	private final Object _odometerLock;
 	private Position _position;
 
+	/**
+	 * The number of odometer updates kept in the pose history, enough for
+	 * about 1.5 s at the odometer period.
+	 */
+	private static final int POSE_HISTORY_SIZE = 32;
+	private long[] _poseTimes;
+	private double[] _poseXs;
+	private double[] _poseYs;
+	private double[] _poseOrientations;
+	private int _poseHistoryStart;
+	private int _poseHistoryLength;
+
+	private int _numberOfCorrections;
+	private Position _lastCorrection;
+
 	private final Object _usDataLock;
 	private static final int NUM_DISTANCES_TO_STORE = 3;
 	private int[] _angleToRawUSDistance;
@@ -30,10 +45,22 @@ public final class DataCenter {
 
 	private final Object _csValueLock;
 	private int _csValue;
+	private long _csTime;
+
+	private final Object _expectedCrossingsLock;
+	private LineCrossing[] _expectedCrossings;
 
 	public DataCenter() {
 		this._odometerLock = new Object();
 		this._position = new Position();
+		this._poseTimes = new long[POSE_HISTORY_SIZE];
+		this._poseXs = new double[POSE_HISTORY_SIZE];
+		this._poseYs = new double[POSE_HISTORY_SIZE];
+		this._poseOrientations = new double[POSE_HISTORY_SIZE];
+		this._poseHistoryStart = 0;
+		this._poseHistoryLength = 0;
+		this._numberOfCorrections = 0;
+		this._lastCorrection = new Position();
 
 		this._usDataLock = new Object();
 		this._angleToRawUSDistance = new int[NUM_DISTANCES_TO_STORE];
@@ -49,6 +76,10 @@ public final class DataCenter {
 
 		this._csValueLock = new Object();
 		this._csValue = 0;
+		this._csTime = 0;
+
+		this._expectedCrossingsLock = new Object();
+		this._expectedCrossings = null;
 	}
 
 	public final void setPosition(double x, double y, double orientation) {
@@ -74,6 +105,119 @@ public final class DataCenter {
 		}
 	}
 
+	/**
+	 * Adds the current position to the pose history with the given time in
+	 * ms. Called by the odometer after each update.
+	 */
+	public final void recordPosition(long time) {
+		synchronized (this._odometerLock) {
+			int index = (this._poseHistoryStart + this._poseHistoryLength)
+					% POSE_HISTORY_SIZE;
+			if (this._poseHistoryLength == POSE_HISTORY_SIZE) {
+				this._poseHistoryStart = (this._poseHistoryStart + 1)
+						% POSE_HISTORY_SIZE;
+			} else {
+				++this._poseHistoryLength;
+			}
+			this._poseTimes[index] = time;
+			this._poseXs[index] = this._position.x;
+			this._poseYs[index] = this._position.y;
+			this._poseOrientations[index] = this._position.orientation;
+		}
+	}
+
+	/**
+	 * Returns the position at the given time in ms, interpolated between the
+	 * odometer updates around it, or null if the time is not covered by the
+	 * pose history.
+	 */
+	public final Position getPositionAtTime(long time) {
+		synchronized (this._odometerLock) {
+			for (int i = this._poseHistoryLength - 1; i > 0; --i) {
+				int after = (this._poseHistoryStart + i) % POSE_HISTORY_SIZE;
+				int before = (this._poseHistoryStart + i - 1)
+						% POSE_HISTORY_SIZE;
+				if (this._poseTimes[before] <= time
+						&& time <= this._poseTimes[after]) {
+					long interval = this._poseTimes[after]
+							- this._poseTimes[before];
+					double fraction = interval == 0 ? 0
+							: (double) (time - this._poseTimes[before])
+									/ interval;
+					return new Position(this._poseXs[before]
+							+ (this._poseXs[after] - this._poseXs[before])
+							* fraction, this._poseYs[before]
+							+ (this._poseYs[after] - this._poseYs[before])
+							* fraction, AngleUtility
+							.normalize(this._poseOrientations[before]
+									+ AngleUtility.difference(
+											this._poseOrientations[after],
+											this._poseOrientations[before])
+									* fraction));
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the time in ms of the oldest position in the pose history, or
+	 * Long.MAX_VALUE if it is empty. Earlier times are no longer covered.
+	 */
+	public final long getOldestPositionTime() {
+		synchronized (this._odometerLock) {
+			if (this._poseHistoryLength == 0)
+				return Long.MAX_VALUE;
+			return this._poseTimes[this._poseHistoryStart];
+		}
+	}
+
+	/**
+	 * Returns the time in ms between the last two odometer updates, or 0 if
+	 * there were fewer than two.
+	 */
+	public final long getOdometerInterval() {
+		synchronized (this._odometerLock) {
+			if (this._poseHistoryLength < 2)
+				return 0;
+			int last = (this._poseHistoryStart + this._poseHistoryLength - 1)
+					% POSE_HISTORY_SIZE;
+			int beforeLast = (last + POSE_HISTORY_SIZE - 1) % POSE_HISTORY_SIZE;
+			return this._poseTimes[last] - this._poseTimes[beforeLast];
+		}
+	}
+
+	/**
+	 * Records that a correction moved the position by the given changes in x
+	 * and y in cm and in the orientation in degrees, so that corrections can be
+	 * reported to the computer.
+	 */
+	public final void recordCorrection(double xChange, double yChange,
+			double orientationChange) {
+		synchronized (this._odometerLock) {
+			++this._numberOfCorrections;
+			this._lastCorrection.x = xChange;
+			this._lastCorrection.y = yChange;
+			this._lastCorrection.orientation = orientationChange;
+		}
+	}
+
+	public final int getNumberOfCorrections() {
+		synchronized (this._odometerLock) {
+			return this._numberOfCorrections;
+		}
+	}
+
+	/**
+	 * Returns the changes made by the last correction, with the orientation
+	 * not normalized.
+	 */
+	public final Position getLastCorrection() {
+		synchronized (this._odometerLock) {
+			return new Position(this._lastCorrection);
+		}
+	}
+
 	public final void setXPosition(double x) {
 		synchronized (this._odometerLock) {
 			this._position.x = x;
@@ -219,9 +363,33 @@ public final class DataCenter {
 		return CSPoller.isOnGridLine(this._csValue);
 	}
 
-	public final void setCSValue(int csValue) {
+	/**
+	 * Sets the color sensor value along with the time in ms at which it was
+	 * read.
+	 */
+	public final void setCSValue(int csValue, long time) {
 		synchronized (this._csValueLock) {
 			this._csValue = csValue;
+			this._csTime = time;
+		}
+	}
+
+	/**
+	 * Returns the time in ms at which the color sensor value was read, to check
+	 * for a new value without allocating.
+	 */
+	public final long getCSTime() {
+		synchronized (this._csValueLock) {
+			return this._csTime;
+		}
+	}
+
+	/**
+	 * Returns the color sensor value and the time in ms at which it was read.
+	 */
+	public final Pair<Integer, Long> getTimedCSValue() {
+		synchronized (this._csValueLock) {
+			return new Pair<>(this._csValue, this._csTime);
 		}
 	}
 
@@ -230,4 +398,20 @@ public final class DataCenter {
 			return this._csValue;
 		}
 	}
+
+	/**
+	 * Sets the grid lines the color sensor is expected to cross on the current
+	 * path, in order, or null if the robot is not traveling on a path.
+	 */
+	public final void setExpectedCrossings(LineCrossing[] expectedCrossings) {
+		synchronized (this._expectedCrossingsLock) {
+			this._expectedCrossings = expectedCrossings;
+		}
+	}
+
+	public final LineCrossing[] getExpectedCrossings() {
+		synchronized (this._expectedCrossingsLock) {
+			return this._expectedCrossings;
+		}
+	}
 }
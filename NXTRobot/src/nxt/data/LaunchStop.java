@@ -0,0 +1,23 @@
+package nxt.data;
+
+/**
+ * A simple data structure to hold a position to fire from, the index of the
+ * target to fire at, the number of the first ball to fire and the number of
+ * balls to fire.
+ * 
+ * @author Andrei Purcarus
+ *
+ */
+public final class LaunchStop {
+	public Position position;
+	public int target;
+	public int firstBall;
+	public int shots;
+
+	public LaunchStop(Position position, int target, int firstBall, int shots) {
+		this.position = position;
+		this.target = target;
+		this.firstBall = firstBall;
+		this.shots = shots;
+	}
+}
@@ -0,0 +1,21 @@
+package nxt.data;
+
+/**
+ * A simple data structure to hold a grid line that the color sensor is
+ * expected to cross: whether it is a line of constant x or of constant y, its
+ * coordinate, and the distance along the path at which it is crossed.
+ * 
+ * @author Andrei Purcarus
+ *
+ */
+public final class LineCrossing {
+	public boolean isXLine;
+	public double line;
+	public double distance;
+
+	public LineCrossing(boolean isXLine, double line, double distance) {
+		this.isXLine = isXLine;
+		this.line = line;
+		this.distance = distance;
+	}
+}
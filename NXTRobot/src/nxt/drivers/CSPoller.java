@@ -16,6 +16,7 @@ public final class CSPoller extends Thread {
 
 	private static final int NUM_VALUES_TO_STORE = 5;
 	private int[] _csValues;
+	private long[] _csTimes;
 
 	private final DataCenter _dataCenter;
 
@@ -26,6 +27,7 @@ public final class CSPoller extends Thread {
 	public CSPoller(DataCenter dataCenter) {
 		this._dataCenter = dataCenter;
 		this._csValues = new int[NUM_VALUES_TO_STORE];
+		this._csTimes = new long[NUM_VALUES_TO_STORE];
 	}
 
 	@Override
@@ -46,19 +48,28 @@ public final class CSPoller extends Thread {
 	private void initializeValues() {
 		for (int i = 0; i < NUM_VALUES_TO_STORE; ++i) {
 			this._csValues[i] = NXTConstants.CS.getLightValue();
+			this._csTimes[i] = System.currentTimeMillis();
 		}
 	}
 
 	private void updateValues() {
 		int csValue = NXTConstants.CS.getLightValue();
+		long csTime = System.currentTimeMillis();
 		for (int i = 0; i < NUM_VALUES_TO_STORE - 1; ++i) {
 			this._csValues[i] = this._csValues[i + 1];
+			this._csTimes[i] = this._csTimes[i + 1];
 		}
 		this._csValues[NUM_VALUES_TO_STORE - 1] = csValue;
+		this._csTimes[NUM_VALUES_TO_STORE - 1] = csTime;
 	}
 
+	/**
+	 * Sends the filtered value along with the time of the middle sample it
+	 * averages, which cancels the delay of the filter.
+	 */
 	private void sendCurrentValueToDataCenter() {
-		this._dataCenter.setCSValue(getCurrentFilteredValue());
+		this._dataCenter.setCSValue(getCurrentFilteredValue(),
+				this._csTimes[NUM_VALUES_TO_STORE / 2]);
 	}
 
 	private void notifyDataCenterIfGridLineDetected() {
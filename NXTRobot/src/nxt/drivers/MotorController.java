@@ -28,6 +28,23 @@ public final class MotorController {
 		setMotorSpeeds(leftMotorSpeed, rightMotorSpeed);
 	}
 
+	/**
+	 * Moves the robot forward at the given speed in cm/s while turning
+	 * counterclockwise at the given rate in deg/s, or clockwise if the rate is
+	 * negative. Returns immediately, so it can be called again to steer.
+	 */
+	synchronized public static final void moveForward(double speed,
+			double turnRate) {
+		double wheelDistance = getProperWheelDistanceForOnPointRotation(turnRate);
+		double wheelSpeedDifference = Math.toRadians(turnRate) * wheelDistance
+				/ 2;
+		int leftMotorSpeed = convertLinearSpeedToMotorSpeed(speed
+				- wheelSpeedDifference, NXTConstants.LEFT_RADIUS);
+		int rightMotorSpeed = convertLinearSpeedToMotorSpeed(speed
+				+ wheelSpeedDifference, NXTConstants.RIGHT_RADIUS);
+		setMotorSpeeds(leftMotorSpeed, rightMotorSpeed);
+	}
+
 	/**
 	 * Moves the robot backward at the given speed in cm/s.
 	 */
@@ -48,6 +65,20 @@ public final class MotorController {
 		turnOnPivot(angle, speed, wheelDistance / 2, wheelDistance / 2);
 	}
 
+	/**
+	 * Starts turning the robot counterclockwise in place at the given speed in
+	 * deg/s, or clockwise if the speed is negative. Returns immediately, and
+	 * the robot keeps turning until the motors are given another command.
+	 */
+	synchronized public static final void rotate(double speed) {
+		double wheelDistance = getProperWheelDistanceForOnPointRotation(speed);
+		int leftMotorSpeed = -convertAngularSpeedToMotorSpeed(speed,
+				NXTConstants.LEFT_RADIUS, wheelDistance / 2);
+		int rightMotorSpeed = convertAngularSpeedToMotorSpeed(speed,
+				NXTConstants.RIGHT_RADIUS, wheelDistance / 2);
+		setMotorSpeeds(leftMotorSpeed, rightMotorSpeed);
+	}
+
 	synchronized public static final void floatMotors() {
 		NXTConstants.LEFT_MOTOR.flt();
 		NXTConstants.RIGHT_MOTOR.flt();
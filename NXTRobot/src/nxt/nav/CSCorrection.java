@@ -2,14 +2,31 @@ package nxt.nav;
 
 import nxt.NXTConstants;
 import nxt.data.DataCenter;
+import nxt.data.LineCrossing;
 import nxt.data.Point;
+import nxt.data.Position;
 import nxt.data.Vector;
-import nxt.util.MathUtility;
 
 /**
  * A class that implements correction on the position when grid lines are
  * detected on the floor by a color sensor.
  *
+ * Each detection is matched to one of the grid lines Navigation expects the
+ * color sensor to cross on its current path, so that dark obstacles, shadows
+ * and lines the robot drifted onto are not taken for the nearest line. The
+ * gate for a match grows with the distance driven since the coordinate was
+ * last corrected. Detections that match no expected crossing are counted as
+ * rejected.
+ *
+ * The orientation is also corrected. After the robot drives along a grid line
+ * direction, an error in its orientation shows up as an error in the other
+ * coordinate the next time a line of the first direction is crossed. The
+ * error in that coordinate since the last correction of it, divided by the
+ * distance driven along the lines since then, gives the error in the
+ * orientation. Consecutive crossings of parallel lines while driving across
+ * them give too short a distance along the lines, so only crossings separated
+ * by driving along the lines are used.
+ *
  * @author Andrei Purcarus
  *
  */
@@ -21,6 +38,15 @@ public final class CSCorrection implements CSListener {
 	 */
 	private static final int CORRECTION_BANDWIDTH = 5;
 
+	/**
+	 * The error in cm allowed right after a correction, and the error added
+	 * per cm driven since, up to CORRECTION_BANDWIDTH.
+	 */
+	private static final double MINIMUM_GATE = 1.5;
+	private static final double GATE_GROWTH = 0.05;
+
+	private static final int NO_CROSSING = -1;
+
 	/**
 	 * The maximum error allowed between the reported position of the robot and
 	 * the position of a grid line to always correct both coordinates of the
@@ -28,13 +54,62 @@ public final class CSCorrection implements CSListener {
 	 */
 	private static final int ABSOLUTE_CORRECTION_BANDWIDTH = 2;
 
+	/**
+	 * The minimum distance in cm driven along the grid lines since the last
+	 * correction of a coordinate to correct the orientation from it.
+	 */
+	private static final double MINIMUM_LEVER_ARM = NXTConstants.TILE_DISTANCE;
+
+	/**
+	 * The largest error in degrees in the orientation accepted, and the
+	 * fraction of it corrected.
+	 */
+	private static final double MAXIMUM_ORIENTATION_ERROR = 5;
+	private static final double ORIENTATION_CORRECTION_GAIN = 0.5;
+
 	private final DataCenter _dataCenter;
 
+	/**
+	 * The positions of the robot at the last corrections of x and y, or null
+	 * if there are none to compare with.
+	 */
+	private Point _xReference;
+	private Point _yReference;
+
+	/**
+	 * The positions of the robot at the last corrections of x and y, used for
+	 * the gates, or null if there are none.
+	 */
+	private Point _lastXCorrection;
+	private Point _lastYCorrection;
+
+	/**
+	 * The crossings expected on the current path, and which of them were
+	 * already detected.
+	 */
+	private LineCrossing[] _expectedCrossings;
+	private boolean[] _isCrossed;
+
+	private int _matchedCrossings;
+	private int _rejectedCrossings;
+
 	public CSCorrection(DataCenter dataCenter) {
 		this._dataCenter = dataCenter;
+		this._xReference = null;
+		this._yReference = null;
+		this._lastXCorrection = null;
+		this._lastYCorrection = null;
+		this._expectedCrossings = null;
+		this._isCrossed = null;
+		this._matchedCrossings = 0;
+		this._rejectedCrossings = 0;
 	}
 
-	public final void start() {
+	synchronized public final void start() {
+		this._xReference = null;
+		this._yReference = null;
+		this._lastXCorrection = null;
+		this._lastYCorrection = null;
 		this._dataCenter.addCSListener(this);
 	}
 
@@ -42,6 +117,20 @@ public final class CSCorrection implements CSListener {
 		this._dataCenter.removeCSListener(this);
 	}
 
+	/**
+	 * Returns the number of detections used to correct the position.
+	 */
+	synchronized public final int getMatchedCrossings() {
+		return this._matchedCrossings;
+	}
+
+	/**
+	 * Returns the number of detections that matched no expected crossing.
+	 */
+	synchronized public final int getRejectedCrossings() {
+		return this._rejectedCrossings;
+	}
+
 	@Override
 	public final void ping() {
 		// Performs correction in a new thread to not stall the current one.
@@ -53,15 +142,58 @@ public final class CSCorrection implements CSListener {
 		}).start();
 	}
 
-	private void performCorrection() {
+	synchronized private void performCorrection() {
 		Vector csVector = getCSVector();
 		Point position = this._dataCenter.getPosition();
 		Point csLocation = new Point(position.x + csVector.x, position.y
 				+ csVector.y);
 
-		Point gridLineIntersection = getNearestGridLineIntersection(csLocation);
+		LineCrossing[] expectedCrossings = this._dataCenter
+				.getExpectedCrossings();
+		if (expectedCrossings != this._expectedCrossings) {
+			this._expectedCrossings = expectedCrossings;
+			this._isCrossed = expectedCrossings == null ? null
+					: new boolean[expectedCrossings.length];
+		}
+		int xCrossing = findExpectedCrossing(true, csLocation.x,
+				getGate(position, this._lastXCorrection));
+		int yCrossing = findExpectedCrossing(false, csLocation.y,
+				getGate(position, this._lastYCorrection));
+
+		if (xCrossing == NO_CROSSING && yCrossing == NO_CROSSING) {
+			++this._rejectedCrossings;
+			return;
+		}
+		// Ignores a second detection of a line already crossed.
+		if ((xCrossing == NO_CROSSING || this._isCrossed[xCrossing])
+				&& (yCrossing == NO_CROSSING || this._isCrossed[yCrossing]))
+			return;
 
-		correctOdometer(csLocation, gridLineIntersection, csVector);
+		if (xCrossing != NO_CROSSING && yCrossing != NO_CROSSING) {
+			Vector distanceFromGridLineIntersection = new Vector(
+					csLocation.x - this._expectedCrossings[xCrossing].line,
+					csLocation.y - this._expectedCrossings[yCrossing].line);
+			// Either line could have been crossed unless the color sensor is
+			// on the intersection.
+			if (distanceFromGridLineIntersection.norm() >= ABSOLUTE_CORRECTION_BANDWIDTH) {
+				++this._rejectedCrossings;
+				return;
+			}
+			correctIntersection(
+					this._expectedCrossings[xCrossing].line - csVector.x,
+					this._expectedCrossings[yCrossing].line - csVector.y);
+			this._isCrossed[xCrossing] = true;
+			this._isCrossed[yCrossing] = true;
+		} else if (xCrossing != NO_CROSSING) {
+			correctX(position, this._expectedCrossings[xCrossing].line
+					- csVector.x);
+			this._isCrossed[xCrossing] = true;
+		} else {
+			correctY(position, this._expectedCrossings[yCrossing].line
+					- csVector.y);
+			this._isCrossed[yCrossing] = true;
+		}
+		++this._matchedCrossings;
 	}
 
 	private Vector getCSVector() {
@@ -76,57 +208,92 @@ public final class CSCorrection implements CSListener {
 		return new Vector(x, y);
 	}
 
-	private Point getNearestGridLineIntersection(Point csLocation) {
-		double xGridLine, yGridLine;
-
-		double distanceToLowerXGridLine = MathUtility.positiveModulo(
-				csLocation.x, NXTConstants.TILE_DISTANCE);
-		if (distanceToLowerXGridLine <= NXTConstants.TILE_DISTANCE / 2)
-			xGridLine = csLocation.x - distanceToLowerXGridLine;
-		else
-			xGridLine = csLocation.x
-					+ (NXTConstants.TILE_DISTANCE - distanceToLowerXGridLine);
-
-		double distanceToLowerYGridLine = MathUtility.positiveModulo(
-				csLocation.y, NXTConstants.TILE_DISTANCE);
-		if (distanceToLowerYGridLine <= NXTConstants.TILE_DISTANCE / 2)
-			yGridLine = csLocation.y - distanceToLowerYGridLine;
-		else
-			yGridLine = csLocation.y
-					+ (NXTConstants.TILE_DISTANCE - distanceToLowerYGridLine);
-
-		return new Point(xGridLine, yGridLine);
+	/**
+	 * Returns the largest error allowed in a coordinate of the color sensor
+	 * to match an expected crossing, given the position of the robot at the
+	 * last correction of that coordinate.
+	 */
+	private static double getGate(Point position, Point lastCorrection) {
+		if (lastCorrection == null)
+			return CORRECTION_BANDWIDTH;
+		double distance = new Vector(lastCorrection, position).norm();
+		return Math.min(CORRECTION_BANDWIDTH, MINIMUM_GATE + GATE_GROWTH
+				* distance);
 	}
 
-	private void correctOdometer(Point csLocation, Point gridLineIntersection,
-			Vector csVector) {
-		double nearestXGridLine = gridLineIntersection.x;
-		double nearestYGridLine = gridLineIntersection.y;
-
-		Vector distanceFromGridLineIntersection = new Vector(
-				Math.abs(csLocation.x - nearestXGridLine),
-				Math.abs(csLocation.y - nearestYGridLine));
-
-		if (isCloseToGridLineIntersection(distanceFromGridLineIntersection)) {
-			this._dataCenter.setXPosition(gridLineIntersection.x - csVector.x);
-			this._dataCenter.setYPosition(gridLineIntersection.y - csVector.y);
-		} else if (isCloseToGridInXButNotY(distanceFromGridLineIntersection)) {
-			this._dataCenter.setXPosition(nearestXGridLine - csVector.x);
-		} else if (isCloseToGridInYButNotX(distanceFromGridLineIntersection)) {
-			this._dataCenter.setYPosition(nearestYGridLine - csVector.y);
+	/**
+	 * Returns the index of the expected crossing of a line of the given
+	 * direction nearest to the coordinate of the color sensor within the gate,
+	 * or NO_CROSSING if there is none.
+	 */
+	private int findExpectedCrossing(boolean isXLine, double coordinate,
+			double gate) {
+		if (this._expectedCrossings == null)
+			return NO_CROSSING;
+		int nearest = NO_CROSSING;
+		double nearestError = gate;
+		for (int i = 0; i < this._expectedCrossings.length; ++i) {
+			LineCrossing crossing = this._expectedCrossings[i];
+			double error = Math.abs(coordinate - crossing.line);
+			if (crossing.isXLine == isXLine && error <= nearestError) {
+				nearest = i;
+				nearestError = error;
+			}
 		}
+		return nearest;
 	}
 
-	private boolean isCloseToGridLineIntersection(Vector distance) {
-		return distance.norm() < ABSOLUTE_CORRECTION_BANDWIDTH;
+	private void correctIntersection(double x, double y) {
+		Position position = this._dataCenter.getPosition();
+		this._dataCenter.recordCorrection(x - position.x, y - position.y, 0);
+		this._dataCenter.setXPosition(x);
+		this._dataCenter.setYPosition(y);
+		this._xReference = new Point(x, y);
+		this._yReference = new Point(x, y);
+		this._lastXCorrection = new Point(x, y);
+		this._lastYCorrection = new Point(x, y);
 	}
 
-	private boolean isCloseToGridInXButNotY(Vector distance) {
-		return distance.x < CORRECTION_BANDWIDTH && distance.y > distance.x;
+	private void correctX(Point position, double x) {
+		this._dataCenter.recordCorrection(x - position.x, 0, 0);
+		this._dataCenter.setXPosition(x);
+		// An orientation error turns the path driven along y since the last
+		// correction of x, which moves x by minus the error times the distance
+		// driven.
+		if (this._xReference != null
+				&& correctOrientation(x - position.x,
+						-(position.y - this._xReference.y)))
+			this._yReference = null;
+		this._xReference = new Point(x, position.y);
+		this._lastXCorrection = new Point(x, position.y);
 	}
 
-	private boolean isCloseToGridInYButNotX(Vector distance) {
-		return distance.y < CORRECTION_BANDWIDTH && distance.x > distance.y;
+	private void correctY(Point position, double y) {
+		this._dataCenter.recordCorrection(0, y - position.y, 0);
+		this._dataCenter.setYPosition(y);
+		if (this._yReference != null
+				&& correctOrientation(y - position.y, position.x
+						- this._yReference.x))
+			this._xReference = null;
+		this._yReference = new Point(position.x, y);
+		this._lastYCorrection = new Point(position.x, y);
 	}
 
+	/**
+	 * Corrects the orientation given the error in a coordinate and the
+	 * distance driven that turned into that error. Returns true if the
+	 * orientation was corrected.
+	 */
+	private boolean correctOrientation(double error, double leverArm) {
+		if (Math.abs(leverArm) < MINIMUM_LEVER_ARM)
+			return false;
+		double orientationError = Math.toDegrees(error / leverArm);
+		if (Math.abs(orientationError) > MAXIMUM_ORIENTATION_ERROR)
+			return false;
+		this._dataCenter.recordCorrection(0, 0, ORIENTATION_CORRECTION_GAIN
+				* orientationError);
+		this._dataCenter.setOrientation(this._dataCenter.getOrientation()
+				+ ORIENTATION_CORRECTION_GAIN * orientationError);
+		return true;
+	}
 }
@@ -2,9 +2,11 @@ package nxt.nav;
 
 import nxt.NXTConstants;
 import nxt.data.DataCenter;
+import nxt.data.Pair;
 import nxt.data.Point;
 import nxt.data.Position;
 import nxt.data.Triple;
+import nxt.drivers.CSPoller;
 import nxt.util.AngleUtility;
 
 /**
@@ -17,7 +19,25 @@ public final class CSLocalization implements CSListener {
 	private static final long WAIT_TIME_AFTER_LOCALIZING = 100;
 
 	private static final double MAX_INITIAL_ANGLE_ERROR = 5;
-	private static final double DESIRED_ANGLE_PRECISION = 0.5;
+
+	/**
+	 * The speed in deg/s of the sweep across the grid line when refining the
+	 * orientation.
+	 */
+	private static final double REFINEMENT_SPEED = 15;
+
+	/**
+	 * The largest angle swept while refining before giving up, enough to
+	 * cover the initial error on both sides and the width of the line.
+	 */
+	private static final double MAX_REFINEMENT_ANGLE = 4 * MAX_INITIAL_ANGLE_ERROR + 10;
+	private static final long REFINEMENT_POLLING_PERIOD = 5;
+
+	/**
+	 * The longest time in ms to wait for the odometer to pass the time at
+	 * which the sensor left the line.
+	 */
+	private static final long MAX_EXIT_WAIT = 500;
 
 	private static final int NUM_LINES_TO_DETECT = 4;
 	private static final int MAX_TRIES = 3;
@@ -196,23 +216,72 @@ public final class CSLocalization implements CSListener {
 		this._dataCenter.setPosition(actualPosition);
 	}
 
+	/**
+	 * Sweeps the color sensor across the grid line at a constant speed and
+	 * sets the orientation from the middle of the line. The times at which
+	 * the sensor enters and leaves the line are taken from the timestamped
+	 * color sensor values, and the orientations at those times from the pose
+	 * history, so the robot never has to stop on the line.
+	 */
 	private void refineLocalization(Point gridLineIntersection) {
 		this._navigation.travelTo(gridLineIntersection);
 		this._navigation.travelToPrecisely(gridLineIntersection);
 		this._navigation.turnTo(270 - NXTConstants.CS_ANGLE
 				- MAX_INITIAL_ANGLE_ERROR);
-		while (!this._dataCenter.isCSOnGridLine()) {
-			this._navigation.turn(DESIRED_ANGLE_PRECISION);
+
+		long entryTime = -1;
+		long exitTime = -1;
+		Pair<Integer, Long> lastValue = this._dataCenter.getTimedCSValue();
+		double startAngle = this._dataCenter.getOrientation();
+		this._navigation.rotate(REFINEMENT_SPEED);
+		while (exitTime == -1
+				&& AngleUtility.absoluteDifference(
+						this._dataCenter.getOrientation(), startAngle) < MAX_REFINEMENT_ANGLE) {
+			if (this._dataCenter.getCSTime() != lastValue.second.longValue()) {
+				Pair<Integer, Long> value = this._dataCenter.getTimedCSValue();
+				boolean wasOnGridLine = CSPoller.isOnGridLine(lastValue.first);
+				boolean isOnGridLine = CSPoller.isOnGridLine(value.first);
+				// Takes each edge halfway between the samples on either side.
+				long edgeTime = (lastValue.second + value.second) / 2;
+				if (!wasOnGridLine && isOnGridLine && entryTime == -1)
+					entryTime = edgeTime;
+				else if (wasOnGridLine && !isOnGridLine && entryTime != -1)
+					exitTime = edgeTime;
+				lastValue = value;
+			}
+			sleep(REFINEMENT_POLLING_PERIOD);
+		}
+
+		// Keeps turning until the odometer has passed the exit time, unless the
+		// exit time has already left the pose history.
+		Position exitPosition = null;
+		long exitDeadline = System.currentTimeMillis() + MAX_EXIT_WAIT;
+		while (exitTime != -1 && exitPosition == null
+				&& exitTime >= this._dataCenter.getOldestPositionTime()
+				&& System.currentTimeMillis() < exitDeadline) {
+			exitPosition = this._dataCenter.getPositionAtTime(exitTime);
+			if (exitPosition == null)
+				sleep(REFINEMENT_POLLING_PERIOD);
 		}
-		double minimumAngle = this._dataCenter.getOrientation();
-		while (this._dataCenter.isCSOnGridLine()) {
-			this._navigation.turn(DESIRED_ANGLE_PRECISION);
+		this._navigation.floatMotors();
+		if (exitPosition == null)
+			return;
+		Position entryPosition = this._dataCenter.getPositionAtTime(entryTime);
+		if (entryPosition == null)
+			return;
+		double averageAngle = AngleUtility.average(new double[] {
+				entryPosition.orientation, exitPosition.orientation });
+		waitForOtherThreadsToUpdate();
+		this._dataCenter.setOrientation(this._dataCenter.getOrientation() + 270
+				- averageAngle - NXTConstants.CS_ANGLE);
+	}
+
+	private static void sleep(long time) {
+		try {
+			Thread.sleep(time);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
-		double maximumAngle = this._dataCenter.getOrientation();
-		double averageAngle = AngleUtility.average(new double[] { minimumAngle,
-				maximumAngle });
-		this._dataCenter.setOrientation(maximumAngle + 270 - averageAngle
-				- NXTConstants.CS_ANGLE);
 	}
 
 	private static void waitForOtherThreadsToUpdate() {
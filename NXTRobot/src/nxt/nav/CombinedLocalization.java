@@ -0,0 +1,64 @@
+package nxt.nav;
+
+import nxt.data.DataCenter;
+
+/**
+ * A class used to localize the robot in the starting corner in a single turn,
+ * using the three ultrasonic sensors and the color sensor together. The
+ * orientations at which the color sensor crosses a grid line are recorded
+ * during the same turn as the ultrasonic readings, and the pose is fit to both
+ * by USWallFit.
+ *
+ * The turn stops once the fit is good enough. If it never is, or a crossing
+ * cannot be matched to a grid line, the robot falls back to localizing with
+ * the color sensor alone, starting from the best fit.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class CombinedLocalization implements CSListener {
+	private static final long MIN_DELAY_BETWEEN_GRID_DETECTION = 100;
+	private long _lastPingTime;
+
+	private final DataCenter _dataCenter;
+	private final CSLocalization _csLocalization;
+	private final USWallFit _wallFit;
+	private final USWallSweep _sweep;
+
+	public CombinedLocalization(DataCenter dataCenter, Navigation navigation,
+			CSLocalization csLocalization) {
+		this._dataCenter = dataCenter;
+		this._csLocalization = csLocalization;
+		this._wallFit = new USWallFit();
+		this._sweep = new USWallSweep(dataCenter, navigation, this._wallFit);
+		this._lastPingTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Performs localization. The side ultrasonic sensors and the color sensor
+	 * must be running.
+	 */
+	public final void doLocalization() {
+		synchronized (this._wallFit) {
+			this._wallFit.clear();
+		}
+		this._dataCenter.addCSListener(this);
+		boolean isAccepted = this._sweep.sweep();
+		this._dataCenter.removeCSListener(this);
+
+		if (!isAccepted)
+			this._csLocalization.doLocalization();
+	}
+
+	@Override
+	public final void ping() {
+		long currentPingTime = System.currentTimeMillis();
+		if (currentPingTime - this._lastPingTime >= MIN_DELAY_BETWEEN_GRID_DETECTION) {
+			double angle = this._dataCenter.getOrientation();
+			synchronized (this._wallFit) {
+				this._wallFit.addCrossing(angle);
+			}
+		}
+		this._lastPingTime = currentPingTime;
+	}
+}
@@ -0,0 +1,418 @@
+package nxt.nav;
+
+import nxt.NXTConstants;
+import nxt.data.DataCenter;
+import nxt.data.Position;
+import nxt.drivers.USPoller;
+import nxt.nav.path.Grid;
+import nxt.util.AngleUtility;
+
+/**
+ * A class used to localize the robot anywhere on the field, for instance after
+ * a collision, from a single turn in place with the three ultrasonic sensors.
+ *
+ * The readings of the turn are kept as the distance from the center of the
+ * robot in each of RangeSignatures.NUMBER_OF_HEADINGS directions of the
+ * odometer. They are compared with the distances expected from the center of
+ * every accessible tile, shifted by every heading step, so the search tries
+ * every tile and every orientation error without casting any ray. Tiles are
+ * tried nearest to the odometer position first, and the search stops when
+ * the time budget runs out. The best few matches are then refined in position
+ * and orientation against rays cast from the exact pose. The odometer is
+ * only set if the best match is good and clearly better than any match
+ * elsewhere, since some places look alike to the sensors.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class GlobalLocalization {
+	private static final double SEARCH_SPEED = 30;
+	private static final double SWEEP_ANGLE = 360;
+
+	private static final int SENSOR_READING_FAILED = 255;
+	private static final int NO_SAMPLE = 255;
+
+	/**
+	 * The largest error in cm counted for a direction, so that unexpected
+	 * obstacles and missed echoes count as much as a poor match and no more.
+	 */
+	private static final int MAXIMUM_ERROR = 20;
+
+	/**
+	 * The largest difference in cm between consecutive readings of a sensor
+	 * for them to be used. Spurious echoes rarely come twice in a row.
+	 */
+	private static final int MAXIMUM_READING_CHANGE = 3;
+
+	/**
+	 * The fewest directions with readings needed to search.
+	 */
+	private static final int MINIMUM_SAMPLES = 24;
+
+	private static final int NUMBER_OF_HYPOTHESES = 4;
+
+	/**
+	 * The largest mean error in cm per direction accepted to set the odometer,
+	 * and the least by which any other pose must match worse. Places that
+	 * look alike within MAX_RANGE, such as along a wall, are not told apart.
+	 */
+	private static final double MAXIMUM_COST = 3;
+	private static final double MINIMUM_COST_MARGIN = 0.5;
+
+	/**
+	 * The distances in cm and in degrees within which two poses are taken as
+	 * the same, as for matches in neighboring tiles.
+	 */
+	private static final double SAME_POSITION_DISTANCE = 0.5
+			* NXTConstants.TILE_DISTANCE;
+	private static final double SAME_ORIENTATION_ANGLE = 10;
+
+	/**
+	 * The part of the time budget in ms kept to refine the best matches.
+	 */
+	private static final long MINIMUM_REFINEMENT_TIME = 200;
+
+	/**
+	 * The first and last steps in cm and in degrees of the refinement.
+	 */
+	private static final double POSITION_STEP = 4;
+	private static final double ANGLE_STEP = 4;
+	private static final double MINIMUM_POSITION_STEP = 1;
+
+	private final DataCenter _dataCenter;
+	private final Navigation _navigation;
+	private final RangeSignatures _signatures;
+	private final long _timeBudget;
+
+	private final int[] _ranges;
+	private final int[] _lastSensorRanges;
+	private final int[] _tileOrder;
+	private final double[] _tileDistances;
+
+	/**
+	 * The best matches found, as tile indices and heading shifts, with their
+	 * total errors, best first.
+	 */
+	private final int[] _hypothesisTiles;
+	private final int[] _hypothesisShifts;
+	private final int[] _hypothesisErrors;
+	private int _numberOfHypotheses;
+	private int _numberOfSamples;
+	private double _bestCost;
+	private double _otherCost;
+
+	/**
+	 * Creates a localizer for the given grid, computing the expected distances
+	 * from every tile. This takes longer than a search, so the localizer is
+	 * meant to be created before it is needed. The time budget is in ms, and
+	 * covers both the search and the refinement.
+	 */
+	public GlobalLocalization(DataCenter dataCenter, Navigation navigation,
+			Grid grid, long timeBudget) {
+		this._dataCenter = dataCenter;
+		this._navigation = navigation;
+		this._signatures = new RangeSignatures(grid);
+		this._timeBudget = timeBudget;
+		this._ranges = new int[RangeSignatures.NUMBER_OF_HEADINGS];
+		this._lastSensorRanges = new int[USWallFit.SENSOR_ANGLES.length];
+		int numberOfTiles = this._signatures.getNumberOfTiles();
+		this._tileOrder = new int[numberOfTiles];
+		this._tileDistances = new double[numberOfTiles];
+		this._hypothesisTiles = new int[NUMBER_OF_HYPOTHESES];
+		this._hypothesisShifts = new int[NUMBER_OF_HYPOTHESES];
+		this._hypothesisErrors = new int[NUMBER_OF_HYPOTHESES];
+		clear();
+	}
+
+	/**
+	 * Performs localization and returns the poses that best match the turn,
+	 * best first. The odometer is set to the best one if it matches well
+	 * enough. The side ultrasonic sensors must be running.
+	 */
+	public final Position[] doLocalization() {
+		clear();
+		boolean wasWallFollowing = this._dataCenter.isWallFollowing();
+		this._dataCenter.setWallFollowing(true);
+		USPoller.waitTimeRequiredForInitialization();
+
+		double sweptAngle = 0;
+		this._navigation.rotate(SEARCH_SPEED);
+		double lastAngle = this._dataCenter.getOrientation();
+		while (sweptAngle < SWEEP_ANGLE) {
+			double angle = this._dataCenter.getOrientation();
+			sweptAngle += Math.abs(AngleUtility.difference(angle, lastAngle));
+			lastAngle = angle;
+			for (int i = 0; i < USWallFit.SENSOR_ANGLES.length; ++i) {
+				addSample(i, angle, this._dataCenter
+						.getRawUSDistanceAtAngle(USWallFit.SENSOR_ANGLES[i]));
+			}
+			USPoller.waitTimeRequiredForPolling();
+		}
+		this._navigation.floatMotors();
+		this._dataCenter.setWallFollowing(wasWallFollowing);
+
+		Position odometerPosition = this._dataCenter.getPosition();
+		Position[] hypotheses = findHypotheses(odometerPosition);
+		if (isMatch()) {
+			// Keeps the turning done during the search, since the hypotheses
+			// already include the turning done up to its start.
+			double orientationChange = AngleUtility.difference(
+					this._dataCenter.getOrientation(),
+					odometerPosition.orientation);
+			this._dataCenter.setPosition(hypotheses[0].x, hypotheses[0].y,
+					hypotheses[0].orientation + orientationChange);
+		}
+		return hypotheses;
+	}
+
+	/**
+	 * Returns the mean error in cm per direction of the best pose found by the
+	 * last search.
+	 */
+	public final double getBestCost() {
+		return this._bestCost;
+	}
+
+	/**
+	 * Returns true if the best pose found by the last search matches well and
+	 * no other pose comes close.
+	 */
+	public final boolean isMatch() {
+		return this._bestCost <= MAXIMUM_COST
+				&& this._otherCost - this._bestCost >= MINIMUM_COST_MARGIN;
+	}
+
+	final void clear() {
+		for (int i = 0; i < RangeSignatures.NUMBER_OF_HEADINGS; ++i) {
+			this._ranges[i] = NO_SAMPLE;
+		}
+		for (int i = 0; i < USWallFit.SENSOR_ANGLES.length; ++i) {
+			this._lastSensorRanges[i] = NO_SAMPLE;
+		}
+		this._numberOfHypotheses = 0;
+		this._numberOfSamples = 0;
+		this._bestCost = Double.POSITIVE_INFINITY;
+		this._otherCost = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a reading from the sensor with the given index in
+	 * USWallFit.SENSOR_ANGLES, taken at the given odometer orientation. The
+	 * reading is only used if it agrees with the last one from the sensor.
+	 */
+	final void addSample(int sensor, double orientation, int distance) {
+		int range = RangeSignatures.MAX_RANGE;
+		if (distance != SENSOR_READING_FAILED)
+			range = (int) Math.min(RangeSignatures.MAX_RANGE, distance
+					+ USWallFit.SENSOR_DISTANCES[sensor]);
+		int lastRange = this._lastSensorRanges[sensor];
+		this._lastSensorRanges[sensor] = range;
+		if (lastRange == NO_SAMPLE
+				|| Math.abs(range - lastRange) > MAXIMUM_READING_CHANGE)
+			return;
+		range = Math.max(range, lastRange);
+
+		double angle = AngleUtility.normalize(orientation
+				+ USWallFit.SENSOR_ANGLES[sensor]);
+		int heading = (int) (angle / RangeSignatures.HEADING_STEP)
+				% RangeSignatures.NUMBER_OF_HEADINGS;
+		if (this._ranges[heading] == NO_SAMPLE) {
+			this._ranges[heading] = range;
+			++this._numberOfSamples;
+		} else if (range < this._ranges[heading]) {
+			this._ranges[heading] = range;
+		}
+	}
+
+	/**
+	 * Returns the poses that best match the samples, best first, given the
+	 * position of the odometer where the samples were taken.
+	 */
+	final Position[] findHypotheses(Position odometerPosition) {
+		if (this._numberOfSamples < MINIMUM_SAMPLES)
+			return new Position[0];
+		long startTime = System.currentTimeMillis();
+		long deadline = startTime + this._timeBudget;
+		search(odometerPosition, startTime
+				+ Math.max(0, this._timeBudget - MINIMUM_REFINEMENT_TIME));
+
+		Position[] hypotheses = new Position[this._numberOfHypotheses];
+		double[] costs = new double[this._numberOfHypotheses];
+		for (int i = 0; i < this._numberOfHypotheses; ++i) {
+			int tile = this._hypothesisTiles[i];
+			hypotheses[i] = new Position(
+					(this._signatures.getTileX(tile) + 0.5)
+							* NXTConstants.TILE_DISTANCE,
+					(this._signatures.getTileY(tile) + 0.5)
+							* NXTConstants.TILE_DISTANCE,
+					this._hypothesisShifts[i] * RangeSignatures.HEADING_STEP);
+			costs[i] = (double) this._hypothesisErrors[i]
+					/ this._numberOfSamples;
+			if (System.currentTimeMillis() < deadline)
+				costs[i] = refine(hypotheses[i], deadline);
+		}
+		// Sorts by the refined costs.
+		for (int i = 1; i < hypotheses.length; ++i) {
+			for (int j = i; j > 0 && costs[j] < costs[j - 1]; --j) {
+				Position position = hypotheses[j];
+				hypotheses[j] = hypotheses[j - 1];
+				hypotheses[j - 1] = position;
+				double cost = costs[j];
+				costs[j] = costs[j - 1];
+				costs[j - 1] = cost;
+			}
+		}
+		for (Position hypothesis : hypotheses) {
+			hypothesis.orientation = AngleUtility
+					.normalize(odometerPosition.orientation
+							+ hypothesis.orientation);
+		}
+		if (hypotheses.length > 0)
+			this._bestCost = costs[0];
+		for (int i = 1; i < hypotheses.length; ++i) {
+			if (!isSamePose(hypotheses[0], hypotheses[i])) {
+				this._otherCost = costs[i];
+				break;
+			}
+		}
+		return hypotheses;
+	}
+
+	private static boolean isSamePose(Position first, Position second) {
+		double dx = first.x - second.x;
+		double dy = first.y - second.y;
+		return Math.sqrt(dx * dx + dy * dy) <= SAME_POSITION_DISTANCE
+				&& AngleUtility.absoluteDifference(first.orientation,
+						second.orientation) <= SAME_ORIENTATION_ANGLE;
+	}
+
+	/**
+	 * Compares the samples with the expected distances from each tile,
+	 * nearest to the odometer position first, until the deadline.
+	 */
+	private void search(Position odometerPosition, long deadline) {
+		int numberOfTiles = this._signatures.getNumberOfTiles();
+		for (int i = 0; i < numberOfTiles; ++i) {
+			double dx = (this._signatures.getTileX(i) + 0.5)
+					* NXTConstants.TILE_DISTANCE - odometerPosition.x;
+			double dy = (this._signatures.getTileY(i) + 0.5)
+					* NXTConstants.TILE_DISTANCE - odometerPosition.y;
+			double distance = dx * dx + dy * dy;
+			int j = i;
+			for (; j > 0 && this._tileDistances[j - 1] > distance; --j) {
+				this._tileDistances[j] = this._tileDistances[j - 1];
+				this._tileOrder[j] = this._tileOrder[j - 1];
+			}
+			this._tileDistances[j] = distance;
+			this._tileOrder[j] = i;
+		}
+
+		int numberOfHeadings = RangeSignatures.NUMBER_OF_HEADINGS;
+		for (int i = 0; i < numberOfTiles; ++i) {
+			if (System.currentTimeMillis() > deadline)
+				break;
+			int tile = this._tileOrder[i];
+			// Keeps one shift per tile, and stops adding errors once the shift
+			// cannot be kept. Once all NUMBER_OF_HYPOTHESES are found, that is
+			// when the error reaches the worst one kept, which is the fourth
+			// best error so far.
+			int bestError = Integer.MAX_VALUE;
+			if (this._numberOfHypotheses == NUMBER_OF_HYPOTHESES)
+				bestError = this._hypothesisErrors[NUMBER_OF_HYPOTHESES - 1];
+			int bestShift = -1;
+			for (int shift = 0; shift < numberOfHeadings; ++shift) {
+				int error = 0;
+				for (int heading = 0; heading < numberOfHeadings
+						&& error < bestError; ++heading) {
+					int range = this._ranges[heading];
+					if (range == NO_SAMPLE)
+						continue;
+					int difference = Math.abs(range
+							- this._signatures.getExpectedRange(tile,
+									(heading + shift) % numberOfHeadings));
+					error += Math.min(difference, MAXIMUM_ERROR);
+				}
+				if (error < bestError) {
+					bestError = error;
+					bestShift = shift;
+				}
+			}
+			if (bestShift >= 0)
+				addHypothesis(tile, bestShift, bestError);
+		}
+	}
+
+	private void addHypothesis(int tile, int shift, int error) {
+		int i = Math.min(this._numberOfHypotheses, NUMBER_OF_HYPOTHESES - 1);
+		for (; i > 0 && this._hypothesisErrors[i - 1] > error; --i) {
+			this._hypothesisTiles[i] = this._hypothesisTiles[i - 1];
+			this._hypothesisShifts[i] = this._hypothesisShifts[i - 1];
+			this._hypothesisErrors[i] = this._hypothesisErrors[i - 1];
+		}
+		this._hypothesisTiles[i] = tile;
+		this._hypothesisShifts[i] = shift;
+		this._hypothesisErrors[i] = error;
+		if (this._numberOfHypotheses < NUMBER_OF_HYPOTHESES)
+			++this._numberOfHypotheses;
+	}
+
+	/**
+	 * Moves the given pose, with the orientation as the error of the odometer
+	 * orientation, to the nearby pose that best matches the samples. Returns
+	 * the mean error in cm per direction there. Stops at the given deadline.
+	 */
+	private double refine(Position pose, long deadline) {
+		double positionStep = POSITION_STEP;
+		double angleStep = ANGLE_STEP;
+		double cost = computeCost(pose);
+		while (positionStep >= MINIMUM_POSITION_STEP
+				&& System.currentTimeMillis() < deadline) {
+			boolean isImproved = false;
+			for (int i = 0; i < 6; ++i) {
+				Position neighbor = new Position(pose);
+				double sign = i % 2 == 0 ? 1 : -1;
+				if (i < 2)
+					neighbor.x += sign * positionStep;
+				else if (i < 4)
+					neighbor.y += sign * positionStep;
+				else
+					neighbor.orientation += sign * angleStep;
+				double neighborCost = computeCost(neighbor);
+				if (neighborCost < cost) {
+					cost = neighborCost;
+					pose.x = neighbor.x;
+					pose.y = neighbor.y;
+					pose.orientation = neighbor.orientation;
+					isImproved = true;
+				}
+			}
+			if (!isImproved) {
+				positionStep /= 2;
+				angleStep /= 2;
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns the mean error in cm per direction between the samples and the
+	 * distances expected from the given pose, with the orientation as the
+	 * error of the odometer orientation.
+	 */
+	private double computeCost(Position pose) {
+		double cos = Math.cos(Math.toRadians(pose.orientation));
+		double sin = Math.sin(Math.toRadians(pose.orientation));
+		int error = 0;
+		int numberOfHeadings = RangeSignatures.NUMBER_OF_HEADINGS;
+		for (int heading = 0; heading < numberOfHeadings; ++heading) {
+			int range = this._ranges[heading];
+			if (range == NO_SAMPLE)
+				continue;
+			int difference = Math.abs(range
+					- this._signatures.computeExpectedRange(pose.x, pose.y,
+							heading, cos, sin));
+			error += Math.min(difference, MAXIMUM_ERROR);
+		}
+		return (double) error / this._numberOfSamples;
+	}
+}
@@ -0,0 +1,497 @@
+package nxt.nav;
+
+import nxt.NXTConstants;
+import nxt.data.DataCenter;
+import nxt.data.LineCrossing;
+import nxt.data.Position;
+import nxt.util.AngleUtility;
+
+/**
+ * A class that localizes the robot from the grid lines crossed by the color
+ * sensor while driving, as a replacement for CSCorrection.
+ *
+ * The uncertainty of the odometer is kept as a covariance over x, y and the
+ * orientation, which grows with the distance driven and the angle turned. The
+ * odometer is sampled periodically so that a path that comes back on itself
+ * still counts in full. Each crossing is matched to the nearest of the grid
+ * lines Navigation expects the color sensor to cross on its current path, or
+ * to the nearest grid line when the robot is turning in place, so that dark
+ * obstacles and shadows are not taken for lines. A match corrects the
+ * odometer with a Kalman filter update. A crossing only measures
+ * one coordinate of the color sensor, but since an error in the orientation
+ * moves the robot sideways as it drives, crossings of lines in both
+ * directions also correct the orientation. The covariance tells when the
+ * position is known well enough to skip localizing with CSLocalization.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class LineCrossingLocalization implements CSListener {
+	private static final long MIN_DELAY_BETWEEN_GRID_DETECTION = 100;
+
+	/**
+	 * The longest time in ms to wait for the odometer to reach the time of a
+	 * crossing.
+	 */
+	private static final long MAX_POSE_WAIT = 100;
+	private static final long POSE_POLLING_PERIOD = 10;
+
+	/**
+	 * The period in ms at which the covariance is grown from the odometer.
+	 */
+	private static final long PROPAGATION_PERIOD = 50;
+
+	/**
+	 * The largest distance in cm between the color sensor and a grid line for
+	 * a crossing to be matched to it, and the largest distance in standard
+	 * deviations.
+	 */
+	private static final double MATCHING_BANDWIDTH = 5;
+	private static final double MATCHING_DEVIATIONS = 3;
+
+	private static final int NO_CROSSING = -1;
+
+	/**
+	 * The largest variance in cm^2 of the measured coordinate of the color
+	 * sensor for a crossing to be matched. Past it, the nearest grid line may
+	 * not be the one crossed.
+	 */
+	private static final double MAXIMUM_MATCHING_VARIANCE = 25;
+
+	/**
+	 * The standard deviation in cm of the position of the color sensor at a
+	 * crossing.
+	 */
+	private static final double CROSSING_DEVIATION = 0.5;
+
+	/**
+	 * The standard deviations of the position in cm and the orientation in
+	 * degrees after localizing.
+	 */
+	private static final double LOCALIZED_POSITION_DEVIATION = 1;
+	private static final double LOCALIZED_ORIENTATION_DEVIATION = 1;
+
+	/**
+	 * The growth of the uncertainty of the odometer: the standard deviation of
+	 * the distance error per cm driven, of the orientation error in degrees
+	 * per tile driven, and of the orientation error per degree turned. These
+	 * errors are systematic, so the deviations grow with the total distance
+	 * driven and angle turned since the last crossing, not with their square
+	 * roots.
+	 */
+	private static final double DISTANCE_ERROR = 0.01;
+	private static final double DRIFT_ERROR = 0.2;
+	private static final double TURN_ERROR = 0.005;
+
+	/**
+	 * The largest standard deviations of the position in cm and the
+	 * orientation in degrees for the position to be trusted.
+	 */
+	private static final double CONFIDENT_POSITION_DEVIATION = 1;
+	private static final double CONFIDENT_ORIENTATION_DEVIATION = 1.5;
+
+	private final DataCenter _dataCenter;
+
+	private long _lastPingTime;
+	private boolean _isRunning;
+	private Thread _propagationThread;
+	private int _rejectedCrossings;
+
+	/**
+	 * The crossings expected on the last path seen, and which of them were
+	 * already matched.
+	 */
+	private LineCrossing[] _expectedCrossings;
+	private boolean[] _isCrossed;
+
+	/**
+	 * The covariance of the odometer over x, y and the orientation in radians,
+	 * at the last position.
+	 */
+	private final double[][] _covariance;
+	private final double[][] _turnedCovariance;
+	private double _lastX;
+	private double _lastY;
+	private double _lastOrientation;
+	private double _distanceDriven;
+	private double _angleTurned;
+
+	public LineCrossingLocalization(DataCenter dataCenter) {
+		this._dataCenter = dataCenter;
+		this._lastPingTime = System.currentTimeMillis();
+		this._isRunning = false;
+		this._rejectedCrossings = 0;
+		this._covariance = new double[3][3];
+		this._turnedCovariance = new double[3][3];
+		reset();
+	}
+
+	synchronized public final void start() {
+		this._isRunning = true;
+		this._dataCenter.addCSListener(this);
+		this._propagationThread = new Thread() {
+			@Override
+			public void run() {
+				while (propagate(this)) {
+					try {
+						Thread.sleep(PROPAGATION_PERIOD);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		this._propagationThread.start();
+	}
+
+	/**
+	 * Stops localizing. Crossings still being processed are dropped, so the
+	 * odometer is not changed after this returns.
+	 */
+	synchronized public final void stop() {
+		this._dataCenter.removeCSListener(this);
+		this._isRunning = false;
+		this._propagationThread = null;
+	}
+
+	/**
+	 * Starts over from the current position, which must have just been
+	 * localized.
+	 */
+	synchronized public final void reset() {
+		Position position = this._dataCenter.getPosition();
+		this._lastX = position.x;
+		this._lastY = position.y;
+		this._lastOrientation = position.orientation;
+		this._distanceDriven = 0;
+		this._angleTurned = 0;
+		double positionVariance = LOCALIZED_POSITION_DEVIATION
+				* LOCALIZED_POSITION_DEVIATION;
+		double orientationDeviation = Math
+				.toRadians(LOCALIZED_ORIENTATION_DEVIATION);
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				this._covariance[i][j] = 0;
+			}
+		}
+		this._covariance[0][0] = positionVariance;
+		this._covariance[1][1] = positionVariance;
+		this._covariance[2][2] = orientationDeviation * orientationDeviation;
+	}
+
+	/**
+	 * Returns true if the crossings seen so far pin down the current position
+	 * well enough to skip localizing with CSLocalization.
+	 */
+	synchronized public final boolean isConfident() {
+		double[][] covariance = new double[3][3];
+		predict(this._dataCenter.getPosition(), covariance);
+		double positionVariance = CONFIDENT_POSITION_DEVIATION
+				* CONFIDENT_POSITION_DEVIATION;
+		double orientationDeviation = Math
+				.toRadians(CONFIDENT_ORIENTATION_DEVIATION);
+		return covariance[0][0] <= positionVariance
+				&& covariance[1][1] <= positionVariance
+				&& covariance[2][2] <= orientationDeviation
+						* orientationDeviation;
+	}
+
+	/**
+	 * Returns the number of crossings that matched no line, or could have
+	 * been either of two lines.
+	 */
+	synchronized public final int getRejectedCrossings() {
+		return this._rejectedCrossings;
+	}
+
+	@Override
+	public final void ping() {
+		long currentPingTime = System.currentTimeMillis();
+		boolean isNewLine = currentPingTime - this._lastPingTime >= MIN_DELAY_BETWEEN_GRID_DETECTION;
+		this._lastPingTime = currentPingTime;
+		if (!isNewLine)
+			return;
+		final long time = this._dataCenter.getTimedCSValue().second;
+		// The path may be over by the time the crossing is processed.
+		final LineCrossing[] expectedCrossings = this._dataCenter
+				.getExpectedCrossings();
+		// Localizes in a new thread to not stall the current one.
+		(new Thread() {
+			@Override
+			public void run() {
+				addCrossing(getPositionAtTime(time), expectedCrossings);
+			}
+		}).start();
+	}
+
+	/**
+	 * Grows the covariance up to the current position of the odometer.
+	 * Returns false once the given thread should stop propagating.
+	 */
+	synchronized final boolean propagate(Thread thread) {
+		if (thread != this._propagationThread)
+			return false;
+		Position position = this._dataCenter.getPosition();
+		predict(position, this._covariance);
+		this._distanceDriven += getDistanceFromLast(position);
+		this._angleTurned += getAngleFromLast(position);
+		this._lastX = position.x;
+		this._lastY = position.y;
+		this._lastOrientation = position.orientation;
+		return true;
+	}
+
+	/**
+	 * Returns the odometer position at the given time, waiting for the
+	 * odometer to reach it if needed.
+	 */
+	private Position getPositionAtTime(long time) {
+		long deadline = System.currentTimeMillis() + MAX_POSE_WAIT;
+		while (System.currentTimeMillis() < deadline) {
+			Position position = this._dataCenter.getPositionAtTime(time);
+			if (position != null)
+				return position;
+			try {
+				Thread.sleep(POSE_POLLING_PERIOD);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		return this._dataCenter.getPosition();
+	}
+
+	/**
+	 * Adds a crossing seen with the robot at the given odometer position, and
+	 * corrects the odometer if it can be matched to one of the expected
+	 * crossings, or to any grid line if they are null.
+	 */
+	synchronized final void addCrossing(Position position,
+			LineCrossing[] expectedCrossings) {
+		if (!this._isRunning)
+			return;
+		// The crossing is usually a little older than the last propagation,
+		// so the motion in between is counted twice, which is negligible.
+		double[][] covariance = new double[3][3];
+		predict(position, covariance);
+
+		double csAngle = Math.toRadians(position.orientation
+				+ NXTConstants.CS_ANGLE);
+		double csXOffset = NXTConstants.CS_DISTANCE * Math.cos(csAngle);
+		double csYOffset = NXTConstants.CS_DISTANCE * Math.sin(csAngle);
+		double csX = position.x + csXOffset;
+		double csY = position.y + csYOffset;
+
+		// The measurement is the coordinate of the color sensor normal to the
+		// line, and the row is its derivative with respect to x, y and the
+		// orientation.
+		double[] xRow = { 1, 0, -csYOffset };
+		double[] yRow = { 0, 1, csXOffset };
+		if (expectedCrossings != this._expectedCrossings) {
+			this._expectedCrossings = expectedCrossings;
+			this._isCrossed = expectedCrossings == null ? null
+					: new boolean[expectedCrossings.length];
+		}
+		int xCrossing = findCrossing(true, csX);
+		int yCrossing = findCrossing(false, csY);
+		double xInnovation = getLine(xCrossing, csX) - csX;
+		double yInnovation = getLine(yCrossing, csY) - csY;
+		double xVariance = getMeasurementVariance(covariance, xRow);
+		double yVariance = getMeasurementVariance(covariance, yRow);
+		boolean isXLine = isMatch(xInnovation, xVariance);
+		boolean isYLine = isMatch(yInnovation, yVariance);
+		// Skips crossings near an intersection, where either line could have
+		// been crossed, and crossings of no line.
+		if (isXLine == isYLine) {
+			++this._rejectedCrossings;
+			return;
+		}
+		if (this._isCrossed != null)
+			this._isCrossed[isXLine ? xCrossing : yCrossing] = true;
+		double[] row = isXLine ? xRow : yRow;
+		double innovation = isXLine ? xInnovation : yInnovation;
+		double innovationVariance = isXLine ? xVariance : yVariance;
+
+		double[] gain = new double[3];
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				gain[i] += covariance[i][j] * row[j];
+			}
+		}
+		double[] correction = new double[3];
+		for (int i = 0; i < 3; ++i) {
+			gain[i] /= innovationVariance;
+			correction[i] = gain[i] * innovation;
+		}
+		double[] rowTimesCovariance = new double[3];
+		for (int j = 0; j < 3; ++j) {
+			for (int k = 0; k < 3; ++k) {
+				rowTimesCovariance[j] += row[k] * covariance[k][j];
+			}
+		}
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				this._covariance[i][j] = covariance[i][j] - gain[i]
+						* rowTimesCovariance[j];
+			}
+		}
+		this._lastX = position.x + correction[0];
+		this._lastY = position.y + correction[1];
+		this._lastOrientation = position.orientation
+				+ Math.toDegrees(correction[2]);
+		this._distanceDriven = 0;
+		this._angleTurned = 0;
+
+		this._dataCenter.recordCorrection(correction[0], correction[1],
+				Math.toDegrees(correction[2]));
+		// Moves the current position as the position at the crossing was
+		// moved, turning the path driven since by the orientation correction.
+		Position current = this._dataCenter.getPosition();
+		this._dataCenter.setPosition(current.x + correction[0] - correction[2]
+				* (current.y - position.y), current.y + correction[1]
+				+ correction[2] * (current.x - position.x),
+				AngleUtility.normalize(current.orientation
+						+ Math.toDegrees(correction[2])));
+	}
+
+	/**
+	 * Returns the variance of the measured coordinate of the color sensor.
+	 */
+	private static double getMeasurementVariance(double[][] covariance,
+			double[] row) {
+		double variance = CROSSING_DEVIATION * CROSSING_DEVIATION;
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				variance += row[i] * covariance[i][j] * row[j];
+			}
+		}
+		return variance;
+	}
+
+	/**
+	 * Returns true if the line found can be the one crossed. A NaN innovation,
+	 * for no line found, never matches. Once the odometer is too uncertain,
+	 * the nearest line may not be the right one, so no line is matched.
+	 */
+	private static boolean isMatch(double innovation, double variance) {
+		return Math.abs(innovation) <= MATCHING_BANDWIDTH
+				&& innovation * innovation <= MATCHING_DEVIATIONS
+						* MATCHING_DEVIATIONS * variance
+				&& variance <= MAXIMUM_MATCHING_VARIANCE;
+	}
+
+	/**
+	 * Stores in the given array the covariance of the odometer at the given
+	 * position, grown from the covariance at the last position. The array may
+	 * be the covariance itself. The growth is only accurate for short moves,
+	 * since the net move is taken as the distance driven and turned.
+	 */
+	private void predict(Position position, double[][] covariance) {
+		double dx = position.x - this._lastX;
+		double dy = position.y - this._lastY;
+		double distance = getDistanceFromLast(position);
+		double turnedAngle = getAngleFromLast(position);
+
+		// The orientation error gained along the way is counted as if gained
+		// at the last position, which overestimates how far it moves the
+		// robot sideways.
+		double driftVariance = getGrowth(
+				Math.toRadians(DRIFT_ERROR) / NXTConstants.TILE_DISTANCE,
+				this._distanceDriven, distance);
+		double turnVariance = getGrowth(Math.toRadians(TURN_ERROR),
+				this._angleTurned, turnedAngle);
+		if (covariance != this._covariance) {
+			for (int i = 0; i < 3; ++i) {
+				for (int j = 0; j < 3; ++j) {
+					covariance[i][j] = this._covariance[i][j];
+				}
+			}
+		}
+		covariance[2][2] += driftVariance + turnVariance;
+
+		// An orientation error at the last position turns the path driven
+		// since about that position.
+		double[] column = { -dy, dx, 1 };
+		double[][] turned = this._turnedCovariance;
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				turned[i][j] = covariance[i][j];
+				if (i < 2)
+					turned[i][j] += column[i] * covariance[2][j];
+			}
+		}
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				covariance[i][j] = turned[i][j];
+				if (j < 2)
+					covariance[i][j] += turned[i][2] * column[j];
+			}
+		}
+
+		double distanceVariance = getGrowth(DISTANCE_ERROR,
+				this._distanceDriven, distance);
+		covariance[0][0] += distanceVariance;
+		covariance[1][1] += distanceVariance;
+	}
+
+	private double getDistanceFromLast(Position position) {
+		double dx = position.x - this._lastX;
+		double dy = position.y - this._lastY;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private double getAngleFromLast(Position position) {
+		return AngleUtility.absoluteDifference(position.orientation,
+				this._lastOrientation);
+	}
+
+	/**
+	 * Returns the growth of the variance of a systematic error with the given
+	 * deviation per unit when the total goes up by the given increment.
+	 */
+	private static double getGrowth(double deviationPerUnit, double total,
+			double increment) {
+		double newTotal = total + increment;
+		return deviationPerUnit * deviationPerUnit
+				* (newTotal * newTotal - total * total);
+	}
+
+	/**
+	 * Returns the index of the expected crossing of a line of the given
+	 * direction not matched yet that is nearest to the given coordinate of
+	 * the color sensor, or NO_CROSSING if there is none or no crossings are
+	 * expected.
+	 */
+	private int findCrossing(boolean isXLine, double coordinate) {
+		if (this._expectedCrossings == null)
+			return NO_CROSSING;
+		int nearest = NO_CROSSING;
+		double nearestError = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < this._expectedCrossings.length; ++i) {
+			LineCrossing crossing = this._expectedCrossings[i];
+			double error = Math.abs(crossing.line - coordinate);
+			if (crossing.isXLine == isXLine && !this._isCrossed[i]
+					&& error < nearestError) {
+				nearest = i;
+				nearestError = error;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Returns the line of the given expected crossing, NaN if there is none,
+	 * or the nearest grid line if no crossings are expected.
+	 */
+	private double getLine(int crossing, double coordinate) {
+		if (this._expectedCrossings == null)
+			return findNearestLine(coordinate);
+		if (crossing == NO_CROSSING)
+			return Double.NaN;
+		return this._expectedCrossings[crossing].line;
+	}
+
+	private static double findNearestLine(double coordinate) {
+		return Math.round(coordinate / NXTConstants.TILE_DISTANCE)
+				* NXTConstants.TILE_DISTANCE;
+	}
+}
@@ -0,0 +1,31 @@
+package nxt.nav;
+
+import nxt.data.DataCenter;
+
+/**
+ * A class used to localize the robot in the starting corner using all three
+ * ultrasonic sensors at once. Since the sensors point at 0, 90 and 270 degrees,
+ * a turn of a third of a circle already shows each wall to more than one
+ * sensor. The pose is fit to the readings by USWallFit. If the fit is not good
+ * enough, the robot keeps turning and tries again.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class MultiUSLocalization {
+	private final USWallFit _wallFit;
+	private final USWallSweep _sweep;
+
+	public MultiUSLocalization(DataCenter dataCenter, Navigation navigation) {
+		this._wallFit = new USWallFit();
+		this._sweep = new USWallSweep(dataCenter, navigation, this._wallFit);
+	}
+
+	/**
+	 * Performs localization. The side ultrasonic sensors must be running.
+	 */
+	public final void doLocalization() {
+		this._wallFit.clear();
+		this._sweep.sweep();
+	}
+}
@@ -1,17 +1,25 @@
 package nxt.nav;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import nxt.NXTConstants;
 import nxt.data.DataCenter;
+import nxt.data.LineCrossing;
 import nxt.data.Point;
 import nxt.data.Position;
 import nxt.data.Vector;
 import nxt.drivers.MotorController;
+import nxt.drivers.USPoller;
 import nxt.nav.path.Path;
 import nxt.nav.path.PathItem;
 import nxt.util.AngleUtility;
 
 /**
- * A class used to navigate the robot on the field.
+ * A class used to navigate the robot on the field. Travelling can be stopped
+ * from another thread with stop, after which every travel returns as soon as
+ * it checks the stop, until resume is called. A turn already started is
+ * completed first.
  *
  * @author Andrei Purcarus
  *
@@ -29,24 +37,135 @@ public final class Navigation {
 
 	private final DataCenter _dataCenter;
 
+	private double _maxSpeed;
+	private double _turnSpeed;
+	private boolean _isStopped;
+
 	public Navigation(DataCenter dataCenter) {
 		this._dataCenter = dataCenter;
+		this._maxSpeed = HIGH_SPEED;
+		this._turnSpeed = TURN_SPEED;
+		this._isStopped = false;
+	}
+
+	/**
+	 * Estimates the time in s taken by travelTo to cover the given distance in
+	 * a straight line, given the way the speed is lowered near the destination.
+	 */
+	public static final double estimateTravelTime(double distance) {
+		double cutoffDistance = NXTConstants.TILE_DISTANCE;
+		double slowDownDistance = Math.min(distance, cutoffDistance);
+		double slowDownTime = cutoffDistance / (HIGH_SPEED - LOW_SPEED)
+				* Math.log(1 + slowDownDistance / cutoffDistance
+						* (HIGH_SPEED - LOW_SPEED) / LOW_SPEED);
+		return slowDownTime + (distance - slowDownDistance) / HIGH_SPEED;
+	}
+
+	/**
+	 * Estimates the time in s taken by turnTo to turn from one orientation to
+	 * the other.
+	 */
+	public static final double estimateTurnTime(double fromOrientation,
+			double toOrientation) {
+		return AngleUtility.absoluteDifference(fromOrientation, toOrientation)
+				/ TURN_SPEED;
+	}
+
+	/**
+	 * Returns the grid lines the color sensor crosses, in order, while the
+	 * robot travels in a straight line from the start to the destination with
+	 * the given orientation.
+	 */
+	public static final LineCrossing[] computeExpectedCrossings(Point start,
+			Point destination, double orientation) {
+		double csAngle = Math.toRadians(orientation + NXTConstants.CS_ANGLE);
+		double csX = NXTConstants.CS_DISTANCE * Math.cos(csAngle);
+		double csY = NXTConstants.CS_DISTANCE * Math.sin(csAngle);
+		double length = new Vector(start, destination).norm();
+		List<LineCrossing> crossings = new ArrayList<>();
+		addExpectedCrossings(crossings, true, start.x + csX, destination.x
+				+ csX, length);
+		addExpectedCrossings(crossings, false, start.y + csY, destination.y
+				+ csY, length);
+		return crossings.toArray(new LineCrossing[crossings.size()]);
+	}
+
+	/**
+	 * Adds the grid lines crossed as one coordinate of the color sensor goes
+	 * from start to end, keeping the crossings sorted by distance.
+	 */
+	private static void addExpectedCrossings(List<LineCrossing> crossings,
+			boolean isXLine, double start, double end, double length) {
+		double low = Math.min(start, end);
+		double high = Math.max(start, end);
+		int first = (int) Math.ceil(low / NXTConstants.TILE_DISTANCE);
+		int last = (int) Math.floor(high / NXTConstants.TILE_DISTANCE);
+		for (int i = first; i <= last; ++i) {
+			double line = i * NXTConstants.TILE_DISTANCE;
+			double distance = length * (line - start) / (end - start);
+			int index = crossings.size();
+			while (index > 0 && crossings.get(index - 1).distance > distance)
+				--index;
+			crossings.add(index, new LineCrossing(isXLine, line, distance));
+		}
+	}
+
+	/**
+	 * Makes the travel methods float the motors and return at their next
+	 * check, and the turn methods return without turning, until resume is
+	 * called. Does not stop the motors itself, so a turn or rotation already
+	 * started goes on.
+	 */
+	public synchronized final void stop() {
+		this._isStopped = true;
+	}
+
+	public synchronized final void resume() {
+		this._isStopped = false;
+	}
+
+	public synchronized final boolean isStopped() {
+		return this._isStopped;
+	}
+
+	/**
+	 * Sets the highest speed in cm/s at which the robot travels.
+	 */
+	public synchronized final void setMaxSpeed(double speed) {
+		if (speed <= 0)
+			throw new IllegalArgumentException("Invalid speed");
+		this._maxSpeed = speed;
+	}
+
+	/**
+	 * Sets the speed in deg/s at which the robot turns.
+	 */
+	public synchronized final void setTurnSpeed(double speed) {
+		if (speed <= 0)
+			throw new IllegalArgumentException("Invalid speed");
+		this._turnSpeed = speed;
 	}
 
 	public final void travel(Point[] path) {
 		for (Point point : path) {
+			if (isStopped())
+				return;
 			travelTo(point);
 		}
 	}
 
 	public final void travelForward(Path path) {
 		for (PathItem pathItem : path.getItems()) {
+			if (isStopped())
+				return;
 			pathItem.traverseForward(this);
 		}
 	}
 
 	public final void travelBackward(Path path) {
 		for (int i = path.getItems().size() - 1; i >= 0; --i) {
+			if (isStopped())
+				return;
 			path.getItems().get(i).traverseBackward(this);
 		}
 	}
@@ -69,66 +188,95 @@ public final class Navigation {
 
 	public final void travelTo(Point destination) {
 		turnTo(computeAngleToDestination(destination));
-		while (isTooFarFromDestination(destination)) {
+		setExpectedCrossings(destination,
+				computeAngleToDestination(destination));
+		while (isTooFarFromDestination(destination) && !isStopped()) {
 			setSpeedProportionallyToDistanceFromDestination(destination);
 			if (!isHeadingTheRightWay(destination))
 				turnTo(computeAngleToDestination(destination));
 		}
 		MotorController.floatMotors();
+		this._dataCenter.setExpectedCrossings(null);
 	}
 
 	public final void travelToBackward(Point destination) {
 		turnTo(computeAngleToDestination(destination) + 180);
-		while (isTooFarFromDestination(destination)) {
+		setExpectedCrossings(destination,
+				computeAngleToDestination(destination) + 180);
+		while (isTooFarFromDestination(destination) && !isStopped()) {
 			setSpeedProportionallyToDistanceFromDestinationBackwards(destination);
 			if (!isHeadingTheRightWayBackwards(destination))
 				turnTo(computeAngleToDestination(destination) + 180);
 		}
 		MotorController.floatMotors();
+		this._dataCenter.setExpectedCrossings(null);
 	}
 
 	public final void travelToPrecisely(Point destination) {
 		turnTo(computeAngleToDestination(destination));
-		while (isTooFarFromPreciseDestination(destination)) {
+		setExpectedCrossings(destination,
+				computeAngleToDestination(destination));
+		while (isTooFarFromPreciseDestination(destination) && !isStopped()) {
 			MotorController.moveForward(PRECISION_SPEED);
 			if (!isHeadingTheRightWay(destination))
 				turnTo(computeAngleToDestination(destination));
 		}
 		MotorController.floatMotors();
+		this._dataCenter.setExpectedCrossings(null);
 	}
 
 	public final void travelInTunnel(Point destination, Direction direction,
 			double centerOfPath, boolean leftWall, boolean rightWall) {
 		USCorrection tunnelCorrection = new USCorrection(direction,
 				centerOfPath, this._dataCenter, leftWall, rightWall);
-		tunnelCorrection.start();
-		tunnelCorrection.correctHeading(this);
-		tunnelCorrection.update();
+		// Turns first so that the side sensors start from readings of the
+		// walls.
 		turnTo(computeAngleToDestination(destination));
-		while (isTooFarFromDestination(destination)) {
-			setSpeedProportionallyToDistanceFromDestination(destination);
-			if (!isHeadingTheRightWay(destination))
-				turnTo(computeAngleToDestination(destination));
+		tunnelCorrection.start();
+		setExpectedCrossings(destination,
+				computeAngleToDestination(destination));
+		// Steers continuously from the side sensors instead of stopping to
+		// turn, and stops once the destination is reached along the path,
+		// since the path is followed rather than the line to the destination.
+		while (computeDistanceAlongPath(destination, direction)
+				> MAX_POSITION_ERROR && !isStopped()) {
 			tunnelCorrection.update();
+			MotorController.moveForward(
+					computeSpeedFromDistanceToDestination(destination),
+					tunnelCorrection.getTurnRate());
+			USPoller.waitTimeRequiredForPolling();
 		}
 		tunnelCorrection.end();
 
 		MotorController.floatMotors();
+		this._dataCenter.setExpectedCrossings(null);
 	}
 
 	public final void turn(double angle) {
-		turn(angle, TURN_SPEED);
+		turn(angle, getTurnSpeed());
 	}
 
 	public final void turn(double angle, double speed) {
+		if (isStopped())
+			return;
 		MotorController.turn(angle, speed);
 	}
 
+	/**
+	 * Starts turning in place at the given speed in deg/s, counterclockwise if
+	 * positive, without waiting. The turn lasts until another command is given.
+	 */
+	public final void rotate(double speed) {
+		MotorController.rotate(speed);
+	}
+
 	public final void turnTo(double angle) {
-		turnTo(angle, TURN_SPEED);
+		turnTo(angle, getTurnSpeed());
 	}
 
 	public final void turnTo(double angle, double speed) {
+		if (isStopped())
+			return;
 		MotorController.turn(
 				AngleUtility.difference(angle,
 						this._dataCenter.getOrientation()), speed);
@@ -150,6 +298,19 @@ public final class Navigation {
 		MotorController.floatMotors();
 	}
 
+	private synchronized double getTurnSpeed() {
+		return this._turnSpeed;
+	}
+
+	private synchronized double getMaxSpeed() {
+		return this._maxSpeed;
+	}
+
+	private void setExpectedCrossings(Point destination, double orientation) {
+		this._dataCenter.setExpectedCrossings(computeExpectedCrossings(
+				this._dataCenter.getPosition(), destination, orientation));
+	}
+
 	private double computeAngleToDestination(Point destination) {
 		Point current = this._dataCenter.getPosition();
 		Vector vector = new Vector(current, destination);
@@ -170,30 +331,39 @@ public final class Navigation {
 				|| Math.abs(vector.y) > MAX_PRECISION_POSITION_ERROR;
 	}
 
-	private void setSpeedProportionallyToDistanceFromDestination(
-			Point destination) {
+	/**
+	 * Returns the distance left to the destination along the given direction.
+	 */
+	private double computeDistanceAlongPath(Point destination,
+			Direction direction) {
 		Point current = this._dataCenter.getPosition();
 		Vector vector = new Vector(current, destination);
-		double distanceFromDestination = vector.norm();
-		double cutoffDistance = NXTConstants.TILE_DISTANCE;
-		if (distanceFromDestination > cutoffDistance)
-			distanceFromDestination = cutoffDistance;
-		double speed = LOW_SPEED + (distanceFromDestination / cutoffDistance)
-				* (HIGH_SPEED - LOW_SPEED);
-		MotorController.moveForward(speed);
+		double angle = Math.toRadians(direction.asAngle());
+		return vector.x * Math.cos(angle) + vector.y * Math.sin(angle);
+	}
+
+	private void setSpeedProportionallyToDistanceFromDestination(
+			Point destination) {
+		MotorController
+				.moveForward(computeSpeedFromDistanceToDestination(destination));
 	}
 
 	private void setSpeedProportionallyToDistanceFromDestinationBackwards(
 			Point destination) {
+		MotorController
+				.moveBackward(computeSpeedFromDistanceToDestination(destination));
+	}
+
+	private double computeSpeedFromDistanceToDestination(Point destination) {
 		Point current = this._dataCenter.getPosition();
 		Vector vector = new Vector(current, destination);
 		double distanceFromDestination = vector.norm();
 		double cutoffDistance = NXTConstants.TILE_DISTANCE;
 		if (distanceFromDestination > cutoffDistance)
 			distanceFromDestination = cutoffDistance;
-		double speed = LOW_SPEED + (distanceFromDestination / cutoffDistance)
-				* (HIGH_SPEED - LOW_SPEED);
-		MotorController.moveBackward(speed);
+		return Math.min(getMaxSpeed(), LOW_SPEED
+				+ (distanceFromDestination / cutoffDistance)
+				* (HIGH_SPEED - LOW_SPEED));
 	}
 
 	private boolean isHeadingTheRightWay(Point destination) {
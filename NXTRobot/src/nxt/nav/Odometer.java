@@ -38,6 +38,7 @@ public final class Odometer extends Thread {
 	private void update() {
 		int currentLeftTacho = MotorController.getLeftTachoCount();
 		int currentRightTacho = MotorController.getRightTachoCount();
+		long time = System.currentTimeMillis();
 
 		int leftTachoDifference = currentLeftTacho - this._previousLeftTacho;
 		int rightTachoDifference = currentRightTacho - this._previousRightTacho;
@@ -56,11 +57,11 @@ public final class Odometer extends Thread {
 				rightDistanceTraveled, correctWheelDistance);
 		double averageDistanceTravelled = (leftDistanceTraveled + rightDistanceTraveled) / 2;
 
-		updatePosition(averageDistanceTravelled, angleChange);
+		updatePosition(averageDistanceTravelled, angleChange, time);
 	}
 
 	private void updatePosition(double averageDistanceTravelled,
-			double angleChange) {
+			double angleChange, long time) {
 		Thread.currentThread().setPriority(MAX_PRIORITY);
 		Position position = this._dataCenter.getPosition();
 		double orientationOfDistanceChange = Math
@@ -73,6 +74,7 @@ public final class Odometer extends Thread {
 		position.orientation += angleChange;
 
 		this._dataCenter.setPosition(position);
+		this._dataCenter.recordPosition(time);
 		Thread.currentThread().setPriority(NORM_PRIORITY);
 	}
 
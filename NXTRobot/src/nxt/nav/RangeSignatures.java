@@ -0,0 +1,178 @@
+package nxt.nav;
+
+import nxt.NXTConstants;
+import nxt.nav.path.Grid;
+
+/**
+ * A class that holds the distances an ultrasonic sensor is expected to read
+ * from the center of every accessible tile of a grid, in NUMBER_OF_HEADINGS
+ * evenly spaced directions. Obstacles fill their tile, and the tiles outside
+ * the grid are the walls.
+ *
+ * A sensor reads the nearest surface within its beam, and the readings of a
+ * turn are kept as the shortest in each heading step, so the expected distance
+ * in a heading step is the shortest of the rays across the step widened by
+ * the beam on both sides. The distances are kept as bytes and capped at
+ * MAX_RANGE, past which readings are not trusted.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class RangeSignatures {
+	static final int NUMBER_OF_HEADINGS = 36;
+	static final int HEADING_STEP = 360 / NUMBER_OF_HEADINGS;
+	static final int MAX_RANGE = 150;
+
+	/**
+	 * The half angle in degrees of the ultrasonic beam, and the angle between
+	 * the rays cast across a heading step.
+	 */
+	private static final double BEAM_HALF_ANGLE = 10;
+	private static final double RAY_STEP = 7.5;
+	private static final int RAYS_PER_HEADING = (int) Math
+			.round((HEADING_STEP + 2 * BEAM_HALF_ANGLE) / RAY_STEP) + 1;
+
+	/**
+	 * The cosines and sines of the angles of the rays cast across each heading
+	 * step, RAYS_PER_HEADING per heading index, so that no ray needs its own.
+	 */
+	private static final double[] RAY_COSINES;
+	private static final double[] RAY_SINES;
+
+	static {
+		RAY_COSINES = new double[NUMBER_OF_HEADINGS * RAYS_PER_HEADING];
+		RAY_SINES = new double[NUMBER_OF_HEADINGS * RAYS_PER_HEADING];
+		double halfAngle = HEADING_STEP / 2.0 + BEAM_HALF_ANGLE;
+		for (int heading = 0; heading < NUMBER_OF_HEADINGS; ++heading) {
+			for (int i = 0; i < RAYS_PER_HEADING; ++i) {
+				double angle = Math.toRadians(getHeadingAngle(heading)
+						- halfAngle + i * RAY_STEP);
+				RAY_COSINES[heading * RAYS_PER_HEADING + i] = Math.cos(angle);
+				RAY_SINES[heading * RAYS_PER_HEADING + i] = Math.sin(angle);
+			}
+		}
+	}
+
+	private final Grid _grid;
+	private final int[] _tileXs;
+	private final int[] _tileYs;
+	private final byte[][] _signatures;
+
+	RangeSignatures(Grid grid) {
+		this._grid = grid;
+		int numberOfTiles = 0;
+		for (int x = -1; x < grid.getRows() - 1; ++x) {
+			for (int y = -1; y < grid.getColumns() - 1; ++y) {
+				if (grid.isAccessible(x, y))
+					++numberOfTiles;
+			}
+		}
+		this._tileXs = new int[numberOfTiles];
+		this._tileYs = new int[numberOfTiles];
+		this._signatures = new byte[numberOfTiles][NUMBER_OF_HEADINGS];
+		int tile = 0;
+		for (int x = -1; x < grid.getRows() - 1; ++x) {
+			for (int y = -1; y < grid.getColumns() - 1; ++y) {
+				if (!grid.isAccessible(x, y))
+					continue;
+				this._tileXs[tile] = x;
+				this._tileYs[tile] = y;
+				double centerX = (x + 0.5) * NXTConstants.TILE_DISTANCE;
+				double centerY = (y + 0.5) * NXTConstants.TILE_DISTANCE;
+				for (int heading = 0; heading < NUMBER_OF_HEADINGS; ++heading) {
+					int range = computeExpectedRange(centerX, centerY, heading,
+							1, 0);
+					this._signatures[tile][heading] = (byte) range;
+				}
+				++tile;
+			}
+		}
+	}
+
+	final int getNumberOfTiles() {
+		return this._tileXs.length;
+	}
+
+	final int getTileX(int tile) {
+		return this._tileXs[tile];
+	}
+
+	final int getTileY(int tile) {
+		return this._tileYs[tile];
+	}
+
+	/**
+	 * Returns the distance in cm expected from the center of the tile with the
+	 * given index in the given heading index.
+	 */
+	final int getExpectedRange(int tile, int heading) {
+		return this._signatures[tile][heading] & 0xFF;
+	}
+
+	/**
+	 * Returns the angle in degrees at the center of the given heading index.
+	 */
+	private static double getHeadingAngle(int heading) {
+		return (heading + 0.5) * HEADING_STEP;
+	}
+
+	/**
+	 * Returns the shortest distance in cm expected from the given point while
+	 * a sensor turns across the given heading index, rotated by the angle with
+	 * the given cosine and sine, up to MAX_RANGE.
+	 */
+	final int computeExpectedRange(double x, double y, int heading,
+			double rotationCos, double rotationSin) {
+		double range = MAX_RANGE;
+		int end = (heading + 1) * RAYS_PER_HEADING;
+		for (int ray = heading * RAYS_PER_HEADING; ray < end; ++ray) {
+			double cos = RAY_COSINES[ray] * rotationCos - RAY_SINES[ray]
+					* rotationSin;
+			double sin = RAY_SINES[ray] * rotationCos + RAY_COSINES[ray]
+					* rotationSin;
+			range = Math.min(range, castRay(x, y, cos, sin));
+		}
+		return (int) Math.round(range);
+	}
+
+	/**
+	 * Returns the distance in cm from the given point to the first obstacle
+	 * along the direction with the given cosine and sine, stepping from tile
+	 * to tile. Stops past MAX_RANGE.
+	 */
+	final double castRay(double x, double y, double cos, double sin) {
+		double tileDistance = NXTConstants.TILE_DISTANCE;
+		int tileX = (int) Math.floor(x / tileDistance);
+		int tileY = (int) Math.floor(y / tileDistance);
+		if (this._grid.isObstacle(tileX, tileY))
+			return 0;
+		int stepX = cos > 0 ? 1 : -1;
+		int stepY = sin > 0 ? 1 : -1;
+		// The distances along the ray to the next vertical and horizontal grid
+		// lines, and between consecutive ones.
+		double deltaX = cos == 0 ? Double.POSITIVE_INFINITY : Math.abs(
+				tileDistance / cos);
+		double deltaY = sin == 0 ? Double.POSITIVE_INFINITY : Math.abs(
+				tileDistance / sin);
+		double nextX = cos == 0 ? Double.POSITIVE_INFINITY
+				: ((tileX + (stepX > 0 ? 1 : 0)) * tileDistance - x) / cos;
+		double nextY = sin == 0 ? Double.POSITIVE_INFINITY
+				: ((tileY + (stepY > 0 ? 1 : 0)) * tileDistance - y) / sin;
+		while (true) {
+			double distance;
+			if (nextX < nextY) {
+				distance = nextX;
+				nextX += deltaX;
+				tileX += stepX;
+			} else {
+				distance = nextY;
+				nextY += deltaY;
+				tileY += stepY;
+			}
+			if (distance > MAX_RANGE)
+				return MAX_RANGE;
+			if (this._grid.isObstacle(tileX, tileY))
+				return distance;
+		}
+	}
+}
@@ -2,11 +2,24 @@ package nxt.nav;
 
 import nxt.NXTConstants;
 import nxt.data.DataCenter;
+import nxt.data.Position;
 import nxt.drivers.USPoller;
+import nxt.util.AngleUtility;
 
 /**
  * A class used to correct the odometer while traveling through a one tile gap
- * with known obstacles on the sides.
+ * with known obstacles on the sides, and to steer the robot down the middle
+ * of it.
+ *
+ * Every reading of the side sensors gives the offset of the robot to the left
+ * of the center of the path. The difference between it and the offset given
+ * by the odometer is fit against the distance driven over a sliding window by
+ * linear regression. The slope of the fit is the error in the heading of the
+ * odometer, so the heading is estimated while driving through the gap instead
+ * of by moving back and forth before it. The fit corrects the heading only
+ * once it is confident in the slope, and only the offset before then. The
+ * steering aims the robot at a point on the center of the path a fixed
+ * distance ahead.
  *
  * @author Andrei Purcarus
  *
@@ -23,24 +36,75 @@ public final class USCorrection {
 	private static final double MAX_DISTANCE_TO_WALL = NXTConstants.TILE_DISTANCE;
 
 	/**
-	 * Minimum delay between consecutive corrections.
+	 * The largest change in cm of the measured offset between readings
+	 * accepted, to ignore gaps between blocks, and the largest difference in
+	 * cm between the measured and predicted offsets accepted after the first
+	 * reading.
+	 */
+	private static final double MAX_OFFSET_JUMP = 3;
+	private static final double MAX_OFFSET_ERROR = 5;
+
+	/**
+	 * The fraction of the offset error corrected per cm driven while the
+	 * heading is not known.
+	 */
+	private static final double OFFSET_GAIN = 0.25;
+
+	/**
+	 * The distance in cm driven covered by the regression, and the distance
+	 * driven between the samples kept for it.
+	 */
+	private static final double REGRESSION_DISTANCE = 30;
+	private static final double SAMPLE_SPACING = 0.5;
+	private static final int MAX_SAMPLES = (int) (REGRESSION_DISTANCE / SAMPLE_SPACING)
+			+ 1;
+
+	/**
+	 * The fewest samples and the shortest distance driven between the first
+	 * and last of them to trust the slope of the fit, and the largest standard
+	 * error in degrees of the heading found from it.
 	 */
-	private static final long MIN_DELAY = 1000;
+	private static final int MIN_SAMPLES = 20;
+	private static final double MIN_REGRESSION_SPAN = 10;
+	private static final double MAX_HEADING_DEVIATION = 1;
 
 	/**
-	 * Maximum error allowed before correction.
+	 * The distance in cm ahead of the robot of the point on the center of the
+	 * path it steers toward, and the rate in 1/s at which the heading error is
+	 * removed.
 	 */
-	private static final double MAX_ORIENTATION_ERROR = 3;
+	private static final double LOOKAHEAD_DISTANCE = 20;
+	private static final double STEERING_GAIN = 4;
+	private static final double MAX_TURN_RATE = 30;
 
 	private final Direction _direction;
 	private final double _centerOfPath;
 
-	private long _lastTimeUpdated;
 	private double _distanceToLeftWall;
 	private double _distanceToRightWall;
 	private final boolean _leftWall;
 	private final boolean _rightWall;
 
+	/**
+	 * The position at the last update, and the distance driven since the
+	 * start.
+	 */
+	private double _lastX;
+	private double _lastY;
+	private double _distanceDriven;
+	private double _lastMeasuredOffset;
+	private boolean _hasMeasuredOffset;
+
+	/**
+	 * The samples of the regression, as the distance driven and the measured
+	 * minus predicted offset, in a circular buffer. The predicted offsets are
+	 * kept up to date with the corrections made since.
+	 */
+	private final double[] _sampleDistances;
+	private final double[] _sampleErrors;
+	private int _sampleStart;
+	private int _sampleCount;
+
 	private final DataCenter _dataCenter;
 
 	public USCorrection(Direction direction, double centerOfPath,
@@ -50,69 +114,74 @@ public final class USCorrection {
 		this._dataCenter = dataCenter;
 		this._leftWall = leftWall;
 		this._rightWall = rightWall;
+		this._sampleDistances = new double[MAX_SAMPLES];
+		this._sampleErrors = new double[MAX_SAMPLES];
 	}
 
 	public final void start() {
 		this._dataCenter.setWallFollowing(true);
 		USPoller.waitTimeRequiredForInitialization();
-		this._lastTimeUpdated = System.currentTimeMillis() - MIN_DELAY;
+		Position position = this._dataCenter.getPosition();
+		this._lastX = position.x;
+		this._lastY = position.y;
+		this._distanceDriven = 0;
+		this._hasMeasuredOffset = false;
+		this._sampleStart = 0;
+		this._sampleCount = 0;
 	}
 
 	public final void end() {
 		this._dataCenter.setWallFollowing(false);
 	}
 
+	/**
+	 * Corrects the odometer with the latest readings of the side sensors.
+	 * Meant to be called at the polling rate of the sensors.
+	 */
 	public final void update() {
-		long currentTime = System.currentTimeMillis();
-		if (currentTime - this._lastTimeUpdated >= MIN_DELAY) {
-			this._lastTimeUpdated = currentTime;
-			updateDistancesToWalls();
-			if (!validDistancesToWall()) {
-				return;
-			}
-			updateForCorrectDirection();
+		Position position = this._dataCenter.getPosition();
+		double dx = position.x - this._lastX;
+		double dy = position.y - this._lastY;
+		this._distanceDriven += Math.sqrt(dx * dx + dy * dy);
+		this._lastX = position.x;
+		this._lastY = position.y;
+		if (this._sampleCount > 0
+				&& this._distanceDriven - getLastSampleDistance() < SAMPLE_SPACING)
+			return;
+
+		updateDistancesToWalls();
+		if (!validDistancesToWall()) {
+			this._hasMeasuredOffset = false;
+			return;
 		}
+		double measuredOffset = getMeasuredOffset();
+		boolean isJump = this._hasMeasuredOffset
+				&& Math.abs(measuredOffset - this._lastMeasuredOffset)
+						> MAX_OFFSET_JUMP;
+		this._lastMeasuredOffset = measuredOffset;
+		this._hasMeasuredOffset = true;
+		if (isJump)
+			return;
+		double offsetError = measuredOffset - getOffset(position);
+		if (Math.abs(offsetError) > MAX_OFFSET_ERROR && this._sampleCount > 0)
+			return;
+		addSample(offsetError);
+
+		if (!fitSamples())
+			correct(OFFSET_GAIN * SAMPLE_SPACING * offsetError, 0);
 	}
 
 	/**
-	 * Corrects the heading of the robot using knows walls on the side. The
-	 * robot must have space in front of it, so it is recommended to call this
-	 * method at the start of navigation through a walled area.
+	 * Returns the rate in deg/s at which to turn counterclockwise to bring the
+	 * robot back to the center of the path.
 	 */
-	public final void correctHeading(Navigation navigation) {
-		navigation.turnTo(this._direction.asAngle());
-		USPoller.waitTimeRequiredForInitialization();
-		double leftDistance1 = this._dataCenter
-				.getFilteredUSDistanceAtAngle(90)
-				+ NXTConstants.LEFT_US_DISTANCE;
-		double rightDistance1 = this._dataCenter
-				.getFilteredUSDistanceAtAngle(-90)
-				+ NXTConstants.RIGHT_US_DISTANCE;
-		double distanceToMove = 10;
-		navigation.moveForward(distanceToMove);
-		USPoller.waitTimeRequiredForInitialization();
-		double leftDistance2 = this._dataCenter
-				.getFilteredUSDistanceAtAngle(90)
-				+ NXTConstants.LEFT_US_DISTANCE;
-		double rightDistance2 = this._dataCenter
-				.getFilteredUSDistanceAtAngle(-90)
-				+ NXTConstants.RIGHT_US_DISTANCE;
-		navigation.moveBackward(distanceToMove);
-		if ((this._leftWall && leftDistance1 > MAX_DISTANCE_TO_WALL)
-				|| (this._rightWall && rightDistance1 > MAX_DISTANCE_TO_WALL)
-				|| (this._leftWall && leftDistance2 > MAX_DISTANCE_TO_WALL)
-				|| (this._rightWall && rightDistance2 > MAX_DISTANCE_TO_WALL)) {
-			return; // Don't correct if one of the distances is not what is
-					// should be.
-		}
-		double leftDifference = leftDistance2 - leftDistance1;
-		double rightDifference = rightDistance2 - rightDistance1;
-		double deviation = getDeviation(leftDifference, rightDifference,
-				distanceToMove);
-		if (deviation > MAX_ORIENTATION_ERROR) {
-			this._dataCenter.setOrientation(this._direction.asAngle()
-					+ deviation);
-		}
+	public final double getTurnRate() {
+		Position position = this._dataCenter.getPosition();
+		double desiredHeading = -Math.toDegrees(Math.atan2(
+				getOffset(position), LOOKAHEAD_DISTANCE));
+		double turnRate = STEERING_GAIN
+				* (desiredHeading - getHeading(position));
+		return Math.max(-MAX_TURN_RATE, Math.min(MAX_TURN_RATE, turnRate));
 	}
 
 	private void updateDistancesToWalls() {
@@ -124,88 +193,151 @@ public final class USCorrection {
 				+ NXTConstants.RIGHT_US_DISTANCE;
 	}
 
-	private void updateForCorrectDirection() {
+	/**
+	 * Returns the sign of the offset to the left of the path in the
+	 * coordinate across the path.
+	 */
+	private double getLeftSign() {
 		switch (this._direction) {
 		case east:
-			updateForPositiveXDirection();
-			break;
-		case north:
-			updateForPositiveYDirection();
-			break;
-		case west:
-			updateForNegativeXDirection();
-			break;
 		case south:
-			updateForNegativeYDirection();
-			break;
+			return 1;
+		default:
+			return -1;
 		}
 	}
 
-	private void updateForPositiveXDirection() {
+	private boolean isAcrossX() {
+		return this._direction == Direction.north
+				|| this._direction == Direction.south;
+	}
+
+	/**
+	 * Returns the offset of the robot to the left of the center of the path
+	 * according to the odometer.
+	 */
+	private double getOffset(Position position) {
+		double coordinate = isAcrossX() ? position.x : position.y;
+		return getLeftSign() * (coordinate - this._centerOfPath);
+	}
+
+	/**
+	 * Returns the counterclockwise angle between the robot and the path
+	 * according to the odometer.
+	 */
+	private double getHeading(Position position) {
+		return AngleUtility.difference(position.orientation,
+				this._direction.asAngle());
+	}
+
+	private void setOffsetAndHeading(double offset, double heading) {
+		double coordinate = this._centerOfPath + getLeftSign() * offset;
+		if (isAcrossX())
+			this._dataCenter.setXPosition(coordinate);
+		else
+			this._dataCenter.setYPosition(coordinate);
+		this._dataCenter.setOrientation(AngleUtility
+				.normalize(this._direction.asAngle() + heading));
+	}
+
+	/**
+	 * Returns the offset of the robot to the left of the center of the path
+	 * according to the side sensors.
+	 */
+	private double getMeasuredOffset() {
 		if (this._leftWall && this._rightWall) {
-			double averageYPosition = this._centerOfPath
-					+ (this._distanceToRightWall - this._distanceToLeftWall)
-					/ 2;
-			this._dataCenter.setYPosition(averageYPosition);
+			return (this._distanceToRightWall - this._distanceToLeftWall) / 2;
 		} else if (this._leftWall) {
-			double yPosition = this._centerOfPath + NXTConstants.TILE_DISTANCE
-					/ 2 - this._distanceToLeftWall + BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setYPosition(yPosition);
-		} else if (this._rightWall) {
-			double yPosition = this._centerOfPath - NXTConstants.TILE_DISTANCE
-					/ 2 + this._distanceToRightWall - BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setYPosition(yPosition);
+			return NXTConstants.TILE_DISTANCE / 2 - this._distanceToLeftWall
+					+ BLOCK_PLACEMENT_ERROR;
+		} else {
+			return this._distanceToRightWall - NXTConstants.TILE_DISTANCE / 2
+					- BLOCK_PLACEMENT_ERROR;
 		}
 	}
 
-	private void updateForPositiveYDirection() {
-		if (this._leftWall && this._rightWall) {
-			double averageXPosition = this._centerOfPath
-					+ (this._distanceToLeftWall - this._distanceToRightWall)
-					/ 2;
-			this._dataCenter.setXPosition(averageXPosition);
-		} else if (this._leftWall) {
-			double xPosition = this._centerOfPath - NXTConstants.TILE_DISTANCE
-					/ 2 + this._distanceToLeftWall - BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setXPosition(xPosition);
-		} else if (this._rightWall) {
-			double xPosition = this._centerOfPath + NXTConstants.TILE_DISTANCE
-					/ 2 - this._distanceToRightWall + BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setXPosition(xPosition);
+	private double getLastSampleDistance() {
+		return this._sampleDistances[(this._sampleStart + this._sampleCount - 1)
+				% MAX_SAMPLES];
+	}
+
+	/**
+	 * Adds a sample at the current distance driven, dropping the samples too
+	 * far behind to be in the regression.
+	 */
+	private void addSample(double offsetError) {
+		while (this._sampleCount == MAX_SAMPLES
+				|| (this._sampleCount > 0 && this._distanceDriven
+						- this._sampleDistances[this._sampleStart]
+						> REGRESSION_DISTANCE)) {
+			this._sampleStart = (this._sampleStart + 1) % MAX_SAMPLES;
+			--this._sampleCount;
 		}
+		int index = (this._sampleStart + this._sampleCount) % MAX_SAMPLES;
+		this._sampleDistances[index] = this._distanceDriven;
+		this._sampleErrors[index] = offsetError;
+		++this._sampleCount;
 	}
 
-	private void updateForNegativeXDirection() {
-		if (this._leftWall && this._rightWall) {
-			double averageYPosition = this._centerOfPath
-					+ (this._distanceToLeftWall - this._distanceToRightWall)
-					/ 2;
-			this._dataCenter.setYPosition(averageYPosition);
-		} else if (this._leftWall) {
-			double yPosition = this._centerOfPath - NXTConstants.TILE_DISTANCE
-					/ 2 + this._distanceToLeftWall - BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setYPosition(yPosition);
-		} else if (this._rightWall) {
-			double yPosition = this._centerOfPath + NXTConstants.TILE_DISTANCE
-					/ 2 - this._distanceToRightWall + BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setYPosition(yPosition);
+	/**
+	 * Fits a line to the samples and corrects the offset and the heading from
+	 * it. Returns false without correcting if the slope is not trusted.
+	 */
+	private boolean fitSamples() {
+		int n = this._sampleCount;
+		if (n < MIN_SAMPLES)
+			return false;
+		double firstDistance = this._sampleDistances[this._sampleStart];
+		if (this._distanceDriven - firstDistance < MIN_REGRESSION_SPAN)
+			return false;
+
+		double meanDistance = 0;
+		double meanError = 0;
+		for (int i = 0; i < n; ++i) {
+			int index = (this._sampleStart + i) % MAX_SAMPLES;
+			meanDistance += this._sampleDistances[index];
+			meanError += this._sampleErrors[index];
+		}
+		meanDistance /= n;
+		meanError /= n;
+		double sxx = 0;
+		double sxy = 0;
+		for (int i = 0; i < n; ++i) {
+			int index = (this._sampleStart + i) % MAX_SAMPLES;
+			double dx = this._sampleDistances[index] - meanDistance;
+			sxx += dx * dx;
+			sxy += dx * (this._sampleErrors[index] - meanError);
 		}
+		double slope = sxy / sxx;
+		double squaredResiduals = 0;
+		for (int i = 0; i < n; ++i) {
+			int index = (this._sampleStart + i) % MAX_SAMPLES;
+			double residual = this._sampleErrors[index] - meanError - slope
+					* (this._sampleDistances[index] - meanDistance);
+			squaredResiduals += residual * residual;
+		}
+		double slopeDeviation = Math.sqrt(squaredResiduals / (n - 2) / sxx);
+		if (Math.toDegrees(Math.atan(slopeDeviation)) > MAX_HEADING_DEVIATION)
+			return false;
+
+		correct(meanError + slope * (this._distanceDriven - meanDistance),
+				slope);
+		return true;
 	}
 
-	private void updateForNegativeYDirection() {
-		if (this._leftWall && this._rightWall) {
-			double averageXPosition = this._centerOfPath
-					+ (this._distanceToRightWall - this._distanceToLeftWall)
-					/ 2;
-			this._dataCenter.setXPosition(averageXPosition);
-		} else if (this._leftWall) {
-			double xPosition = this._centerOfPath + NXTConstants.TILE_DISTANCE
-					/ 2 - this._distanceToLeftWall + BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setXPosition(xPosition);
-		} else if (this._rightWall) {
-			double xPosition = this._centerOfPath - NXTConstants.TILE_DISTANCE
-					/ 2 + this._distanceToRightWall - BLOCK_PLACEMENT_ERROR;
-			this._dataCenter.setXPosition(xPosition);
+	/**
+	 * Corrects the odometer by the given offset error at the current position
+	 * and the given slope of the offset error against the distance driven,
+	 * and removes the correction from the samples.
+	 */
+	private void correct(double offsetCorrection, double slope) {
+		Position position = this._dataCenter.getPosition();
+		setOffsetAndHeading(getOffset(position) + offsetCorrection,
+				getHeading(position) + Math.toDegrees(Math.atan(slope)));
+		for (int i = 0; i < this._sampleCount; ++i) {
+			int index = (this._sampleStart + i) % MAX_SAMPLES;
+			this._sampleErrors[index] -= offsetCorrection + slope
+					* (this._sampleDistances[index] - this._distanceDriven);
 		}
 	}
 
@@ -213,20 +345,4 @@ public final class USCorrection {
 		return (!this._leftWall || this._distanceToLeftWall <= MAX_DISTANCE_TO_WALL)
 				&& (!this._rightWall || this._distanceToRightWall <= MAX_DISTANCE_TO_WALL);
 	}
-
-	private double getDeviation(double leftDifference, double rightDifference,
-			double distanceToMove) {
-		if (this._rightWall && this._leftWall) {
-			return Math.toDegrees(Math.asin((rightDifference - leftDifference)
-					/ (2 * distanceToMove)));
-		} else if (this._leftWall) {
-			return Math
-					.toDegrees(Math.asin(-leftDifference / (distanceToMove)));
-		} else if (this._rightWall) {
-			return Math
-					.toDegrees(Math.asin(rightDifference / (distanceToMove)));
-		} else {
-			return 0;
-		}
-	}
 }
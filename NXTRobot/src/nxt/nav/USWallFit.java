@@ -0,0 +1,286 @@
+package nxt.nav;
+
+import nxt.NXTConstants;
+import nxt.util.AngleUtility;
+
+/**
+ * A class that fits the pose of the robot in the starting corner to the
+ * readings of the three ultrasonic sensors taken while turning in place, and
+ * optionally to the orientations at which the color sensor crossed a grid
+ * line during the same turn.
+ *
+ * The readings are kept per sensor in 1 degree bins of odometer orientation.
+ * The error in the odometer orientation is found by trying every angle and
+ * keeping the one where the readings best agree with two walls at x = -T and
+ * y = -T. For each angle, x and y are solved by least squares. Each line
+ * crossing is matched to the nearest grid line and adds one heavily weighted
+ * equation in x or y.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class USWallFit {
+	static final int[] SENSOR_ANGLES = { 0, 90, 270 };
+	static final double[] SENSOR_DISTANCES = {
+			NXTConstants.FRONT_US_DISTANCE, NXTConstants.LEFT_US_DISTANCE,
+			NXTConstants.RIGHT_US_DISTANCE };
+
+	private static final int NUMBER_OF_BINS = 360;
+	private static final int NO_DISTANCE = 255;
+
+	/**
+	 * The largest distance at which a reading can come from a corner wall.
+	 */
+	private static final int WALL_DISTANCE = 60;
+
+	/**
+	 * The largest angle in degrees between a sensor and the normal of a wall
+	 * for the reading to be used.
+	 */
+	private static final int VISIBLE_ANGLE = 30;
+
+	/**
+	 * The half angle in degrees of the ultrasonic beam. Within this angle of
+	 * the normal, a sensor reads the distance to the wall along the normal.
+	 */
+	private static final double BEAM_HALF_ANGLE = 15;
+
+	/**
+	 * The squared error in cm^2 counted for a reading that should have seen a
+	 * wall but did not, or a crossing too far from any grid line.
+	 */
+	private static final double MISS_COST = 100;
+
+	private static final int MINIMUM_BINS_PER_WALL = 10;
+
+	private static final int MAXIMUM_CROSSINGS = 8;
+
+	/**
+	 * The weight of a line crossing relative to an ultrasonic reading, the
+	 * ratio of their variances.
+	 */
+	private static final double CROSSING_WEIGHT = 10;
+
+	/**
+	 * The largest distance in cm between the color sensor and a grid line for
+	 * a crossing to be matched to it.
+	 */
+	private static final double CROSSING_GATE = 3;
+
+	private static final double COARSE_STEP = 1;
+	private static final double FINE_STEP = 0.125;
+
+	private static final float[] COSINES;
+
+	static {
+		COSINES = new float[NUMBER_OF_BINS + 1];
+		for (int i = 0; i <= NUMBER_OF_BINS; ++i) {
+			COSINES[i] = (float) Math.cos(Math.toRadians(i));
+		}
+	}
+
+	private final byte[][] _bins;
+	private final float[] _crossings;
+	private int _numberOfCrossings;
+
+	private double _x;
+	private double _y;
+	private double _cost;
+	private int _matchedCrossings;
+
+	USWallFit() {
+		this._bins = new byte[SENSOR_ANGLES.length][NUMBER_OF_BINS];
+		this._crossings = new float[MAXIMUM_CROSSINGS];
+		clear();
+	}
+
+	final void clear() {
+		for (int i = 0; i < SENSOR_ANGLES.length; ++i) {
+			for (int j = 0; j < NUMBER_OF_BINS; ++j) {
+				this._bins[i][j] = (byte) NO_DISTANCE;
+			}
+		}
+		this._numberOfCrossings = 0;
+		this._cost = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a reading from the sensor with the given index in SENSOR_ANGLES,
+	 * taken at the given odometer orientation.
+	 */
+	final void addSample(int sensor, double angle, int distance) {
+		int bin = (int) AngleUtility.normalize(angle) % NUMBER_OF_BINS;
+		if (distance < (this._bins[sensor][bin] & 0xFF))
+			this._bins[sensor][bin] = (byte) distance;
+	}
+
+	/**
+	 * Adds the odometer orientation at which the color sensor crossed a grid
+	 * line. Crossings past MAXIMUM_CROSSINGS are ignored.
+	 */
+	final void addCrossing(double angle) {
+		if (this._numberOfCrossings < MAXIMUM_CROSSINGS)
+			this._crossings[this._numberOfCrossings++] = (float) angle;
+	}
+
+	final int getNumberOfCrossings() {
+		return this._numberOfCrossings;
+	}
+
+	/**
+	 * Returns the number of crossings matched to a grid line in the last fit.
+	 */
+	final int getMatchedCrossings() {
+		return this._matchedCrossings;
+	}
+
+	final double getX() {
+		return this._x;
+	}
+
+	final double getY() {
+		return this._y;
+	}
+
+	/**
+	 * Returns the weighted mean squared error in cm^2 of the last fit.
+	 */
+	final double getCost() {
+		return this._cost;
+	}
+
+	/**
+	 * Returns the angle to add to the odometer orientation to get the true
+	 * orientation, leaving the best fit in the fields.
+	 */
+	final double findErrorAngle() {
+		double bestAngle = 0;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (double angle = 0; angle < 360; angle += COARSE_STEP) {
+			double cost = fit(angle);
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestAngle = angle;
+			}
+		}
+		double center = bestAngle;
+		for (double angle = center - COARSE_STEP; angle <= center
+				+ COARSE_STEP; angle += FINE_STEP) {
+			double cost = fit(angle);
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestAngle = angle;
+			}
+		}
+		this._cost = fit(bestAngle);
+		return bestAngle;
+	}
+
+	/**
+	 * Solves for x and y assuming the given error in the odometer orientation
+	 * and returns the weighted mean squared error of the fit.
+	 */
+	private double fit(double errorAngle) {
+		double xSum = 0;
+		double xSumOfSquares = 0;
+		double ySum = 0;
+		double ySumOfSquares = 0;
+		int xCount = 0;
+		int yCount = 0;
+		int misses = 0;
+		for (int i = 0; i < SENSOR_ANGLES.length; ++i) {
+			for (int bin = 0; bin < NUMBER_OF_BINS; ++bin) {
+				int distance = this._bins[i][bin] & 0xFF;
+				if (distance == NO_DISTANCE)
+					continue;
+				double heading = AngleUtility.normalize(bin + 0.5
+						+ SENSOR_ANGLES[i] + errorAngle);
+				boolean isXWall = Math.abs(heading - 180) <= VISIBLE_ANGLE;
+				boolean isYWall = Math.abs(heading - 270) <= VISIBLE_ANGLE;
+				if (!isXWall && !isYWall)
+					continue;
+				if (distance > WALL_DISTANCE) {
+					++misses;
+					continue;
+				}
+				double offNormal = Math.abs(heading - (isXWall ? 180 : 270));
+				double normalDistance = distance
+						* cos(Math.max(0, offNormal - BEAM_HALF_ANGLE));
+				if (isXWall) {
+					double x = normalDistance - NXTConstants.TILE_DISTANCE
+							- SENSOR_DISTANCES[i] * cos(heading);
+					xSum += x;
+					xSumOfSquares += x * x;
+					++xCount;
+				} else {
+					double y = normalDistance - NXTConstants.TILE_DISTANCE
+							- SENSOR_DISTANCES[i] * cos(heading - 90);
+					ySum += y;
+					ySumOfSquares += y * y;
+					++yCount;
+				}
+			}
+		}
+		if (xCount < MINIMUM_BINS_PER_WALL || yCount < MINIMUM_BINS_PER_WALL) {
+			// Does not leave the values of an earlier fit behind.
+			this._x = 0;
+			this._y = 0;
+			this._matchedCrossings = 0;
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// Matches the crossings using the position from the walls alone.
+		double wallX = xSum / xCount;
+		double wallY = ySum / yCount;
+		double xWeight = xCount;
+		double yWeight = yCount;
+		this._matchedCrossings = 0;
+		for (int i = 0; i < this._numberOfCrossings; ++i) {
+			double heading = this._crossings[i] + errorAngle
+					+ NXTConstants.CS_ANGLE;
+			double xOffset = NXTConstants.CS_DISTANCE * cos(heading);
+			double yOffset = NXTConstants.CS_DISTANCE * cos(heading - 90);
+			double xLine = findNearestLine(wallX + xOffset);
+			double yLine = findNearestLine(wallY + yOffset);
+			double xError = Math.abs(wallX + xOffset - xLine);
+			double yError = Math.abs(wallY + yOffset - yLine);
+			if (Math.min(xError, yError) > CROSSING_GATE) {
+				++misses;
+			} else if (xError <= yError) {
+				double x = xLine - xOffset;
+				xSum += CROSSING_WEIGHT * x;
+				xSumOfSquares += CROSSING_WEIGHT * x * x;
+				xWeight += CROSSING_WEIGHT;
+				++this._matchedCrossings;
+			} else {
+				double y = yLine - yOffset;
+				ySum += CROSSING_WEIGHT * y;
+				ySumOfSquares += CROSSING_WEIGHT * y * y;
+				yWeight += CROSSING_WEIGHT;
+				++this._matchedCrossings;
+			}
+		}
+
+		this._x = xSum / xWeight;
+		this._y = ySum / yWeight;
+		double squaredError = xSumOfSquares - xSum * this._x + ySumOfSquares
+				- ySum * this._y + misses * MISS_COST;
+		return squaredError / (xWeight + yWeight + misses);
+	}
+
+	private static double findNearestLine(double coordinate) {
+		return Math.round(coordinate / NXTConstants.TILE_DISTANCE)
+				* NXTConstants.TILE_DISTANCE;
+	}
+
+	/**
+	 * Returns the cosine of the angle in degrees, interpolated from a table.
+	 */
+	private static double cos(double angleInDegrees) {
+		double angle = AngleUtility.normalize(angleInDegrees);
+		int index = (int) angle;
+		double fraction = angle - index;
+		return COSINES[index] + (COSINES[index + 1] - COSINES[index])
+				* fraction;
+	}
+}
@@ -0,0 +1,109 @@
+package nxt.nav;
+
+import nxt.data.DataCenter;
+import nxt.drivers.USPoller;
+import nxt.util.AngleUtility;
+
+/**
+ * A turn in place in the starting corner that feeds the readings of the three
+ * ultrasonic sensors to a USWallFit, used by MultiUSLocalization and
+ * CombinedLocalization. The fit is first tried after SWEEP_ANGLE, then again
+ * every EXTRA_SWEEP_ANGLE until it is good enough or the robot has turned all
+ * the way around.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class USWallSweep {
+	private static final long WAIT_TIME_AFTER_LOCALIZING = 100;
+	private static final double SEARCH_SPEED = 30;
+
+	/**
+	 * The angle turned before the first attempt, and the angle turned between
+	 * attempts after that.
+	 */
+	private static final double SWEEP_ANGLE = 120;
+	private static final double EXTRA_SWEEP_ANGLE = 30;
+	private static final double MAXIMUM_SWEEP_ANGLE = 360;
+
+	/**
+	 * The largest weighted mean squared error in cm^2 accepted.
+	 */
+	private static final double MAXIMUM_COST = 4;
+
+	private final DataCenter _dataCenter;
+	private final Navigation _navigation;
+	private final USWallFit _wallFit;
+
+	USWallSweep(DataCenter dataCenter, Navigation navigation,
+			USWallFit wallFit) {
+		this._dataCenter = dataCenter;
+		this._navigation = navigation;
+		this._wallFit = wallFit;
+	}
+
+	/**
+	 * Turns until the fit is accepted or the robot has turned
+	 * MAXIMUM_SWEEP_ANGLE, then sets the position to the best fit. A fit is
+	 * accepted when its cost is at most MAXIMUM_COST and every line crossing
+	 * added to it was matched to a grid line. Returns true if it was accepted.
+	 * The side ultrasonic sensors must be running.
+	 */
+	final boolean sweep() {
+		boolean wasWallFollowing = this._dataCenter.isWallFollowing();
+		this._dataCenter.setWallFollowing(true);
+		USPoller.waitTimeRequiredForInitialization();
+
+		double sweptAngle = 0;
+		double nextAttempt = SWEEP_ANGLE;
+		double errorAngle = 0;
+		boolean isAccepted = false;
+		this._navigation.rotate(SEARCH_SPEED);
+		double lastAngle = this._dataCenter.getOrientation();
+		while (true) {
+			double angle = this._dataCenter.getOrientation();
+			sweptAngle += Math.abs(AngleUtility.difference(angle, lastAngle));
+			lastAngle = angle;
+			addSamples(angle);
+			if (sweptAngle >= nextAttempt) {
+				synchronized (this._wallFit) {
+					errorAngle = this._wallFit.findErrorAngle();
+					isAccepted = this._wallFit.getCost() <= MAXIMUM_COST
+							&& this._wallFit.getMatchedCrossings() == this._wallFit
+									.getNumberOfCrossings();
+				}
+				if (isAccepted || sweptAngle >= MAXIMUM_SWEEP_ANGLE)
+					break;
+				nextAttempt += EXTRA_SWEEP_ANGLE;
+			}
+			USPoller.waitTimeRequiredForPolling();
+		}
+		this._navigation.floatMotors();
+		this._dataCenter.setWallFollowing(wasWallFollowing);
+
+		// Uses the orientation at the last sample, since the robot keeps
+		// turning a little after the motors are floated.
+		double orientationChange = AngleUtility.difference(
+				this._dataCenter.getOrientation(), lastAngle);
+		this._dataCenter.setPosition(this._wallFit.getX(),
+				this._wallFit.getY(), lastAngle + errorAngle
+						+ orientationChange);
+		waitForOtherThreadsToUpdate();
+		return isAccepted;
+	}
+
+	private void addSamples(double angle) {
+		for (int i = 0; i < USWallFit.SENSOR_ANGLES.length; ++i) {
+			this._wallFit.addSample(i, angle, this._dataCenter
+					.getRawUSDistanceAtAngle(USWallFit.SENSOR_ANGLES[i]));
+		}
+	}
+
+	private static void waitForOtherThreadsToUpdate() {
+		try {
+			Thread.sleep(WAIT_TIME_AFTER_LOCALIZING);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
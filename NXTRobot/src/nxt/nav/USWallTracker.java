@@ -0,0 +1,372 @@
+package nxt.nav;
+
+import nxt.util.AngleUtility;
+
+/**
+ * A class that finds the two walls of the starting corner from a stream of
+ * front ultrasonic sensor samples taken while the robot turns in place. The
+ * minimum distance seen in each 1 degree bin is kept as the samples arrive.
+ *
+ * A wall shows up as a valley in the distances, centered on the heading facing
+ * it. The first valley is accepted once the distance has risen on both sides
+ * of it. Since the corner is square, the other wall lies 90 degrees to one
+ * side of the first, and the search is done as soon as a whole valley has been
+ * seen there. If the stream never settles, the walls are found from the bins
+ * once the robot has turned all the way around.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class USWallTracker {
+	private static final int NUMBER_OF_BINS = 360;
+	private static final int NO_DISTANCE = 255;
+
+	/**
+	 * The largest distance at which a valley can be one of the corner walls.
+	 */
+	private static final int WALL_DISTANCE = 60;
+
+	/**
+	 * The rise in distance needed on each side of a valley to accept it.
+	 */
+	private static final int MINIMUM_RISE = 4;
+
+	/**
+	 * The rise in distance that marks the edge of a valley when finding its
+	 * center.
+	 */
+	private static final int EDGE_RISE = 3;
+
+	/**
+	 * The variation in cm of the distance to a wall that is treated as noise.
+	 */
+	private static final int NOISE = 1;
+
+	/**
+	 * The half width in degrees of the bins searched around a valley.
+	 */
+	private static final int VALLEY_HALF_WIDTH = 40;
+
+	/**
+	 * The most bins in a row without data that a valley can span.
+	 */
+	private static final int MAXIMUM_GAP = 2;
+
+	/**
+	 * The largest error in degrees from a right angle between the two walls.
+	 */
+	private static final int RIGHT_ANGLE_TOLERANCE = 20;
+
+	private static final int NO_BIN = Integer.MIN_VALUE;
+
+	/**
+	 * The largest total angle turned, after which the walls are taken from the
+	 * bins.
+	 */
+	private static final double MAXIMUM_SWEEP = 360;
+
+	private final int[] _rawMinima;
+	private final int[] _filteredAtMinima;
+
+	private boolean _hasSample;
+	private double _lastAngle;
+	private double _sweptAngle;
+	private double _totalAngle;
+
+	private int _valleyMinimum;
+	private double _valleyStart;
+	private double _valleyEnd;
+	private int _entryMaximum;
+	private int _maximumSinceReset;
+
+	private boolean _hasWall;
+	private double _wallAngle;
+	private int _wallDistance;
+
+	private boolean _isDone;
+	private double _xWallAngle;
+	private int _xWallDistance;
+	private double _yWallAngle;
+	private int _yWallDistance;
+
+	USWallTracker() {
+		this._rawMinima = new int[NUMBER_OF_BINS];
+		this._filteredAtMinima = new int[NUMBER_OF_BINS];
+		for (int i = 0; i < NUMBER_OF_BINS; ++i) {
+			this._rawMinima[i] = NO_DISTANCE;
+			this._filteredAtMinima[i] = NO_DISTANCE;
+		}
+		resetValley(0);
+	}
+
+	/**
+	 * Adds a sample taken at the given odometer orientation.
+	 */
+	final void addSample(double angle, int rawDistance, int filteredDistance) {
+		if (this._isDone)
+			return;
+		if (this._hasSample) {
+			double difference = AngleUtility.difference(angle,
+					this._lastAngle);
+			this._sweptAngle += difference;
+			this._totalAngle += Math.abs(difference);
+		} else {
+			this._hasSample = true;
+		}
+		this._lastAngle = angle;
+		addToBin(angle, rawDistance, filteredDistance);
+
+		if (!this._hasWall)
+			trackValley(rawDistance);
+		if (this._hasWall)
+			findSecondWall();
+		if (!this._isDone && this._totalAngle >= MAXIMUM_SWEEP)
+			findWallsFromBins();
+	}
+
+	final boolean isDone() {
+		return this._isDone;
+	}
+
+	/**
+	 * Returns the odometer orientation facing the wall along the x axis.
+	 */
+	final double getXWallAngle() {
+		return this._xWallAngle;
+	}
+
+	final int getXWallDistance() {
+		return this._xWallDistance;
+	}
+
+	/**
+	 * Returns the odometer orientation facing the wall along the y axis.
+	 */
+	final double getYWallAngle() {
+		return this._yWallAngle;
+	}
+
+	final int getYWallDistance() {
+		return this._yWallDistance;
+	}
+
+	private void addToBin(double angle, int rawDistance, int filteredDistance) {
+		int bin = toBin(angle);
+		if (rawDistance < this._rawMinima[bin]) {
+			this._rawMinima[bin] = rawDistance;
+			this._filteredAtMinima[bin] = filteredDistance;
+		}
+	}
+
+	/**
+	 * Follows the current valley, taking it as the first wall once the
+	 * distance rises after it.
+	 */
+	private void trackValley(int rawDistance) {
+		if (rawDistance > this._maximumSinceReset)
+			this._maximumSinceReset = rawDistance;
+		if (rawDistance < this._valleyMinimum) {
+			this._valleyMinimum = rawDistance;
+			this._valleyStart = this._sweptAngle;
+			this._valleyEnd = this._sweptAngle;
+			this._entryMaximum = this._maximumSinceReset;
+		} else if (rawDistance == this._valleyMinimum) {
+			this._valleyEnd = this._sweptAngle;
+		} else if (rawDistance >= this._valleyMinimum + MINIMUM_RISE) {
+			if (isValleyAccepted()) {
+				double sweptAngle = (this._valleyStart + this._valleyEnd) / 2;
+				double angle = findValleyCenter(this._lastAngle + sweptAngle
+						- this._sweptAngle, this._valleyMinimum);
+				if (!Double.isNaN(angle)) {
+					// The valley minimum is biased low by the noise, so
+					// the distance is read from the bin facing the wall.
+					this._hasWall = true;
+					this._wallAngle = angle;
+					this._wallDistance = this._rawMinima[toBin(angle)];
+				}
+			}
+			resetValley(rawDistance);
+		}
+	}
+
+	/**
+	 * Returns true if the valley is close enough to be a corner wall and the
+	 * distance rose on the near side as well, so it is not just the start of a
+	 * slope.
+	 */
+	private boolean isValleyAccepted() {
+		return this._valleyMinimum <= WALL_DISTANCE
+				&& this._entryMaximum >= this._valleyMinimum + MINIMUM_RISE;
+	}
+
+	/**
+	 * Returns the middle of the bins around the given angle that are within
+	 * NOISE of the minimum, or NaN if the distance has not been seen rising on
+	 * both sides yet. A valley cut off by the start of the turn is not
+	 * centered on the wall, so it is not used.
+	 */
+	private double findValleyCenter(double angle, int minimum) {
+		int center = toBin(angle);
+		int first = findValleyEnd(center, minimum, -1);
+		int last = findValleyEnd(center, minimum, 1);
+		if (first == NO_BIN || last == NO_BIN)
+			return Double.NaN;
+		return AngleUtility.normalize((first + last) / 2.0 + 0.5);
+	}
+
+	/**
+	 * Walks from the given bin in the given direction and returns the last bin
+	 * within NOISE of the minimum before the distance rises by EDGE_RISE.
+	 * Returns NO_BIN if that rise is not found within VALLEY_HALF_WIDTH or
+	 * more than MAXIMUM_GAP bins in a row have no data.
+	 */
+	private int findValleyEnd(int center, int minimum, int direction) {
+		int end = 0;
+		int gap = 0;
+		for (int offset = 1; offset <= VALLEY_HALF_WIDTH; ++offset) {
+			int bin = (center + direction * offset + NUMBER_OF_BINS)
+					% NUMBER_OF_BINS;
+			int distance = this._rawMinima[bin];
+			if (distance == NO_DISTANCE) {
+				if (++gap > MAXIMUM_GAP)
+					return NO_BIN;
+				continue;
+			}
+			gap = 0;
+			if (distance >= minimum + EDGE_RISE)
+				return center + end;
+			if (distance <= minimum + NOISE)
+				end = direction * offset;
+		}
+		return NO_BIN;
+	}
+
+	/**
+	 * Looks for the second wall in the bins 90 degrees to either side of the
+	 * first wall. A side is taken once its valley has been seen on both sides
+	 * and its center is within RIGHT_ANGLE_TOLERANCE of a right angle. If both
+	 * sides qualify, the closer one is taken. The second wall is then placed
+	 * exactly 90 degrees from the first, since the center of its valley is
+	 * less accurate than the right angle of the corner.
+	 */
+	private void findSecondWall() {
+		int counterclockwiseBin = findPartner(this._wallAngle + 90);
+		int clockwiseBin = findPartner(this._wallAngle - 90);
+		double secondAngle;
+		if (counterclockwiseBin != NO_BIN
+				&& (clockwiseBin == NO_BIN || isCloser(counterclockwiseBin,
+						clockwiseBin))) {
+			secondAngle = this._wallAngle + 90;
+		} else if (clockwiseBin != NO_BIN) {
+			secondAngle = this._wallAngle - 90;
+		} else {
+			return;
+		}
+		setWalls(this._wallAngle, this._wallDistance, secondAngle,
+				this._filteredAtMinima[findClosestBin(secondAngle)]);
+	}
+
+	/**
+	 * Returns true if the wall seen in the first bin is not farther than the
+	 * one seen in the second.
+	 */
+	private boolean isCloser(int firstBin, int secondBin) {
+		return this._filteredAtMinima[firstBin]
+				<= this._filteredAtMinima[secondBin];
+	}
+
+	/**
+	 * Returns the lowest bin of the wall valley near the given angle, or
+	 * NO_BIN if none has been seen yet.
+	 */
+	private int findPartner(double angle) {
+		int center = toBin(angle);
+		int minimumBin = center;
+		for (int offset = -RIGHT_ANGLE_TOLERANCE;
+				offset <= RIGHT_ANGLE_TOLERANCE; ++offset) {
+			int bin = (center + offset + NUMBER_OF_BINS) % NUMBER_OF_BINS;
+			if (this._rawMinima[bin] < this._rawMinima[minimumBin])
+				minimumBin = bin;
+		}
+		int minimum = this._rawMinima[minimumBin];
+		if (minimum > WALL_DISTANCE)
+			return NO_BIN;
+		double valleyCenter = findValleyCenter(minimumBin, minimum);
+		if (Double.isNaN(valleyCenter)
+				|| AngleUtility.absoluteDifference(valleyCenter,
+						angle) > RIGHT_ANGLE_TOLERANCE)
+			return NO_BIN;
+		return minimumBin;
+	}
+
+	/**
+	 * Takes the lowest bins as the first wall and the lower of the bins 90
+	 * degrees to each side as the second wall.
+	 */
+	private void findWallsFromBins() {
+		int minimum = NO_DISTANCE;
+		for (int i = 0; i < NUMBER_OF_BINS; ++i) {
+			if (this._rawMinima[i] < minimum)
+				minimum = this._rawMinima[i];
+		}
+		double sumOfX = 0;
+		double sumOfY = 0;
+		for (int i = 0; i < NUMBER_OF_BINS; ++i) {
+			if (this._rawMinima[i] == minimum) {
+				sumOfX += Math.cos(Math.toRadians(i + 0.5));
+				sumOfY += Math.sin(Math.toRadians(i + 0.5));
+			}
+		}
+		double minimumAngle = AngleUtility.normalize(Math.toDegrees(Math
+				.atan2(sumOfY, sumOfX)));
+		int counterclockwiseBin = findClosestBin(minimumAngle + 90);
+		int clockwiseBin = findClosestBin(minimumAngle - 90);
+		int secondBin = isCloser(counterclockwiseBin, clockwiseBin)
+				? counterclockwiseBin : clockwiseBin;
+		setWalls(minimumAngle, minimum, secondBin + 0.5,
+				this._filteredAtMinima[secondBin]);
+	}
+
+	/**
+	 * Returns the bin with data closest to the given angle.
+	 */
+	private int findClosestBin(double angle) {
+		int center = toBin(angle);
+		for (int offset = 0; offset < NUMBER_OF_BINS / 2; ++offset) {
+			int after = (center + offset) % NUMBER_OF_BINS;
+			if (this._rawMinima[after] != NO_DISTANCE)
+				return after;
+			int before = (center - offset + NUMBER_OF_BINS) % NUMBER_OF_BINS;
+			if (this._rawMinima[before] != NO_DISTANCE)
+				return before;
+		}
+		return center;
+	}
+
+	/**
+	 * Sorts the two walls into x and y. The y wall lies 90 degrees
+	 * counterclockwise from the x wall.
+	 */
+	private void setWalls(double firstAngle, int firstDistance,
+			double secondAngle, int secondDistance) {
+		boolean firstIsXWall = AngleUtility.difference(secondAngle,
+				firstAngle) > 0;
+		this._xWallAngle = AngleUtility.normalize(firstIsXWall ? firstAngle
+				: secondAngle);
+		this._xWallDistance = firstIsXWall ? firstDistance : secondDistance;
+		this._yWallAngle = AngleUtility.normalize(firstIsXWall ? secondAngle
+				: firstAngle);
+		this._yWallDistance = firstIsXWall ? secondDistance : firstDistance;
+		this._isDone = true;
+	}
+
+	private void resetValley(int distance) {
+		this._valleyMinimum = Integer.MAX_VALUE;
+		this._maximumSinceReset = distance;
+		this._entryMaximum = distance;
+	}
+
+	private static int toBin(double angle) {
+		return (int) AngleUtility.normalize(angle) % NUMBER_OF_BINS;
+	}
+}
@@ -0,0 +1,356 @@
+package nxt.nav.path;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nxt.NXTConstants;
+import nxt.data.Point;
+import nxt.data.Tile;
+
+/**
+ * A class to generate a path made of straight line segments in any direction
+ * between tile centers, using Theta* search. Line of sight between two tiles is
+ * checked against the obstacles inflated by the footprint of the robot, so
+ * shortcuts are only taken where the robot can actually drive.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class AnyAnglePathGenerator {
+	/**
+	 * Half of the width swept by the robot when driving in a straight line.
+	 */
+	private static final double SWEEP_HALF_WIDTH = Math.max(
+			Math.abs(NXTConstants.ROBOT_Y_MIN),
+			Math.abs(NXTConstants.ROBOT_Y_MAX));
+
+	/**
+	 * The clearance needed around a tile center to turn in place there. Since
+	 * the front and back of the robot are contained in this radius, it also
+	 * covers the ends of the robot when stopped at a turn.
+	 */
+	private static final double ROTATION_CLEARANCE = NXTConstants.ROBOT_RADIUS_OF_ROTATION;
+
+	private static final double TILE_DISTANCE = NXTConstants.TILE_DISTANCE;
+
+	private final Grid _grid;
+	private final int _rows;
+	private final int _columns;
+	private final int _start;
+	private final int _destination;
+
+	private double[] _costs;
+	private int[] _parents;
+	private boolean[] _closed;
+	private boolean[] _canRotate;
+
+	/**
+	 * Generates a path from the starting tile to the destination given the
+	 * locations of obstacles and inaccessible tiles. The path starts and ends
+	 * at tile centers.
+	 */
+	public static Path generatePath(int rows, int columns, Tile destination,
+			Tile[] obstacles, Tile[] notAccessible) {
+		AnyAnglePathGenerator pathGenerator = new AnyAnglePathGenerator(rows,
+				columns, destination, obstacles, notAccessible);
+		return pathGenerator.generate();
+	}
+
+	private AnyAnglePathGenerator(int rows, int columns, Tile destination,
+			Tile[] obstacles, Tile[] notAccessible) {
+		this._grid = new Grid(rows, columns);
+		this._grid.addObstacles(obstacles);
+		this._grid.addNotAccessible(notAccessible);
+		this._rows = rows;
+		this._columns = columns;
+		this._start = toNode(0, 0);
+		if (!this._grid.isAccessible(destination)) {
+			throw new IllegalStateException("No path to destination");
+		}
+		this._destination = toNode(destination.x, destination.y);
+	}
+
+	private Path generate() {
+		initializeConfigurationSpace();
+		search();
+		return convertNodesToPath(getNodePath());
+	}
+
+	/**
+	 * Marks the tiles with enough room around them to turn in place.
+	 */
+	private void initializeConfigurationSpace() {
+		int numberOfNodes = this._rows * this._columns;
+		this._canRotate = new boolean[numberOfNodes];
+		for (int node = 0; node < numberOfNodes; ++node) {
+			this._canRotate[node] = isAccessible(node)
+					&& !isBlockedWithin(centerX(node), centerY(node),
+							centerX(node), centerY(node), ROTATION_CLEARANCE);
+		}
+	}
+
+	private void search() {
+		int numberOfNodes = this._rows * this._columns;
+		this._costs = new double[numberOfNodes];
+		this._parents = new int[numberOfNodes];
+		this._closed = new boolean[numberOfNodes];
+		for (int node = 0; node < numberOfNodes; ++node) {
+			this._costs[node] = Double.POSITIVE_INFINITY;
+			this._parents[node] = -1;
+		}
+		NodeHeap openList = new NodeHeap(numberOfNodes);
+		this._costs[this._start] = 0;
+		this._parents[this._start] = this._start;
+		openList.insert(this._start, heuristic(this._start));
+		while (!openList.isEmpty()) {
+			int current = openList.removeMinimum();
+			if (current == this._destination) {
+				return;
+			}
+			this._closed[current] = true;
+			int x = tileX(current);
+			int y = tileY(current);
+			updateNeighbor(openList, current, x + 1, y);
+			updateNeighbor(openList, current, x, y - 1);
+			updateNeighbor(openList, current, x, y + 1);
+			updateNeighbor(openList, current, x - 1, y);
+		}
+		throw new IllegalStateException("No path to destination");
+	}
+
+	private void updateNeighbor(NodeHeap openList, int current, int x, int y) {
+		if (!this._grid.isAccessible(x, y)) {
+			return;
+		}
+		int neighbor = toNode(x, y);
+		if (this._closed[neighbor]) {
+			return;
+		}
+		int parent = this._parents[current];
+		int newParent;
+		double newCost;
+		if (parent != current && canShortcut(parent, neighbor)) {
+			newParent = parent;
+			newCost = this._costs[parent] + distance(parent, neighbor);
+		} else {
+			newParent = current;
+			newCost = this._costs[current] + TILE_DISTANCE;
+		}
+		if (newCost < this._costs[neighbor]) {
+			this._costs[neighbor] = newCost;
+			this._parents[neighbor] = newParent;
+			openList.insert(neighbor, newCost + heuristic(neighbor));
+		}
+	}
+
+	/**
+	 * Returns true if the robot can drive straight from the first node to the
+	 * second. Diagonal segments also need room to turn at both ends, except at
+	 * the start and destination.
+	 */
+	private boolean canShortcut(int first, int second) {
+		boolean isAxisAligned = tileX(first) == tileX(second)
+				|| tileY(first) == tileY(second);
+		if (!isAxisAligned) {
+			if (first != this._start && !this._canRotate[first])
+				return false;
+			if (second != this._destination && !this._canRotate[second])
+				return false;
+		}
+		return !isBlockedWithin(centerX(first), centerY(first),
+				centerX(second), centerY(second), SWEEP_HALF_WIDTH);
+	}
+
+	/**
+	 * Returns true if a blocked tile or the edge of the field lies closer than
+	 * the given clearance to the segment between the two points.
+	 */
+	private boolean isBlockedWithin(double x1, double y1, double x2,
+			double y2, double clearance) {
+		int minimumX = toTile(Math.min(x1, x2) - clearance);
+		int maximumX = toTile(Math.max(x1, x2) + clearance);
+		int minimumY = toTile(Math.min(y1, y2) - clearance);
+		int maximumY = toTile(Math.max(y1, y2) + clearance);
+		for (int x = minimumX; x <= maximumX; ++x) {
+			for (int y = minimumY; y <= maximumY; ++y) {
+				if (!this._grid.isAccessible(x, y)) {
+					double distance = distanceFromSegmentToTile(x1, y1, x2,
+							y2, x, y);
+					if (distance < clearance)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private int[] getNodePath() {
+		List<Integer> reversedPath = new ArrayList<>();
+		int node = this._destination;
+		reversedPath.add(node);
+		while (node != this._start) {
+			node = this._parents[node];
+			reversedPath.add(node);
+		}
+		int[] nodePath = new int[reversedPath.size()];
+		for (int i = 0; i < nodePath.length; ++i) {
+			nodePath[i] = reversedPath.get(nodePath.length - 1 - i);
+		}
+		return removeCollinearNodes(nodePath);
+	}
+
+	private int[] removeCollinearNodes(int[] nodePath) {
+		int[] newPath = new int[nodePath.length];
+		newPath[0] = nodePath[0];
+		int count = 1;
+		for (int i = 1; i < nodePath.length - 1; ++i) {
+			int previous = newPath[count - 1];
+			int next = nodePath[i + 1];
+			int crossProduct = (tileX(nodePath[i]) - tileX(previous))
+					* (tileY(next) - tileY(nodePath[i]))
+					- (tileY(nodePath[i]) - tileY(previous))
+					* (tileX(next) - tileX(nodePath[i]));
+			if (crossProduct != 0) {
+				newPath[count++] = nodePath[i];
+			}
+		}
+		if (nodePath.length > 1) {
+			newPath[count++] = nodePath[nodePath.length - 1];
+		}
+		int[] result = new int[count];
+		for (int i = 0; i < count; ++i) {
+			result[i] = newPath[i];
+		}
+		return result;
+	}
+
+	private Path convertNodesToPath(int[] nodePath) {
+		Path path = new Path();
+		for (int i = 0; i < nodePath.length - 1; ++i) {
+			Point start = new Point(centerX(nodePath[i]),
+					centerY(nodePath[i]));
+			Point end = new Point(centerX(nodePath[i + 1]),
+					centerY(nodePath[i + 1]));
+			path.add(new LineSegment(start, end));
+		}
+		return path;
+	}
+
+	private double heuristic(int node) {
+		return distance(node, this._destination);
+	}
+
+	private double distance(int first, int second) {
+		double xDifference = centerX(second) - centerX(first);
+		double yDifference = centerY(second) - centerY(first);
+		return Math.sqrt(xDifference * xDifference + yDifference
+				* yDifference);
+	}
+
+	private boolean isAccessible(int node) {
+		return this._grid.isAccessible(tileX(node), tileY(node));
+	}
+
+	private int toNode(int x, int y) {
+		return (x + 1) * this._columns + (y + 1);
+	}
+
+	private int tileX(int node) {
+		return node / this._columns - 1;
+	}
+
+	private int tileY(int node) {
+		return node % this._columns - 1;
+	}
+
+	private double centerX(int node) {
+		return (tileX(node) + 0.5) * TILE_DISTANCE;
+	}
+
+	private double centerY(int node) {
+		return (tileY(node) + 0.5) * TILE_DISTANCE;
+	}
+
+	private static int toTile(double coordinate) {
+		return (int) Math.floor(coordinate / TILE_DISTANCE);
+	}
+
+	/**
+	 * Computes the distance between the segment joining the two points and the
+	 * square covered by the given tile.
+	 */
+	private static double distanceFromSegmentToTile(double x1, double y1,
+			double x2, double y2, int tileX, int tileY) {
+		double left = tileX * TILE_DISTANCE;
+		double right = left + TILE_DISTANCE;
+		double bottom = tileY * TILE_DISTANCE;
+		double top = bottom + TILE_DISTANCE;
+		if (segmentIntersectsRectangle(x1, y1, x2, y2, left, right, bottom,
+				top)) {
+			return 0;
+		}
+		double distance = Math.min(
+				distanceFromPointToRectangle(x1, y1, left, right, bottom, top),
+				distanceFromPointToRectangle(x2, y2, left, right, bottom, top));
+		distance = Math.min(distance,
+				distanceFromPointToSegment(left, bottom, x1, y1, x2, y2));
+		distance = Math.min(distance,
+				distanceFromPointToSegment(left, top, x1, y1, x2, y2));
+		distance = Math.min(distance,
+				distanceFromPointToSegment(right, bottom, x1, y1, x2, y2));
+		distance = Math.min(distance,
+				distanceFromPointToSegment(right, top, x1, y1, x2, y2));
+		return distance;
+	}
+
+	/**
+	 * Clips the segment to the rectangle using the Liang-Barsky algorithm and
+	 * returns true if anything remains.
+	 */
+	private static boolean segmentIntersectsRectangle(double x1, double y1,
+			double x2, double y2, double left, double right, double bottom,
+			double top) {
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		double[] p = { -dx, dx, -dy, dy };
+		double[] q = { x1 - left, right - x1, y1 - bottom, top - y1 };
+		double entry = 0.0;
+		double exit = 1.0;
+		for (int i = 0; i < 4; ++i) {
+			if (p[i] == 0) {
+				if (q[i] < 0)
+					return false;
+			} else {
+				double t = q[i] / p[i];
+				if (p[i] < 0) {
+					entry = Math.max(entry, t);
+				} else {
+					exit = Math.min(exit, t);
+				}
+			}
+		}
+		return entry <= exit;
+	}
+
+	private static double distanceFromPointToRectangle(double x, double y,
+			double left, double right, double bottom, double top) {
+		double dx = Math.max(Math.max(left - x, 0), x - right);
+		double dy = Math.max(Math.max(bottom - y, 0), y - top);
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private static double distanceFromPointToSegment(double x, double y,
+			double x1, double y1, double x2, double y2) {
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		double lengthSquared = dx * dx + dy * dy;
+		double t = 0;
+		if (lengthSquared > 0) {
+			t = ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+			t = Math.max(0, Math.min(1, t));
+		}
+		double closestX = x1 + t * dx - x;
+		double closestY = y1 + t * dy - y;
+		return Math.sqrt(closestX * closestX + closestY * closestY);
+	}
+}
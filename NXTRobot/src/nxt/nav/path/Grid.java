@@ -100,6 +100,14 @@ public final class Grid {
 		return isInBounds(tile.x, tile.y);
 	}
 
+	public final int getRows() {
+		return this._rows;
+	}
+
+	public final int getColumns() {
+		return this._columns;
+	}
+
 	private void initializeGrid() {
 		for (int row = 0; row < this._rows; ++row) {
 			for (int column = 0; column < this._columns; ++column) {
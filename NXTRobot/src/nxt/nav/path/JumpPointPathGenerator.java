@@ -0,0 +1,522 @@
+package nxt.nav.path;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nxt.data.Tile;
+import nxt.test.Assert;
+
+/**
+ * A class to generate a path to travel using Jump Point Search on the four
+ * connected grid. Straight runs of tiles are skipped over without being added
+ * to the open list, so only the tiles at which the path may turn are expanded.
+ * The jump distances can optionally be precomputed for the whole grid (JPS+),
+ * which makes every jump take constant time. This is worth it when many
+ * queries are made on the same map.
+ *
+ * The search uses the canonical ordering in which a path moving in y may turn
+ * to x at any tile, while a path moving in x only turns to y next to the corner
+ * of an obstacle.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class JumpPointPathGenerator {
+	private static final int NONE = -1;
+
+	private final Grid _grid;
+	private final int _rows;
+	private final int _columns;
+	private final boolean[] _isFree;
+
+	private final boolean _usePrecomputedJumps;
+	private int[] _eastJumps;
+	private int[] _westJumps;
+	private int[] _northJumps;
+	private int[] _southJumps;
+
+	private final double[] _costs;
+	private final int[] _parents;
+	private final int[] _searchIDs;
+	private int _searchID;
+	private int _destination;
+	private int _destinationX;
+	private int _destinationY;
+	private int _nodesExpanded;
+
+	/**
+	 * Generates a path from the starting tile to the destination given the
+	 * locations of obstacles and inaccessible tiles.
+	 */
+	public static Path generatePath(int rows, int columns, Tile destination,
+			Tile[] obstacles, Tile[] notAccessible) {
+		JumpPointPathGenerator pathGenerator = new JumpPointPathGenerator(
+				rows, columns, obstacles, notAccessible, false);
+		return pathGenerator.generatePath(new Tile(0, 0), destination);
+	}
+
+	/**
+	 * Prepares a generator for repeated queries on the same map. If
+	 * usePrecomputedJumps is true, the jump distances are computed once here.
+	 */
+	public JumpPointPathGenerator(int rows, int columns, Tile[] obstacles,
+			Tile[] notAccessible, boolean usePrecomputedJumps) {
+		this._grid = new Grid(rows, columns);
+		this._grid.addObstacles(obstacles);
+		this._grid.addNotAccessible(notAccessible);
+		this._rows = rows;
+		this._columns = columns;
+		int numberOfNodes = rows * columns;
+		this._isFree = new boolean[numberOfNodes];
+		for (int node = 0; node < numberOfNodes; ++node) {
+			this._isFree[node] = this._grid.isAccessible(tileX(node),
+					tileY(node));
+		}
+		this._costs = new double[numberOfNodes];
+		this._parents = new int[numberOfNodes];
+		this._searchIDs = new int[numberOfNodes];
+		this._searchID = 0;
+		this._usePrecomputedJumps = usePrecomputedJumps;
+		if (usePrecomputedJumps) {
+			precomputeJumps();
+		}
+	}
+
+	/**
+	 * Generates a path between the two tiles in the same format as
+	 * PathGenerator.
+	 */
+	public final Path generatePath(Tile start, Tile destination) {
+		return TilePathConverter.convert(this._grid,
+				findTilePath(start, destination));
+	}
+
+	/**
+	 * Returns the sequence of adjacent tiles from start to destination along a
+	 * shortest path.
+	 */
+	public final Tile[] findTilePath(Tile start, Tile destination) {
+		if (!this._grid.isAccessible(start)
+				|| !this._grid.isAccessible(destination)) {
+			throw new IllegalStateException("No path to destination");
+		}
+		int startNode = toNode(start.x, start.y);
+		search(startNode, toNode(destination.x, destination.y));
+		return expandJumpPoints(startNode);
+	}
+
+	/**
+	 * Returns the number of nodes taken off the open list during the last
+	 * query.
+	 */
+	public final int getNodesExpanded() {
+		return this._nodesExpanded;
+	}
+
+	private void search(int start, int destination) {
+		++this._searchID;
+		this._destination = destination;
+		this._destinationX = tileX(destination);
+		this._destinationY = tileY(destination);
+		this._nodesExpanded = 0;
+		NodeHeap openList = new NodeHeap(this._rows * this._columns);
+		visit(start, 0, start);
+		openList.insert(start, heuristic(start));
+		while (!openList.isEmpty()) {
+			int current = openList.removeMinimum();
+			++this._nodesExpanded;
+			if (current == destination) {
+				return;
+			}
+			expand(openList, current);
+		}
+		throw new IllegalStateException("No path to destination");
+	}
+
+	private void expand(NodeHeap openList, int current) {
+		int x = tileX(current);
+		int y = tileY(current);
+		int parent = this._parents[current];
+		if (parent == current) {
+			addSuccessor(openList, current, jumpX(x, y, 1));
+			addSuccessor(openList, current, jumpX(x, y, -1));
+			addSuccessor(openList, current, jumpY(x, y, 1));
+			addSuccessor(openList, current, jumpY(x, y, -1));
+		} else if (tileX(parent) == x) {
+			int dy = y > tileY(parent) ? 1 : -1;
+			addSuccessor(openList, current, jumpY(x, y, dy));
+			addSuccessor(openList, current, jumpX(x, y, 1));
+			addSuccessor(openList, current, jumpX(x, y, -1));
+		} else {
+			int dx = x > tileX(parent) ? 1 : -1;
+			addSuccessor(openList, current, jumpX(x, y, dx));
+			if (isFree(x, y + 1) && !isFree(x - dx, y + 1)) {
+				addSuccessor(openList, current, jumpY(x, y, 1));
+			}
+			if (isFree(x, y - 1) && !isFree(x - dx, y - 1)) {
+				addSuccessor(openList, current, jumpY(x, y, -1));
+			}
+		}
+	}
+
+	private void addSuccessor(NodeHeap openList, int current, int successor) {
+		if (successor == NONE) {
+			return;
+		}
+		double cost = this._costs[current]
+				+ Math.abs(tileX(successor) - tileX(current))
+				+ Math.abs(tileY(successor) - tileY(current));
+		if (this._searchIDs[successor] != this._searchID
+				|| cost < this._costs[successor]) {
+			visit(successor, cost, current);
+			openList.insert(successor, cost + heuristic(successor));
+		}
+	}
+
+	private void visit(int node, double cost, int parent) {
+		this._searchIDs[node] = this._searchID;
+		this._costs[node] = cost;
+		this._parents[node] = parent;
+	}
+
+	/**
+	 * Jumps from the given tile in x until reaching the destination or a tile
+	 * next to the corner of an obstacle. Returns NONE if an obstacle is reached
+	 * first.
+	 */
+	private int jumpX(int x, int y, int dx) {
+		if (this._usePrecomputedJumps) {
+			return precomputedJumpX(x, y, dx);
+		}
+		while (true) {
+			x += dx;
+			if (!isFree(x, y))
+				return NONE;
+			if (x == this._destinationX && y == this._destinationY)
+				return toNode(x, y);
+			if (hasForcedNeighbor(x, y, dx))
+				return toNode(x, y);
+		}
+	}
+
+	/**
+	 * Jumps from the given tile in y until reaching the destination or a tile
+	 * from which a jump in x succeeds. Returns NONE if an obstacle is reached
+	 * first.
+	 */
+	private int jumpY(int x, int y, int dy) {
+		if (this._usePrecomputedJumps) {
+			return precomputedJumpY(x, y, dy);
+		}
+		while (true) {
+			y += dy;
+			if (!isFree(x, y))
+				return NONE;
+			if (x == this._destinationX && y == this._destinationY)
+				return toNode(x, y);
+			if (jumpX(x, y, 1) != NONE || jumpX(x, y, -1) != NONE)
+				return toNode(x, y);
+		}
+	}
+
+	/**
+	 * Returns true if the tile reached while moving in x has a free neighbor
+	 * in y that could not have been reached from the previous tile.
+	 */
+	private boolean hasForcedNeighbor(int x, int y, int dx) {
+		return (isFree(x, y + 1) && !isFree(x - dx, y + 1))
+				|| (isFree(x, y - 1) && !isFree(x - dx, y - 1));
+	}
+
+	/**
+	 * Stores for each tile and direction the number of steps to the next jump
+	 * point that does not depend on the destination. If there is none, stores
+	 * minus the number of free steps before an obstacle.
+	 */
+	private void precomputeJumps() {
+		int numberOfNodes = this._rows * this._columns;
+		this._eastJumps = new int[numberOfNodes];
+		this._westJumps = new int[numberOfNodes];
+		this._northJumps = new int[numberOfNodes];
+		this._southJumps = new int[numberOfNodes];
+		for (int y = -1; y < this._columns - 1; ++y) {
+			for (int x = this._rows - 2; x >= -1; --x) {
+				this._eastJumps[toNode(x, y)] = nextJumpX(x, y, 1,
+						this._eastJumps);
+			}
+			for (int x = -1; x < this._rows - 1; ++x) {
+				this._westJumps[toNode(x, y)] = nextJumpX(x, y, -1,
+						this._westJumps);
+			}
+		}
+		for (int x = -1; x < this._rows - 1; ++x) {
+			for (int y = this._columns - 2; y >= -1; --y) {
+				this._northJumps[toNode(x, y)] = nextJumpY(x, y, 1,
+						this._northJumps);
+			}
+			for (int y = -1; y < this._columns - 1; ++y) {
+				this._southJumps[toNode(x, y)] = nextJumpY(x, y, -1,
+						this._southJumps);
+			}
+		}
+	}
+
+	private int nextJumpX(int x, int y, int dx, int[] jumps) {
+		if (!isFree(x + dx, y))
+			return 0;
+		if (hasForcedNeighbor(x + dx, y, dx))
+			return 1;
+		return continueJump(jumps[toNode(x + dx, y)]);
+	}
+
+	private int nextJumpY(int x, int y, int dy, int[] jumps) {
+		if (!isFree(x, y + dy))
+			return 0;
+		int next = toNode(x, y + dy);
+		if (this._eastJumps[next] > 0 || this._westJumps[next] > 0)
+			return 1;
+		return continueJump(jumps[next]);
+	}
+
+	private static int continueJump(int jump) {
+		return jump > 0 ? jump + 1 : jump - 1;
+	}
+
+	private int precomputedJumpX(int x, int y, int dx) {
+		int jump = (dx > 0 ? this._eastJumps : this._westJumps)[toNode(x, y)];
+		if (y == this._destinationY) {
+			int stepsToDestination = (this._destinationX - x) * dx;
+			if (stepsToDestination > 0
+					&& stepsToDestination <= Math.abs(jump))
+				return this._destination;
+		}
+		return jump > 0 ? toNode(x + dx * jump, y) : NONE;
+	}
+
+	private int precomputedJumpY(int x, int y, int dy) {
+		int jump = (dy > 0 ? this._northJumps : this._southJumps)[toNode(x,
+				y)];
+		int stepsToDestinationRow = (this._destinationY - y) * dy;
+		if (stepsToDestinationRow > 0
+				&& stepsToDestinationRow <= Math.abs(jump)) {
+			int rowNode = toNode(x, this._destinationY);
+			if (rowNode == this._destination
+					|| canReachDestinationInX(x, this._destinationY))
+				return rowNode;
+		}
+		return jump > 0 ? toNode(x, y + dy * jump) : NONE;
+	}
+
+	/**
+	 * Returns true if a jump in x from the given tile in the destination row
+	 * would reach the destination.
+	 */
+	private boolean canReachDestinationInX(int x, int y) {
+		int dx = this._destinationX > x ? 1 : -1;
+		int jump = (dx > 0 ? this._eastJumps : this._westJumps)[toNode(x, y)];
+		return Math.abs(jump) >= (this._destinationX - x) * dx;
+	}
+
+	private Tile[] expandJumpPoints(int start) {
+		List<Integer> jumpPoints = new ArrayList<>();
+		int node = this._destination;
+		jumpPoints.add(node);
+		while (node != start) {
+			node = this._parents[node];
+			jumpPoints.add(node);
+		}
+		List<Tile> tiles = new ArrayList<>();
+		tiles.add(new Tile(tileX(start), tileY(start)));
+		for (int i = jumpPoints.size() - 1; i > 0; --i) {
+			int x = tileX(jumpPoints.get(i));
+			int y = tileY(jumpPoints.get(i));
+			int nextX = tileX(jumpPoints.get(i - 1));
+			int nextY = tileY(jumpPoints.get(i - 1));
+			int dx = Integer.signum(nextX - x);
+			int dy = Integer.signum(nextY - y);
+			while (x != nextX || y != nextY) {
+				x += dx;
+				y += dy;
+				tiles.add(new Tile(x, y));
+			}
+		}
+		Tile[] tilePath = new Tile[tiles.size()];
+		for (int i = 0; i < tilePath.length; ++i) {
+			tilePath[i] = tiles.get(i);
+		}
+		return tilePath;
+	}
+
+	private double heuristic(int node) {
+		return Math.abs(tileX(node) - this._destinationX)
+				+ Math.abs(tileY(node) - this._destinationY);
+	}
+
+	private boolean isFree(int x, int y) {
+		if (x < -1 || x >= this._rows - 1 || y < -1 || y >= this._columns - 1)
+			return false;
+		return this._isFree[toNode(x, y)];
+	}
+
+	private int toNode(int x, int y) {
+		return (x + 1) * this._columns + (y + 1);
+	}
+
+	private int tileX(int node) {
+		return node / this._columns - 1;
+	}
+
+	private int tileY(int node) {
+		return node % this._columns - 1;
+	}
+
+	/**
+	 * Checks both planners against the distances of GridGenerator on small
+	 * random maps, then times them on open, maze-like and random maps from
+	 * 12x12 to 2048x2048.
+	 */
+	public static void main(String[] args) {
+		JumpPointPathGeneratorTest.testShortestPaths();
+		JumpPointPathGeneratorTest.benchmark();
+	}
+
+	private static class JumpPointPathGeneratorTest {
+		private static final int NUMBER_OF_MAPS = 2000;
+		private static final int[] BENCHMARK_SIZES = { 12, 64, 256, 1024,
+				2048 };
+		private static final String[] BENCHMARK_MAPS = { "open", "maze",
+				"random" };
+		private static final int QUERIES_PER_SIZE = 4096;
+
+		private static void testShortestPaths() {
+			Random random = new Random(1);
+			for (int i = 0; i < NUMBER_OF_MAPS; ++i) {
+				int rows = 4 + random.nextInt(20);
+				int columns = 4 + random.nextInt(20);
+				Tile[] obstacles = generateRandomObstacles(rows, columns,
+						0.4 * random.nextDouble(), random);
+				Grid distances = GridGenerator.generateGrid(rows, columns,
+						obstacles, new Tile[0]);
+				Tile destination = new Tile(random.nextInt(rows) - 1,
+						random.nextInt(columns) - 1);
+				if (!distances.isAccessible(destination)
+						|| !distances.isInitialized(destination))
+					continue;
+				testShortestPath(rows, columns, obstacles, destination,
+						distances.get(destination), false);
+				testShortestPath(rows, columns, obstacles, destination,
+						distances.get(destination), true);
+			}
+		}
+
+		private static void testShortestPath(int rows, int columns,
+				Tile[] obstacles, Tile destination, int distance,
+				boolean usePrecomputedJumps) {
+			JumpPointPathGenerator generator = new JumpPointPathGenerator(
+					rows, columns, obstacles, new Tile[0],
+					usePrecomputedJumps);
+			Tile[] tilePath = generator.findTilePath(new Tile(0, 0),
+					destination);
+			Assert.assertTrue(tilePath.length == distance + 1,
+					"Path is not the shortest");
+			for (int i = 1; i < tilePath.length; ++i) {
+				Assert.assertTrue(generator._grid.isAccessible(tilePath[i]),
+						"Path crosses an obstacle");
+				Assert.assertTrue(Math.abs(tilePath[i].x - tilePath[i - 1].x)
+						+ Math.abs(tilePath[i].y - tilePath[i - 1].y) == 1,
+						"Path skips a tile");
+			}
+		}
+
+		private static void benchmark() {
+			for (int size : BENCHMARK_SIZES) {
+				for (String map : BENCHMARK_MAPS) {
+					benchmark(size, map);
+				}
+			}
+		}
+
+		private static void benchmark(int size, String map) {
+			Random random = new Random(size);
+			Tile[] obstacles;
+			if (map.equals("maze")) {
+				obstacles = generateMazeObstacles(size, random);
+			} else if (map.equals("random")) {
+				obstacles = generateRandomObstacles(size, size, 0.2, random);
+			} else {
+				obstacles = new Tile[0];
+			}
+			Tile destination = new Tile(size - 2, size - 2);
+			int queries = Math.max(1, QUERIES_PER_SIZE / size);
+
+			JumpPointPathGenerator generator = new JumpPointPathGenerator(
+					size, size, obstacles, new Tile[0], false);
+			long startTime = System.currentTimeMillis();
+			JumpPointPathGenerator precomputedGenerator;
+			precomputedGenerator = new JumpPointPathGenerator(size, size,
+					obstacles, new Tile[0], true);
+			long buildTime = System.currentTimeMillis() - startTime;
+
+			startTime = System.currentTimeMillis();
+			for (int i = 0; i < queries; ++i) {
+				generator.findTilePath(new Tile(0, 0), destination);
+			}
+			double time = toMillisecondsPerQuery(startTime, queries);
+			startTime = System.currentTimeMillis();
+			for (int i = 0; i < queries; ++i) {
+				precomputedGenerator.findTilePath(new Tile(0, 0),
+						destination);
+			}
+			double precomputedTime = toMillisecondsPerQuery(startTime,
+					queries);
+
+			System.out.println(size + "x" + size + " " + map + ": JPS "
+					+ time + " ms, " + generator.getNodesExpanded()
+					+ " expanded; JPS+ " + precomputedTime + " ms, "
+					+ precomputedGenerator.getNodesExpanded()
+					+ " expanded, " + buildTime + " ms to build");
+		}
+
+		private static double toMillisecondsPerQuery(long startTime,
+				int queries) {
+			long time = System.currentTimeMillis() - startTime;
+			return Math.round(1000.0 * time / queries) / 1000.0;
+		}
+
+		/**
+		 * Returns random obstacles that leave the starting tile and the
+		 * opposite corner free.
+		 */
+		private static Tile[] generateRandomObstacles(int rows, int columns,
+				double density, Random random) {
+			List<Tile> obstacles = new ArrayList<>();
+			for (int x = -1; x < rows - 1; ++x) {
+				for (int y = -1; y < columns - 1; ++y) {
+					boolean isCorner = (x <= 0 && y <= 0)
+							|| (x >= rows - 3 && y >= columns - 3);
+					if (!isCorner && random.nextDouble() < density)
+						obstacles.add(new Tile(x, y));
+				}
+			}
+			return obstacles.toArray(new Tile[obstacles.size()]);
+		}
+
+		/**
+		 * Returns walls across the map every four rows, each with two
+		 * randomly placed gaps.
+		 */
+		private static Tile[] generateMazeObstacles(int size, Random random) {
+			List<Tile> obstacles = new ArrayList<>();
+			for (int x = 2; x < size - 3; x += 4) {
+				int firstGap = random.nextInt(size) - 1;
+				int secondGap = random.nextInt(size) - 1;
+				for (int y = -1; y < size - 1; ++y) {
+					if (y != firstGap && y != secondGap)
+						obstacles.add(new Tile(x, y));
+				}
+			}
+			return obstacles.toArray(new Tile[obstacles.size()]);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package nxt.nav.path;
+
+import nxt.data.Point;
+import nxt.nav.Navigation;
+
+/**
+ * A class that represents a straight segment of path between two points in any
+ * direction.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class LineSegment implements PathItem {
+	private final Point _start;
+	private final Point _end;
+
+	public LineSegment(Point start, Point end) {
+		this._start = new Point(start);
+		this._end = new Point(end);
+		if (this._start.x == this._end.x && this._start.y == this._end.y) {
+			throw new IllegalArgumentException("Invalid line segment");
+		}
+	}
+
+	@Override
+	public final void traverseForward(Navigation navigation) {
+		navigation.travelTo(this._end);
+	}
+
+	@Override
+	public final void traverseBackward(Navigation navigation) {
+		navigation.travelTo(this._start);
+	}
+
+	public final Point getStart() {
+		return new Point(this._start);
+	}
+
+	public final Point getEnd() {
+		return new Point(this._end);
+	}
+}
@@ -0,0 +1,177 @@
+package nxt.nav.path;
+
+import java.util.Random;
+
+import nxt.test.Assert;
+
+/**
+ * A binary min-heap of grid node indices ordered by a priority, used as the
+ * open list of the path searches. Supports changing the priority of a node
+ * already in the heap.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class NodeHeap {
+	private static final int NOT_IN_HEAP = -1;
+
+	private final int[] _heap;
+	private final int[] _positions;
+	private final double[] _priorities;
+	private int _size;
+
+	/**
+	 * Creates a heap that can hold the nodes 0 to numberOfNodes - 1.
+	 */
+	NodeHeap(int numberOfNodes) {
+		this._heap = new int[numberOfNodes];
+		this._positions = new int[numberOfNodes];
+		this._priorities = new double[numberOfNodes];
+		for (int i = 0; i < numberOfNodes; ++i) {
+			this._positions[i] = NOT_IN_HEAP;
+		}
+		this._size = 0;
+	}
+
+	final boolean isEmpty() {
+		return this._size == 0;
+	}
+
+	final boolean contains(int node) {
+		return this._positions[node] != NOT_IN_HEAP;
+	}
+
+	/**
+	 * Inserts the node with the given priority, or changes its priority if it
+	 * is already in the heap.
+	 */
+	final void insert(int node, double priority) {
+		this._priorities[node] = priority;
+		if (contains(node)) {
+			siftUp(this._positions[node]);
+			siftDown(this._positions[node]);
+		} else {
+			this._heap[this._size] = node;
+			this._positions[node] = this._size;
+			++this._size;
+			siftUp(this._size - 1);
+		}
+	}
+
+	/**
+	 * Removes and returns the node with the lowest priority.
+	 */
+	final int removeMinimum() {
+		int minimum = this._heap[0];
+		--this._size;
+		swap(0, this._size);
+		this._positions[minimum] = NOT_IN_HEAP;
+		siftDown(0);
+		return minimum;
+	}
+
+	private void siftUp(int index) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (priorityAt(index) >= priorityAt(parent))
+				return;
+			swap(index, parent);
+			index = parent;
+		}
+	}
+
+	private void siftDown(int index) {
+		while (true) {
+			int left = 2 * index + 1;
+			int right = left + 1;
+			int smallest = index;
+			if (left < this._size && priorityAt(left) < priorityAt(smallest))
+				smallest = left;
+			if (right < this._size && priorityAt(right) < priorityAt(smallest))
+				smallest = right;
+			if (smallest == index)
+				return;
+			swap(index, smallest);
+			index = smallest;
+		}
+	}
+
+	private double priorityAt(int index) {
+		return this._priorities[this._heap[index]];
+	}
+
+	private void swap(int first, int second) {
+		int temp = this._heap[first];
+		this._heap[first] = this._heap[second];
+		this._heap[second] = temp;
+		this._positions[this._heap[first]] = first;
+		this._positions[this._heap[second]] = second;
+	}
+
+	public static void main(String[] args) {
+		NodeHeapTest.testRemovesInPriorityOrder();
+		NodeHeapTest.testChangesPriority();
+		NodeHeapTest.testReinsertsRemovedNodes();
+	}
+
+	private static class NodeHeapTest {
+		private static final int NUMBER_OF_NODES = 1000;
+
+		private static void testRemovesInPriorityOrder() {
+			Random random = new Random(1);
+			NodeHeap heap = new NodeHeap(NUMBER_OF_NODES);
+			double[] priorities = new double[NUMBER_OF_NODES];
+			for (int node = 0; node < NUMBER_OF_NODES; ++node) {
+				priorities[node] = random.nextInt(100);
+				heap.insert(node, priorities[node]);
+			}
+			assertRemovesAll(heap, priorities);
+		}
+
+		private static void testChangesPriority() {
+			Random random = new Random(2);
+			NodeHeap heap = new NodeHeap(NUMBER_OF_NODES);
+			double[] priorities = new double[NUMBER_OF_NODES];
+			for (int node = 0; node < NUMBER_OF_NODES; ++node) {
+				priorities[node] = random.nextDouble();
+				heap.insert(node, priorities[node]);
+			}
+			for (int i = 0; i < NUMBER_OF_NODES; ++i) {
+				int node = random.nextInt(NUMBER_OF_NODES);
+				priorities[node] = random.nextDouble();
+				heap.insert(node, priorities[node]);
+			}
+			assertRemovesAll(heap, priorities);
+		}
+
+		private static void testReinsertsRemovedNodes() {
+			NodeHeap heap = new NodeHeap(3);
+			heap.insert(0, 2.0);
+			heap.insert(1, 1.0);
+			Assert.assertTrue(heap.removeMinimum() == 1);
+			Assert.assertFalse(heap.contains(1));
+			heap.insert(1, 3.0);
+			heap.insert(2, 0.0);
+			Assert.assertTrue(heap.removeMinimum() == 2);
+			Assert.assertTrue(heap.removeMinimum() == 0);
+			Assert.assertTrue(heap.removeMinimum() == 1);
+			Assert.assertTrue(heap.isEmpty());
+		}
+
+		private static void assertRemovesAll(NodeHeap heap,
+				double[] priorities) {
+			boolean[] isRemoved = new boolean[priorities.length];
+			double previousPriority = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < priorities.length; ++i) {
+				Assert.assertFalse(heap.isEmpty());
+				int node = heap.removeMinimum();
+				Assert.assertFalse(isRemoved[node], "Node removed twice");
+				Assert.assertTrue(priorities[node] >= previousPriority,
+						"Node removed out of order");
+				isRemoved[node] = true;
+				previousPriority = priorities[node];
+			}
+			Assert.assertTrue(heap.isEmpty());
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package nxt.nav.path;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nxt.data.Tile;
+
+/**
+ * A cache of generated paths stored in a file, keyed by a hash of the map they
+ * were generated for. The whole file is read once when the cache is created.
+ * On a miss, the path is generated and written back to the file so that the
+ * next run can skip the search. The file can also be built ahead of time and
+ * uploaded with the program.
+ *
+ * The file holds a magic number, a format version, the number of entries, and
+ * for each entry its key, its length and the encoded path.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class PathCache {
+	private static final int MAGIC = 0x50415448;
+	private static final int VERSION = 1;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File _file;
+	private final List<Long> _keys;
+	private final List<byte[]> _entries;
+
+	/**
+	 * Loads the cache from the given file. A missing or unreadable file gives
+	 * an empty cache.
+	 */
+	public PathCache(String fileName) {
+		this._file = new File(fileName);
+		this._keys = new ArrayList<>();
+		this._entries = new ArrayList<>();
+		load();
+	}
+
+	/**
+	 * Returns the path generated by PathGenerator for the given map, from the
+	 * cache if possible. An entry that cannot be decoded is dropped and the
+	 * path is generated again.
+	 */
+	public final Path getPath(int rows, int columns, Tile destination,
+			Tile[] obstacles, Tile[] notAccessible) {
+		long key = computeKey(rows, columns, destination, obstacles,
+				notAccessible);
+		int index = this._keys.indexOf(key);
+		if (index != -1) {
+			try {
+				return PathCodec.decode(this._entries.get(index), 0);
+			} catch (RuntimeException e) {
+				// A truncated or corrupted entry is replaced.
+				this._keys.remove(index);
+				this._entries.remove(index);
+			}
+		}
+		Path path = PathGenerator.generatePath(rows, columns, destination,
+				obstacles, notAccessible);
+		this._keys.add(key);
+		this._entries.add(PathCodec.encode(path));
+		save();
+		return path;
+	}
+
+	/**
+	 * Computes a 64 bit FNV-1a hash of the map. The hash is taken over the
+	 * contents of the grid rather than the tile arrays, so the order of the
+	 * tiles and any duplicates do not matter.
+	 */
+	public static final long computeKey(int rows, int columns,
+			Tile destination, Tile[] obstacles, Tile[] notAccessible) {
+		Grid grid = new Grid(rows, columns);
+		grid.addObstacles(obstacles);
+		grid.addNotAccessible(notAccessible);
+		long hash = FNV_OFFSET_BASIS;
+		hash = hashInt(hash, VERSION);
+		hash = hashInt(hash, rows);
+		hash = hashInt(hash, columns);
+		hash = hashInt(hash, destination.x);
+		hash = hashInt(hash, destination.y);
+		for (int row = -1; row < rows - 1; ++row) {
+			for (int column = -1; column < columns - 1; ++column) {
+				hash = hashInt(hash, grid.get(row, column));
+			}
+		}
+		return hash;
+	}
+
+	private static long hashInt(long hash, int value) {
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			hash ^= (value >> shift) & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private void load() {
+		if (!this._file.exists())
+			return;
+		byte[] data = new byte[(int) this._file.length()];
+		try {
+			FileInputStream in = new FileInputStream(this._file);
+			try {
+				int count = 0;
+				while (count < data.length) {
+					int read = in.read(data, count, data.length - count);
+					if (read < 0)
+						break;
+					count += read;
+				}
+			} finally {
+				in.close();
+			}
+			parse(data);
+		} catch (IOException e) {
+			e.printStackTrace();
+			clear();
+		} catch (RuntimeException e) {
+			// A truncated or corrupted file is ignored.
+			clear();
+		}
+	}
+
+	private void parse(byte[] data) {
+		if (data.length < 10 || readInt(data, 0) != MAGIC
+				|| readInt(data, 4) != VERSION)
+			return;
+		int numberOfEntries = readShort(data, 8);
+		int offset = 10;
+		for (int i = 0; i < numberOfEntries; ++i) {
+			long key = ((long) readInt(data, offset) << 32)
+					| (readInt(data, offset + 4) & 0xFFFFFFFFL);
+			int length = readShort(data, offset + 8);
+			offset += 10;
+			byte[] entry = new byte[length];
+			System.arraycopy(data, offset, entry, 0, length);
+			offset += length;
+			this._keys.add(key);
+			this._entries.add(entry);
+		}
+	}
+
+	private void save() {
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					this._file));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeShort(this._keys.size());
+				for (int i = 0; i < this._keys.size(); ++i) {
+					out.writeLong(this._keys.get(i));
+					out.writeShort(this._entries.get(i).length);
+					out.write(this._entries.get(i));
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void clear() {
+		this._keys.clear();
+		this._entries.clear();
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return (readShort(data, offset) << 16) | readShort(data, offset + 2);
+	}
+
+	private static int readShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+}
@@ -0,0 +1,289 @@
+package nxt.nav.path;
+
+import nxt.data.Point;
+import nxt.data.Tile;
+import nxt.nav.Direction;
+import nxt.test.Assert;
+
+/**
+ * A class to convert paths to and from a compact binary form. A path is stored
+ * as the number of items followed by each item, introduced by a one byte type.
+ * Tiles are stored as one byte per coordinate, which covers any field the
+ * robot can drive on.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class PathCodec {
+	private static final byte PATH_SEGMENT = 0;
+	private static final byte WAYPOINT = 1;
+	private static final byte LINE_SEGMENT = 2;
+
+	private static final int LEFT_WALL = 0x01;
+	private static final int RIGHT_WALL = 0x02;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private byte[] _data;
+	private int _offset;
+
+	/**
+	 * Returns the encoded form of the path.
+	 */
+	static byte[] encode(Path path) {
+		PathCodec codec = new PathCodec(new byte[getEncodedLength(path)], 0);
+		codec.writeShort(path.getItems().size());
+		for (PathItem pathItem : path.getItems()) {
+			codec.writeItem(pathItem);
+		}
+		return codec._data;
+	}
+
+	/**
+	 * Decodes the path stored in the data at the given offset.
+	 */
+	static Path decode(byte[] data, int offset) {
+		PathCodec codec = new PathCodec(data, offset);
+		Path path = new Path();
+		int numberOfItems = codec.readShort();
+		for (int i = 0; i < numberOfItems; ++i) {
+			path.add(codec.readItem());
+		}
+		return path;
+	}
+
+	private PathCodec(byte[] data, int offset) {
+		this._data = data;
+		this._offset = offset;
+	}
+
+	private static int getEncodedLength(Path path) {
+		int length = 2;
+		for (PathItem pathItem : path.getItems()) {
+			if (pathItem instanceof PathSegment) {
+				length += 6;
+			} else if (pathItem instanceof Waypoint) {
+				length += 4;
+			} else if (pathItem instanceof LineSegment) {
+				length += 17;
+			} else {
+				throw new IllegalArgumentException("Invalid path item");
+			}
+		}
+		return length;
+	}
+
+	private void writeItem(PathItem pathItem) {
+		if (pathItem instanceof PathSegment) {
+			PathSegment pathSegment = (PathSegment) pathItem;
+			writeByte(PATH_SEGMENT);
+			writeTile(pathSegment.getFirstTile());
+			writeTile(pathSegment.getLastTile());
+			int walls = 0;
+			if (pathSegment.hasLeftWall())
+				walls |= LEFT_WALL;
+			if (pathSegment.hasRightWall())
+				walls |= RIGHT_WALL;
+			writeByte(walls);
+		} else if (pathItem instanceof Waypoint) {
+			Waypoint waypoint = (Waypoint) pathItem;
+			writeByte(WAYPOINT);
+			writeByte(waypoint.getFirstDirection().ordinal() << 4
+					| waypoint.getSecondDirection().ordinal());
+			writeTile(waypoint.getTile());
+		} else {
+			LineSegment lineSegment = (LineSegment) pathItem;
+			writeByte(LINE_SEGMENT);
+			writePoint(lineSegment.getStart());
+			writePoint(lineSegment.getEnd());
+		}
+	}
+
+	private PathItem readItem() {
+		int type = readByte();
+		if (type == PATH_SEGMENT) {
+			Tile firstTile = readTile();
+			Tile lastTile = readTile();
+			int walls = readByte();
+			return new PathSegment(firstTile, lastTile,
+					(walls & LEFT_WALL) != 0, (walls & RIGHT_WALL) != 0);
+		} else if (type == WAYPOINT) {
+			int directions = readByte();
+			return new Waypoint(DIRECTIONS[(directions >> 4) & 0x0F],
+					DIRECTIONS[directions & 0x0F], readTile());
+		} else if (type == LINE_SEGMENT) {
+			Point start = readPoint();
+			Point end = readPoint();
+			return new LineSegment(start, end);
+		} else {
+			throw new IllegalArgumentException("Invalid path item");
+		}
+	}
+
+	private void writeTile(Tile tile) {
+		writeByte(tile.x);
+		writeByte(tile.y);
+	}
+
+	private Tile readTile() {
+		int x = readByte();
+		int y = readByte();
+		return new Tile(x, y);
+	}
+
+	private void writePoint(Point point) {
+		writeInt(Float.floatToIntBits((float) point.x));
+		writeInt(Float.floatToIntBits((float) point.y));
+	}
+
+	private Point readPoint() {
+		float x = Float.intBitsToFloat(readInt());
+		float y = Float.intBitsToFloat(readInt());
+		return new Point(x, y);
+	}
+
+	private void writeByte(int value) {
+		this._data[this._offset++] = (byte) value;
+	}
+
+	private void writeShort(int value) {
+		writeByte(value >> 8);
+		writeByte(value);
+	}
+
+	private void writeInt(int value) {
+		writeShort(value >> 16);
+		writeShort(value);
+	}
+
+	/**
+	 * Reads a signed byte.
+	 */
+	private int readByte() {
+		return this._data[this._offset++];
+	}
+
+	/**
+	 * Reads an unsigned short.
+	 */
+	private int readShort() {
+		int high = readByte() & 0xFF;
+		int low = readByte() & 0xFF;
+		return (high << 8) | low;
+	}
+
+	private int readInt() {
+		int high = readShort();
+		int low = readShort();
+		return (high << 16) | low;
+	}
+
+	public static void main(String[] args) {
+		PathCodecTest.testTilePathRoundTrip();
+		PathCodecTest.testLinePathRoundTrip();
+		PathCodecTest.testRejectsInvalidItem();
+	}
+
+	private static class PathCodecTest {
+		private static final Tile DESTINATION = new Tile(9, 9);
+		private static final Tile[] OBSTACLES = { new Tile(-1, 5),
+				new Tile(-1, 10), new Tile(0, 3), new Tile(0, 5),
+				new Tile(0, 8), new Tile(1, 6), new Tile(1, 9), new Tile(2, 3),
+				new Tile(2, 9), new Tile(3, 0), new Tile(4, 1),
+				new Tile(5, -1), new Tile(5, 2), new Tile(6, 0),
+				new Tile(8, 0), new Tile(9, 1), new Tile(9, 2),
+				new Tile(10, -1) };
+		private static final Tile[] NOT_ACCESSIBLE = { new Tile(3, 3),
+				new Tile(3, 4), new Tile(4, 3), new Tile(8, 8) };
+
+		private static void testTilePathRoundTrip() {
+			testRoundTrip(PathGenerator.generatePath(12, 12, DESTINATION,
+					OBSTACLES, NOT_ACCESSIBLE));
+		}
+
+		private static void testLinePathRoundTrip() {
+			testRoundTrip(AnyAnglePathGenerator.generatePath(12, 12,
+					DESTINATION, OBSTACLES, NOT_ACCESSIBLE));
+		}
+
+		private static void testRejectsInvalidItem() {
+			byte[] data = { 0, 1, 3 };
+			boolean isRejected = false;
+			try {
+				decode(data, 0);
+			} catch (IllegalArgumentException e) {
+				isRejected = true;
+			}
+			Assert.assertTrue(isRejected, "Invalid item decoded");
+		}
+
+		/**
+		 * Checks that the decoded path has the same items as the original and
+		 * encodes to the same bytes, including when stored at an offset.
+		 */
+		private static void testRoundTrip(Path path) {
+			byte[] data = encode(path);
+			byte[] shiftedData = new byte[data.length + 3];
+			System.arraycopy(data, 0, shiftedData, 3, data.length);
+			Path decodedPath = decode(shiftedData, 3);
+
+			Assert.assertTrue(path.getItems().size() > 1);
+			Assert.assertTrue(decodedPath.getItems().size() == path.getItems()
+					.size(), "Wrong number of items");
+			for (int i = 0; i < path.getItems().size(); ++i) {
+				assertSameItem(path.getItems().get(i), decodedPath.getItems()
+						.get(i));
+			}
+			byte[] decodedData = encode(decodedPath);
+			Assert.assertTrue(decodedData.length == data.length);
+			for (int i = 0; i < data.length; ++i) {
+				Assert.assertTrue(decodedData[i] == data[i],
+						"Encodings differ at byte " + i);
+			}
+		}
+
+		private static void assertSameItem(PathItem item,
+				PathItem decodedItem) {
+			Assert.assertTrue(item.getClass() == decodedItem.getClass(),
+					"Wrong item type");
+			if (item instanceof PathSegment) {
+				PathSegment segment = (PathSegment) item;
+				PathSegment decodedSegment = (PathSegment) decodedItem;
+				assertSameTile(segment.getFirstTile(),
+						decodedSegment.getFirstTile());
+				assertSameTile(segment.getLastTile(),
+						decodedSegment.getLastTile());
+				Assert.assertTrue(segment.hasLeftWall() == decodedSegment
+						.hasLeftWall());
+				Assert.assertTrue(segment.hasRightWall() == decodedSegment
+						.hasRightWall());
+			} else if (item instanceof Waypoint) {
+				Waypoint waypoint = (Waypoint) item;
+				Waypoint decodedWaypoint = (Waypoint) decodedItem;
+				Assert.assertTrue(waypoint.getFirstDirection()
+						== decodedWaypoint.getFirstDirection());
+				Assert.assertTrue(waypoint.getSecondDirection()
+						== decodedWaypoint.getSecondDirection());
+				assertSameTile(waypoint.getTile(), decodedWaypoint.getTile());
+			} else {
+				LineSegment segment = (LineSegment) item;
+				LineSegment decodedSegment = (LineSegment) decodedItem;
+				assertSamePoint(segment.getStart(), decodedSegment.getStart());
+				assertSamePoint(segment.getEnd(), decodedSegment.getEnd());
+			}
+		}
+
+		private static void assertSameTile(Tile tile, Tile decodedTile) {
+			Assert.assertTrue(tile.x == decodedTile.x
+					&& tile.y == decodedTile.y, "Wrong tile");
+		}
+
+		/**
+		 * Points are stored as floats, so they only match to float precision.
+		 */
+		private static void assertSamePoint(Point point, Point decodedPoint) {
+			Assert.assertTrue(Math.abs(point.x - decodedPoint.x) < 1e-4);
+			Assert.assertTrue(Math.abs(point.y - decodedPoint.y) < 1e-4);
+		}
+	}
+}
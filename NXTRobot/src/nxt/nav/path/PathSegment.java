@@ -63,6 +63,22 @@ public final class PathSegment implements PathItem {
 		}
 	}
 
+	public final Tile getFirstTile() {
+		return new Tile(this._firstTile);
+	}
+
+	public final Tile getLastTile() {
+		return new Tile(this._lastTile);
+	}
+
+	public final boolean hasLeftWall() {
+		return this._leftWall;
+	}
+
+	public final boolean hasRightWall() {
+		return this._rightWall;
+	}
+
 	private boolean validPathSegment() {
 		if (this._firstTile.x == this._lastTile.x
 				&& this._firstTile.y == this._lastTile.y) {
@@ -0,0 +1,155 @@
+package nxt.nav.path;
+
+import nxt.data.Tile;
+import nxt.nav.Direction;
+
+/**
+ * A class to convert a sequence of adjacent tiles into a path to travel,
+ * merging straight runs and adding waypoints at the turns.
+ * 
+ * @author Andrei Purcarus
+ *
+ */
+final class TilePathConverter {
+	private final Grid _grid;
+	private Tile[] _tilePath;
+	private Path _path;
+
+	/**
+	 * Converts the given sequence of adjacent tiles on the grid into a path.
+	 */
+	static Path convert(Grid grid, Tile[] tilePath) {
+		TilePathConverter tilePathConverter = new TilePathConverter(grid,
+				tilePath);
+		return tilePathConverter.convert();
+	}
+
+	private TilePathConverter(Grid grid, Tile[] tilePath) {
+		this._grid = grid;
+		this._tilePath = tilePath;
+	}
+
+	private Path convert() {
+		removeUnnecessaryTiles();
+		convertTilesToPath();
+		return this._path;
+	}
+
+	private void removeUnnecessaryTiles() {
+		Tile[] newPath = new Tile[this._tilePath.length];
+		newPath[0] = new Tile(this._tilePath[0]);
+		int count = 1;
+		for (int i = 1; i < this._tilePath.length - 1; ++i) {
+			if (isRedundant(i)) {
+				continue;
+			} else {
+				newPath[count++] = this._tilePath[i];
+			}
+		}
+		newPath[count++] = this._tilePath[this._tilePath.length - 1];
+		Tile[] result = new Tile[count];
+		for (int i = 0; i < count; ++i) {
+			result[i] = newPath[i];
+		}
+		this._tilePath = result;
+	}
+
+	private boolean isRedundant(int index) {
+		boolean isOnSameX = this._tilePath[index].x == this._tilePath[index - 1].x
+				&& this._tilePath[index].x == this._tilePath[index + 1].x;
+		boolean isOnSameY = this._tilePath[index].y == this._tilePath[index - 1].y
+				&& this._tilePath[index].y == this._tilePath[index + 1].y;
+		if (isOnSameX) {
+			boolean currentEastWall = this._grid.isObstacle(
+					this._tilePath[index].x + 1, this._tilePath[index].y);
+			boolean currentWestWall = this._grid.isObstacle(
+					this._tilePath[index].x - 1, this._tilePath[index].y);
+			boolean previousEastWall = this._grid.isObstacle(
+					this._tilePath[index - 1].x + 1,
+					this._tilePath[index - 1].y);
+			boolean previousWestWall = this._grid.isObstacle(
+					this._tilePath[index - 1].x - 1,
+					this._tilePath[index - 1].y);
+			return (currentEastWall == previousEastWall && currentWestWall == previousWestWall);
+		}
+		if (isOnSameY) {
+			boolean currentNorthWall = this._grid.isObstacle(
+					this._tilePath[index].x, this._tilePath[index].y + 1);
+			boolean currentSouthWall = this._grid.isObstacle(
+					this._tilePath[index].x, this._tilePath[index].y - 1);
+			boolean previousNorthWall = this._grid.isObstacle(
+					this._tilePath[index - 1].x,
+					this._tilePath[index - 1].y + 1);
+			boolean previousSouthWall = this._grid.isObstacle(
+					this._tilePath[index - 1].x,
+					this._tilePath[index - 1].y - 1);
+			return (currentNorthWall == previousNorthWall && currentSouthWall == previousSouthWall);
+		}
+		return false;
+	}
+
+	private void convertTilesToPath() {
+		this._path = new Path();
+		this._path.add(new PathSegment(this._tilePath[0], this._tilePath[1],
+				false, false));
+		for (int i = 1; i < this._tilePath.length - 1; ++i) {
+			Tile previous = this._tilePath[i - 1];
+			Tile current = this._tilePath[i];
+			Tile next = this._tilePath[i + 1];
+			Direction before = getDirection(previous, current);
+			Direction after = getDirection(current, next);
+			if (before == after) {
+				if (before == Direction.east) {
+					boolean leftWall = this._grid.isObstacle(current.x,
+							current.y + 1);
+					boolean rightWall = this._grid.isObstacle(current.x,
+							current.y - 1);
+					this._path.add(new PathSegment(current, next, leftWall,
+							rightWall));
+				} else if (before == Direction.north) {
+					boolean leftWall = this._grid.isObstacle(current.x - 1,
+							current.y);
+					boolean rightWall = this._grid.isObstacle(current.x + 1,
+							current.y);
+					this._path.add(new PathSegment(current, next, leftWall,
+							rightWall));
+				} else if (before == Direction.west) {
+					boolean leftWall = this._grid.isObstacle(current.x,
+							current.y - 1);
+					boolean rightWall = this._grid.isObstacle(current.x,
+							current.y + 1);
+					this._path.add(new PathSegment(current, next, leftWall,
+							rightWall));
+				} else if (before == Direction.south) {
+					boolean leftWall = this._grid.isObstacle(current.x + 1,
+							current.y);
+					boolean rightWall = this._grid.isObstacle(current.x - 1,
+							current.y);
+					this._path.add(new PathSegment(current, next, leftWall,
+							rightWall));
+				}
+			} else {
+				this._path.add(new Waypoint(before, after, current));
+				this._path.add(new PathSegment(current, next, false, false));
+			}
+		}
+	}
+
+	private Direction getDirection(Tile first, Tile last) {
+		if (first.x == last.x) {
+			int yDifference = last.y - first.y;
+			if (yDifference > 0) {
+				return Direction.north;
+			} else {
+				return Direction.south;
+			}
+		} else {
+			int xDifference = last.x - first.x;
+			if (xDifference > 0) {
+				return Direction.east;
+			} else {
+				return Direction.west;
+			}
+		}
+	}
+}
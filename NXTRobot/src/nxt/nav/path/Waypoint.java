@@ -85,6 +85,18 @@ public final class Waypoint implements PathItem {
 		}
 	}
 
+	public final Direction getFirstDirection() {
+		return this._firstDirection;
+	}
+
+	public final Direction getSecondDirection() {
+		return this._secondDirection;
+	}
+
+	public final Tile getTile() {
+		return new Tile(this._tile);
+	}
+
 	private boolean validDirections() {
 		return AngleUtility.absoluteDifference(this._firstDirection.asAngle(),
 				this._secondDirection.asAngle()) == 90;
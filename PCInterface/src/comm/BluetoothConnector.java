@@ -0,0 +1,30 @@
+package comm;
+
+import java.io.IOException;
+
+import lejos.pc.comm.NXTCommException;
+
+/**
+ * A connector to an NXT over Bluetooth.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class BluetoothConnector implements Connector {
+	private final String _nxtName;
+	private final String _nxtID;
+
+	public BluetoothConnector(String nxtName, String nxtID) {
+		this._nxtName = nxtName;
+		this._nxtID = nxtID;
+	}
+
+	@Override
+	public final Transport connect() throws IOException {
+		try {
+			return new BluetoothTransport(this._nxtName, this._nxtID);
+		} catch (NXTCommException e) {
+			throw new IOException(e);
+		}
+	}
+}
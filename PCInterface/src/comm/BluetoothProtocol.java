@@ -2,22 +2,156 @@ package comm;
 
 /**
  * The protocol to use for communicating data via bluetooth between robot and
- * computer. Each constant represents a byte to send to notify the receiver of
- * the following message.
- * 
+ * computer. Data is sent in frames laid out as
+ *
+ * SYNC_1, SYNC_2, type, payload length, payload, CRC
+ *
+ * where the type is one of the frame types below as a byte, the payload length
+ * is an unsigned short of at most MAX_PAYLOAD_LENGTH and the CRC is the
+ * CRC-16-CCITT of the type, payload length and payload as an unsigned short. A
+ * receiver that loses track of the frames looks for the next sync bytes, and
+ * drops frames whose CRC does not match.
+ *
+ * Telemetry is sent on channels, each sampled at its own period. A channel
+ * sample holds the time in ms since the robot started, followed by the
+ * values of the channel as integers:
+ *
+ * POSE: x, y, orientation
+ * US: filtered left, front and right US distances
+ * RAW_US: raw left, front and right US distances
+ * CS: CS value
+ * TACHO: left and right tacho counts
+ * CORRECTION: number of corrections, x, y and orientation change of the last
+ * TIMING: odometer period, broadcast lateness in ms, dropped samples
+ *
+ * Positions are in units of 1 / POSITION_SCALE cm and angles in units of 1 /
+ * ORIENTATION_SCALE degrees, with the orientation from 0 to
+ * ORIENTATION_RANGE.
+ *
+ * A TELEMETRY frame holds consecutive samples of one channel. Its payload is
+ * the channel as a byte and the sequence number of the first sample within
+ * the channel as an int, followed by the samples until the end of the
+ * payload. The first sample of a frame is a keyframe, with the time as an
+ * unsigned varint and the values as signed varints. Each later sample holds
+ * the difference in time as an unsigned varint and the differences in the
+ * values as signed varints, with the difference in orientation taken the
+ * short way around. A frame can then be read without the ones before it.
+ *
+ * A SUBSCRIBE frame, sent by the computer, selects the channels to send. Its
+ * payload is a list of channels, each as a byte followed by its period in ms
+ * as an unsigned varint. Channels not in the list are no longer sent. Periods
+ * are rounded up to a multiple of MIN_PERIOD.
+ *
+ * A COMMAND frame, sent by the computer, asks the robot to act. Its payload
+ * is a request ID as an unsigned varint and a command as a byte, followed by
+ * the arguments of the command:
+ *
+ * TRAVEL_TO: x, y as signed varints
+ * TURN_TO: orientation as an unsigned varint
+ * STOP: none
+ * FIRE: number of balls as a byte
+ * SET_PARAMETER: parameter as a byte, value as a signed varint
+ *
+ * with positions and angles in the units of the telemetry. The parameters
+ * are MAX_SPEED in mm/s and TURN_SPEED in deg/s. The robot answers each
+ * command with an ACKNOWLEDGEMENT frame holding the request ID as an unsigned
+ * varint and a status as a byte. A command is ACCEPTED as soon as it is read
+ * and then DONE once it is carried out, or REJECTED if it cannot be carried
+ * out. STOP is carried out at once, and the commands it interrupts or that
+ * were waiting are CANCELLED.
+ *
+ * A RESUME frame, sent by the computer as the first frame after it connects
+ * again, asks the robot to send again the samples it kept that the computer
+ * did not receive. Its payload is a list of channels, each as a byte followed
+ * by the sequence number of the next sample expected as an unsigned varint.
+ * The samples kept of the channels not in the list are all sent again.
+ *
+ * A DEADBAND frame, sent by the computer, has channels sent only when they
+ * change. Its payload is a heartbeat period in ms as an unsigned varint,
+ * followed by a list of channels, each as a byte followed by a deadband for
+ * each of its values as unsigned varints in the units of the values. A due
+ * sample of a channel in the list is only sent if one of its values moved by
+ * more than its deadband since the last sample sent, or if the heartbeat
+ * period has passed since then. The computer holds the last values received
+ * in between. Channels not in the list are sent at every period.
+ *
+ * Unsigned varints are sent in 7-bit groups, lowest first, with the high bit
+ * of each byte set if another follows. Signed varints are zigzag encoded
+ * first, so that small values of either sign take one byte.
+ *
+ * An END_TRANSMISSION frame has no payload. No frame is of type NULL_MESSAGE.
+ *
  * @author Andrei Purcarus
  *
  */
 public final class BluetoothProtocol {
-	public static final byte X_POSITION = 0x00;
-	public static final byte Y_POSITION = 0x01;
-	public static final byte ORIENTATION = 0x02;
-	public static final byte LEFT_US_DISTANCE = 0x03;
-	public static final byte FRONT_US_DISTANCE = 0x04;
-	public static final byte RIGHT_US_DISTANCE = 0x05;
-	public static final byte CS_VALUE = 0x06;
-	public static final byte END_TRANSMISSION = 0x07;
-	public static final byte NULL_MESSAGE = 0x08;
+	public static final byte SYNC_1 = (byte) 0xA5;
+	public static final byte SYNC_2 = 0x5A;
+
+	public static final int HEADER_LENGTH = 5;
+	public static final int CRC_LENGTH = 2;
+	public static final int MAX_PAYLOAD_LENGTH = 255;
+	public static final int MAX_FRAME_LENGTH = HEADER_LENGTH
+			+ MAX_PAYLOAD_LENGTH + CRC_LENGTH;
+
+	public static final byte TELEMETRY = 0x01;
+	public static final byte END_TRANSMISSION = 0x02;
+	public static final byte SUBSCRIBE = 0x03;
+	public static final byte COMMAND = 0x04;
+	public static final byte ACKNOWLEDGEMENT = 0x05;
+	public static final byte RESUME = 0x06;
+	public static final byte DEADBAND = 0x07;
+	public static final byte NULL_MESSAGE = 0x00;
+
+	public static final int POSE = 0;
+	public static final int US = 1;
+	public static final int RAW_US = 2;
+	public static final int CS = 3;
+	public static final int TACHO = 4;
+	public static final int CORRECTION = 5;
+	public static final int TIMING = 6;
+	public static final int NUMBER_OF_CHANNELS = 7;
+
+	/**
+	 * The index of the orientation in the values of the POSE channel.
+	 */
+	public static final int POSE_ORIENTATION = 2;
+	public static final int MAX_CHANNEL_VALUES = 4;
+	private static final int[] CHANNEL_LENGTHS = { 3, 3, 3, 1, 2, 4, 3 };
+
+	/**
+	 * The shortest period in ms at which a channel is sampled.
+	 */
+	public static final int MIN_PERIOD = 25;
+
+	public static final int TRAVEL_TO = 0;
+	public static final int TURN_TO = 1;
+	public static final int STOP = 2;
+	public static final int FIRE = 3;
+	public static final int SET_PARAMETER = 4;
+
+	public static final int MAX_SPEED = 0;
+	public static final int TURN_SPEED = 1;
+
+	public static final int ACCEPTED = 0;
+	public static final int DONE = 1;
+	public static final int REJECTED = 2;
+	public static final int CANCELLED = 3;
+
+	public static final int TELEMETRY_HEADER_LENGTH = 5;
+	public static final int MAX_SAMPLE_LENGTH = 5 * (1 + MAX_CHANNEL_VALUES);
+	public static final int POSITION_SCALE = 10;
+	public static final int ORIENTATION_SCALE = 100;
+	public static final int ORIENTATION_RANGE = 360 * ORIENTATION_SCALE;
+
+	/**
+	 * Returns the number of values in a sample of the channel.
+	 */
+	public static int getChannelLength(int channel) {
+		if (channel < 0 || channel >= NUMBER_OF_CHANNELS)
+			throw new IllegalArgumentException("Invalid channel");
+		return CHANNEL_LENGTHS[channel];
+	}
 
 	private BluetoothProtocol() {
 
@@ -1,43 +1,106 @@
 package comm;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 import comm.BluetoothProtocol;
 import comm.data.BluetoothDataCenter;
-import lejos.pc.comm.NXTComm;
+import comm.data.TelemetryTimeline;
+import comm.test.Assert;
+import comm.util.AngleUtility;
 import lejos.pc.comm.NXTCommException;
-import lejos.pc.comm.NXTCommFactory;
-import lejos.pc.comm.NXTInfo;
 
 /**
  * A class to receive data from the robot and store it. The thread will run as
- * long as the robot does not end the transmission.
+ * long as the robot does not end the transmission, after which the transport
+ * is closed. The data is received in the
+ * frames of the BluetoothProtocol, on the channels subscribed to.
+ *
+ * Commands can be sent to the robot from any thread. Each command is given a
+ * request ID, and the status the robot acknowledged for it can be waited for.
+ *
+ * If the link is lost, the reciever connects again through its Connector,
+ * waiting longer after each failed attempt, and asks the robot to RESUME
+ * from the next sample of each channel it expects. A reciever without a
+ * connector stops when the link is lost.
  * 
  * @author Andrei Purcarus
  *
  */
 public final class BluetoothReciever extends Thread {
-	private DataInputStream _inputStream;
-	private DataOutputStream _outputStream;
+	/**
+	 * The status of a command for which no acknowledgement was received.
+	 */
+	public static final int NO_STATUS = -1;
+
+	/**
+	 * The number of the last commands whose status is kept.
+	 */
+	private static final int ACKNOWLEDGEMENT_HISTORY = 64;
+
+	/**
+	 * The time in ms waited after the first failed attempt to connect again,
+	 * which doubles after each failure up to MAX_RECONNECT_DELAY.
+	 */
+	private static final long MIN_RECONNECT_DELAY = 100;
+	private static final long MAX_RECONNECT_DELAY = 5000;
+
+	private final Connector _connector;
+	private Transport _transport;
+	private FrameReader _reader;
+	private FrameWriter _writer;
+	private TelemetryDecoder _decoder;
 
 	private BluetoothDataCenter _dataCenter;
 
 	private boolean _isRecieving;
+	private int _reconnections;
+
+	private final Object _commandLock;
+	private int _nextRequestID;
+	private final int[] _requestIDs;
+	private final int[] _statuses;
 
+	/**
+	 * Connects to the NXT with the given name and address over Bluetooth.
+	 */
 	public BluetoothReciever(String nxtName, String nxtID,
 			BluetoothDataCenter dataCenter) throws NXTCommException {
-		NXTComm nxtCommunication = NXTCommFactory
-				.createNXTComm(NXTCommFactory.BLUETOOTH);
-		NXTInfo nxtInfo = new NXTInfo(NXTCommFactory.BLUETOOTH, nxtName, nxtID);
-		nxtCommunication.open(nxtInfo);
-		this._inputStream = new DataInputStream(
-				nxtCommunication.getInputStream());
-		this._outputStream = new DataOutputStream(
-				nxtCommunication.getOutputStream());
+		this(new BluetoothTransport(nxtName, nxtID), new BluetoothConnector(
+				nxtName, nxtID), dataCenter);
+	}
+
+	/**
+	 * Connects to the robot through the given connector, which is used again
+	 * whenever the link is lost.
+	 */
+	public BluetoothReciever(Connector connector,
+			BluetoothDataCenter dataCenter) throws IOException {
+		this(connector.connect(), connector, dataCenter);
+	}
+
+	/**
+	 * Creates a reciever communicating over the given transport, which stops
+	 * if the link is lost.
+	 */
+	public BluetoothReciever(Transport transport,
+			BluetoothDataCenter dataCenter) {
+		this(transport, null, dataCenter);
+	}
+
+	private BluetoothReciever(Transport transport, Connector connector,
+			BluetoothDataCenter dataCenter) {
+		this._connector = connector;
+		this._transport = transport;
+		this._reader = new FrameReader(transport.getInputStream());
+		this._writer = new FrameWriter(transport.getOutputStream());
+		this._decoder = new TelemetryDecoder();
+		this._commandLock = new Object();
+		this._nextRequestID = 1;
+		this._requestIDs = new int[ACKNOWLEDGEMENT_HISTORY];
+		this._statuses = new int[ACKNOWLEDGEMENT_HISTORY];
 		this._dataCenter = dataCenter;
 		this._isRecieving = false;
+		this._reconnections = 0;
 	}
 
 	@Override
@@ -50,51 +113,251 @@ public final class BluetoothReciever extends Thread {
 				e.printStackTrace();
 			}
 		}
+		this._transport.close();
 	}
 
 	public final BluetoothDataCenter getDataCenter() {
 		return this._dataCenter;
 	}
 
+	/**
+	 * Returns the number of samples sent by the robot that were not received.
+	 */
+	public final int getLostSamples() {
+		return this._decoder.getLostSamples();
+	}
+
+	/**
+	 * Returns the number of samples of a channel sent by the robot that were
+	 * not received.
+	 */
+	public final int getLostSamples(int channel) {
+		return this._decoder.getLostSamples(channel);
+	}
+
+	/**
+	 * Returns the number of times the link was lost and connected again.
+	 */
+	public synchronized final int getReconnections() {
+		return this._reconnections;
+	}
+
+	/**
+	 * Returns the number of frames dropped because they were corrupted.
+	 */
+	public final int getCorruptFrames() {
+		return this._reader.getCorruptFrames();
+	}
+
+	/**
+	 * Asks the robot to send each channel of the BluetoothProtocol at the
+	 * given period in ms, rounded up to a multiple of MIN_PERIOD. Channels with
+	 * a period of 0 are no longer sent.
+	 */
+	public final void subscribe(int[] periods) throws IOException {
+		writeSubscription(this._writer, periods);
+	}
+
+	/**
+	 * Asks the robot to send the channels with deadbands only when one of
+	 * their values moves past its deadband, in the units of the protocol, or
+	 * every heartbeat period in ms. The deadbands of a channel are null for it
+	 * to be sent at every period. The data center holds the last values
+	 * received in between.
+	 */
+	public final void setDeadbands(int[][] deadbands, int heartbeatPeriod)
+			throws IOException {
+		writeDeadbands(this._writer, deadbands, heartbeatPeriod);
+	}
+
+	/**
+	 * Asks the robot to travel to the given position in cm, and returns the
+	 * request ID of the command.
+	 */
+	public final int travelTo(double x, double y) throws IOException {
+		synchronized (this._writer) {
+			int requestID = startCommand(BluetoothProtocol.TRAVEL_TO);
+			this._writer.writeSignedVarInt((int) Math.round(x
+					* BluetoothProtocol.POSITION_SCALE));
+			this._writer.writeSignedVarInt((int) Math.round(y
+					* BluetoothProtocol.POSITION_SCALE));
+			endCommand();
+			return requestID;
+		}
+	}
+
+	/**
+	 * Asks the robot to turn to the given orientation in degrees, and returns
+	 * the request ID of the command.
+	 */
+	public final int turnTo(double orientation) throws IOException {
+		synchronized (this._writer) {
+			int requestID = startCommand(BluetoothProtocol.TURN_TO);
+			this._writer.writeUnsignedVarInt((int) Math.round(AngleUtility
+					.normalize(orientation)
+					* BluetoothProtocol.ORIENTATION_SCALE)
+					% BluetoothProtocol.ORIENTATION_RANGE);
+			endCommand();
+			return requestID;
+		}
+	}
+
+	/**
+	 * Asks the robot to stop the command it is carrying out and drop the ones
+	 * waiting, and returns the request ID of the command.
+	 */
+	public final int stopRobot() throws IOException {
+		synchronized (this._writer) {
+			int requestID = startCommand(BluetoothProtocol.STOP);
+			endCommand();
+			return requestID;
+		}
+	}
+
+	/**
+	 * Asks the robot to fire the given number of balls, and returns the
+	 * request ID of the command.
+	 */
+	public final int fire(int numberOfBalls) throws IOException {
+		if (numberOfBalls < 0 || numberOfBalls > 255)
+			throw new IllegalArgumentException("Invalid number of balls");
+		synchronized (this._writer) {
+			int requestID = startCommand(BluetoothProtocol.FIRE);
+			this._writer.writeByte(numberOfBalls);
+			endCommand();
+			return requestID;
+		}
+	}
+
+	/**
+	 * Asks the robot to set one of the parameters of the BluetoothProtocol,
+	 * and returns the request ID of the command.
+	 */
+	public final int setParameter(int parameter, int value) throws IOException {
+		synchronized (this._writer) {
+			int requestID = startCommand(BluetoothProtocol.SET_PARAMETER);
+			this._writer.writeByte(parameter);
+			this._writer.writeSignedVarInt(value);
+			endCommand();
+			return requestID;
+		}
+	}
+
+	/**
+	 * Returns the last status acknowledged by the robot for the command, or
+	 * NO_STATUS if there was none.
+	 */
+	public final int getCommandStatus(int requestID) {
+		synchronized (this._commandLock) {
+			int index = requestID % ACKNOWLEDGEMENT_HISTORY;
+			if (this._requestIDs[index] != requestID)
+				return NO_STATUS;
+			return this._statuses[index];
+		}
+	}
+
+	/**
+	 * Waits at most timeout ms for the robot to acknowledge the command with
+	 * at least the given status, ACCEPTED coming before the others, and
+	 * returns the last status acknowledged.
+	 */
+	public final int waitForCommandStatus(int requestID, int status,
+			long timeout) {
+		long endTime = System.currentTimeMillis() + timeout;
+		synchronized (this._commandLock) {
+			int currentStatus = getCommandStatus(requestID);
+			long timeLeft = timeout;
+			while (currentStatus < status && timeLeft > 0) {
+				try {
+					this._commandLock.wait(timeLeft);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				currentStatus = getCommandStatus(requestID);
+				timeLeft = endTime - System.currentTimeMillis();
+			}
+			return currentStatus;
+		}
+	}
+
 	public final void endTransmission() throws IOException {
 		if (isRecieving()) {
-			this._outputStream.writeByte(BluetoothProtocol.END_TRANSMISSION);
-			this._outputStream.flush();
+			synchronized (this._writer) {
+				this._writer.startFrame(BluetoothProtocol.END_TRANSMISSION);
+				this._writer.endFrame();
+				this._writer.flush();
+			}
 			stopRecieving();
 		}
 	}
 
+	/**
+	 * Writes and sends a DEADBAND frame for the given deadbands and heartbeat
+	 * period. The writer is locked while writing.
+	 */
+	static void writeDeadbands(FrameWriter writer, int[][] deadbands,
+			int heartbeatPeriod) throws IOException {
+		TelemetryDeadbands.check(deadbands, heartbeatPeriod);
+		synchronized (writer) {
+			writer.startFrame(BluetoothProtocol.DEADBAND);
+			writer.writeUnsignedVarInt(heartbeatPeriod);
+			for (int channel = 0; channel < deadbands.length; ++channel) {
+				if (deadbands[channel] != null) {
+					writer.writeByte(channel);
+					for (int i = 0; i < deadbands[channel].length; ++i) {
+						writer.writeUnsignedVarInt(deadbands[channel][i]);
+					}
+				}
+			}
+			writer.endFrame();
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Writes and sends a SUBSCRIBE frame for the given periods. The writer is
+	 * locked while writing.
+	 */
+	static void writeSubscription(FrameWriter writer, int[] periods)
+			throws IOException {
+		if (periods.length != BluetoothProtocol.NUMBER_OF_CHANNELS)
+			throw new IllegalArgumentException("Invalid periods");
+		for (int channel = 0; channel < periods.length; ++channel) {
+			if (periods[channel] < 0)
+				throw new IllegalArgumentException("Invalid period");
+		}
+		synchronized (writer) {
+			writer.startFrame(BluetoothProtocol.SUBSCRIBE);
+			for (int channel = 0; channel < periods.length; ++channel) {
+				if (periods[channel] > 0) {
+					writer.writeByte(channel);
+					writer.writeUnsignedVarInt(periods[channel]);
+				}
+			}
+			writer.endFrame();
+			writer.flush();
+		}
+	}
+
 	private void recieveData() throws IOException {
 		if (isRecieving()) {
-			byte message = this._inputStream.readByte();
-			switch (message) {
-			case BluetoothProtocol.X_POSITION:
-				double x = this._inputStream.readDouble();
-				this._dataCenter.setXPosition(x);
-				break;
-			case BluetoothProtocol.Y_POSITION:
-				double y = this._inputStream.readDouble();
-				this._dataCenter.setYPosition(y);
-				break;
-			case BluetoothProtocol.ORIENTATION:
-				double orientation = this._inputStream.readDouble();
-				this._dataCenter.setOrientation(orientation);
-				break;
-			case BluetoothProtocol.LEFT_US_DISTANCE:
-				int leftDistance = this._inputStream.readInt();
-				this._dataCenter.setUSDistanceAtAngle(leftDistance, 90);
-				break;
-			case BluetoothProtocol.FRONT_US_DISTANCE:
-				int frontDistance = this._inputStream.readInt();
-				this._dataCenter.setUSDistanceAtAngle(frontDistance, 0);
-				break;
-			case BluetoothProtocol.RIGHT_US_DISTANCE:
-				int rightDistance = this._inputStream.readInt();
-				this._dataCenter.setUSDistanceAtAngle(rightDistance, -90);
+			byte type;
+			try {
+				type = this._reader.readFrame();
+			} catch (IOException e) {
+				// The link is lost, or was closed by the robot after the end
+				// of the transmission.
+				if (!isRecieving() || reconnect())
+					return;
+				stopRecieving();
+				throw e;
+			}
+			switch (type) {
+			case BluetoothProtocol.TELEMETRY:
+				this._decoder.decode(this._reader, this._dataCenter);
 				break;
-			case BluetoothProtocol.CS_VALUE:
-				int csValue = this._inputStream.readInt();
-				this._dataCenter.setCSValue(csValue);
+			case BluetoothProtocol.ACKNOWLEDGEMENT:
+				readAcknowledgement();
 				break;
 			case BluetoothProtocol.END_TRANSMISSION:
 				stopRecieving();
@@ -105,6 +368,89 @@ public final class BluetoothReciever extends Thread {
 		}
 	}
 
+	/**
+	 * Connects to the robot again after the link is lost and asks it to
+	 * resume the telemetry. Returns false if there is no connector, or if the
+	 * reciever was stopped before it could connect.
+	 */
+	private boolean reconnect() {
+		this._transport.close();
+		if (this._connector == null)
+			return false;
+		long delay = MIN_RECONNECT_DELAY;
+		while (isRecieving()) {
+			try {
+				this._transport = this._connector.connect();
+				break;
+			} catch (IOException e) {
+				// Tries again later.
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			delay = Math.min(2 * delay, MAX_RECONNECT_DELAY);
+		}
+		if (!isRecieving())
+			return false;
+		this._reader.setInputStream(this._transport.getInputStream());
+		try {
+			synchronized (this._writer) {
+				this._writer.setOutputStream(this._transport.getOutputStream());
+				this._writer.startFrame(BluetoothProtocol.RESUME);
+				int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+				for (int channel = 0; channel < channels; ++channel) {
+					int sequenceNumber = this._decoder
+							.getNextSequenceNumber(channel);
+					if (sequenceNumber >= 0) {
+						this._writer.writeByte(channel);
+						this._writer.writeUnsignedVarInt(sequenceNumber);
+					}
+				}
+				this._writer.endFrame();
+				this._writer.flush();
+			}
+		} catch (IOException e) {
+			// The link is lost again, which the next read finds.
+		}
+		synchronized (this) {
+			++this._reconnections;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a COMMAND frame of the given type with the next request ID, and
+	 * returns the request ID. The writer must be locked.
+	 */
+	private int startCommand(int type) throws IOException {
+		int requestID;
+		synchronized (this._commandLock) {
+			requestID = this._nextRequestID++;
+		}
+		this._writer.startFrame(BluetoothProtocol.COMMAND);
+		this._writer.writeUnsignedVarInt(requestID);
+		this._writer.writeByte(type);
+		return requestID;
+	}
+
+	private void endCommand() throws IOException {
+		this._writer.endFrame();
+		this._writer.flush();
+	}
+
+	private void readAcknowledgement() throws IOException {
+		int requestID = this._reader.readUnsignedVarInt();
+		int status = this._reader.readUnsignedByte();
+		synchronized (this._commandLock) {
+			int index = requestID % ACKNOWLEDGEMENT_HISTORY;
+			this._requestIDs[index] = requestID;
+			this._statuses[index] = status;
+			this._commandLock.notifyAll();
+		}
+	}
+
 	private synchronized boolean isRecieving() {
 		return this._isRecieving;
 	}
@@ -116,4 +462,97 @@ public final class BluetoothReciever extends Thread {
 	private synchronized void stopRecieving() {
 		this._isRecieving = false;
 	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		BluetoothRecieverTest.testResumesWithoutGaps();
+	}
+
+	private static class BluetoothRecieverTest {
+		private static final int PIPE_CAPACITY = 1 << 16;
+		private static final long PERIOD = BluetoothProtocol.MIN_PERIOD;
+
+		/**
+		 * Kills the link to a simulated robot twice in the middle of the
+		 * stream, keeping it down long enough for the reciever to fail to
+		 * connect again a few times, and checks that the reciever gets every
+		 * pose the robot sent.
+		 */
+		private static void testResumesWithoutGaps() throws IOException,
+				InterruptedException {
+			LoopbackConnector connector = new LoopbackConnector();
+			BluetoothDataCenter dataCenter = new BluetoothDataCenter();
+			BluetoothReciever reciever = new BluetoothReciever(
+					connector.getTransport(), connector, dataCenter);
+			connector.getRobot().start();
+			reciever.start();
+			reciever.travelTo(60, 30);
+			for (int i = 0; i < 2; ++i) {
+				Thread.sleep(400);
+				connector.kill();
+				Thread.sleep(500);
+				connector.restore();
+			}
+			Thread.sleep(400);
+			reciever.endTransmission();
+			connector.getRobot().join();
+			reciever.join();
+
+			Assert.assertTrue(reciever.getReconnections() == 2,
+					"Link not connected again");
+			Assert.assertTrue(reciever.getLostSamples() == 0, "Samples lost");
+			// Every pose from the first to the last is in the timeline.
+			int channel = BluetoothProtocol.POSE;
+			TelemetryTimeline timeline = dataCenter.getTimeline();
+			long lastTime = dataCenter.getChannelTime(channel);
+			Assert.assertTrue(lastTime > 1500, "Stream stopped early");
+			Assert.assertTrue(timeline.getNumberOfSamples(channel)
+					== lastTime / PERIOD + 1, "Poses missing");
+		}
+
+		/**
+		 * A connector to a simulated robot over in-memory pipes, whose link
+		 * can be killed and restored. No link can be made while it is
+		 * killed.
+		 */
+		private static final class LoopbackConnector implements Connector {
+			private final SimulatedRobot _robot;
+			private Transport _transport;
+			private boolean _isKilled;
+
+			LoopbackConnector() {
+				PipeTransport[] pair = PipeTransport.createPair(PIPE_CAPACITY);
+				this._robot = new SimulatedRobot(pair[1]);
+				this._transport = pair[0];
+				this._isKilled = false;
+			}
+
+			@Override
+			public synchronized final Transport connect() throws IOException {
+				if (this._isKilled)
+					throw new IOException("Link killed");
+				PipeTransport[] pair = PipeTransport.createPair(PIPE_CAPACITY);
+				this._robot.connect(pair[1]);
+				this._transport = pair[0];
+				return this._transport;
+			}
+
+			final SimulatedRobot getRobot() {
+				return this._robot;
+			}
+
+			synchronized final Transport getTransport() {
+				return this._transport;
+			}
+
+			synchronized final void kill() {
+				this._isKilled = true;
+				this._transport.close();
+			}
+
+			synchronized final void restore() {
+				this._isKilled = false;
+			}
+		}
+	}
 }
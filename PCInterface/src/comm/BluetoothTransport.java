@@ -0,0 +1,50 @@
+package comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import lejos.pc.comm.NXTComm;
+import lejos.pc.comm.NXTCommException;
+import lejos.pc.comm.NXTCommFactory;
+import lejos.pc.comm.NXTInfo;
+
+/**
+ * A transport over a Bluetooth connection to an NXT.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class BluetoothTransport implements Transport {
+	private final NXTComm _nxtCommunication;
+
+	/**
+	 * Connects to the NXT with the given name and address.
+	 */
+	public BluetoothTransport(String nxtName, String nxtID)
+			throws NXTCommException {
+		this._nxtCommunication = NXTCommFactory
+				.createNXTComm(NXTCommFactory.BLUETOOTH);
+		NXTInfo nxtInfo = new NXTInfo(NXTCommFactory.BLUETOOTH, nxtName, nxtID);
+		this._nxtCommunication.open(nxtInfo);
+	}
+
+	@Override
+	public final InputStream getInputStream() {
+		return this._nxtCommunication.getInputStream();
+	}
+
+	@Override
+	public final OutputStream getOutputStream() {
+		return this._nxtCommunication.getOutputStream();
+	}
+
+	@Override
+	public final void close() {
+		try {
+			this._nxtCommunication.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
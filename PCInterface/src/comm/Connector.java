@@ -0,0 +1,17 @@
+package comm;
+
+import java.io.IOException;
+
+/**
+ * An interface to be implemented by the ways to connect to a robot, so that
+ * the computer can connect again after the link is lost.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public interface Connector {
+	/**
+	 * Connects to the robot and returns the link to it.
+	 */
+	public Transport connect() throws IOException;
+}
@@ -0,0 +1,428 @@
+package comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import comm.test.Assert;
+import comm.util.CRCUtility;
+
+/**
+ * A class that reads frames of the BluetoothProtocol from a stream. Bytes
+ * that do not start a frame with a matching CRC are skipped, so that reading
+ * picks up again at the next frame after corrupted or lost bytes. The payload
+ * of the last frame read is read with the read methods.
+ *
+ * A reader without a stream is fed from a channel with readFrom instead, and
+ * its frames are taken with pollFrame, so that it never waits for bytes.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class FrameReader {
+	/**
+	 * Returned by pollFrame when no whole frame is buffered.
+	 */
+	static final int NO_FRAME = -1;
+
+	private InputStream _inputStream;
+
+	/**
+	 * The bytes read from the stream, of which those from _start to _end are
+	 * not yet used.
+	 */
+	private final byte[] _buffer;
+	private int _start;
+	private int _end;
+
+	/**
+	 * The payload of the last frame read, and the next byte of it to read.
+	 */
+	private int _payloadStart;
+	private int _payloadEnd;
+	private int _position;
+
+	private int _skippedBytes;
+	private int _corruptFrames;
+
+	FrameReader(InputStream inputStream) {
+		this._inputStream = inputStream;
+		this._buffer = new byte[2 * BluetoothProtocol.MAX_FRAME_LENGTH];
+		this._start = 0;
+		this._end = 0;
+		this._payloadStart = 0;
+		this._payloadEnd = 0;
+		this._position = 0;
+		this._skippedBytes = 0;
+		this._corruptFrames = 0;
+	}
+
+	/**
+	 * Creates a reader fed with readFrom.
+	 */
+	FrameReader() {
+		this(null);
+	}
+
+	/**
+	 * Reads from the given stream from now on, such as that of a new
+	 * connection. The bytes not yet used from the old stream are dropped.
+	 */
+	final void setInputStream(InputStream inputStream) {
+		this._inputStream = inputStream;
+		this._start = 0;
+		this._end = 0;
+		this._payloadStart = 0;
+		this._payloadEnd = 0;
+		this._position = 0;
+	}
+
+	/**
+	 * Waits for the next frame with a matching CRC and returns its type.
+	 */
+	final byte readFrame() throws IOException {
+		return (byte) nextFrame(true);
+	}
+
+	/**
+	 * Returns the type of the next frame with a matching CRC among the bytes
+	 * buffered, or NO_FRAME if they do not hold a whole one.
+	 */
+	final int pollFrame() throws IOException {
+		return nextFrame(false);
+	}
+
+	/**
+	 * Reads the bytes available from the channel into the buffer, and returns
+	 * the number of bytes read, or -1 at the end of the channel. The payload
+	 * of the last frame can no longer be read after this.
+	 */
+	final int readFrom(ReadableByteChannel channel) throws IOException {
+		compact();
+		int read = channel.read(ByteBuffer.wrap(this._buffer, this._end,
+				this._buffer.length - this._end));
+		if (read > 0)
+			this._end += read;
+		return read;
+	}
+
+	private int nextFrame(boolean canWait) throws IOException {
+		while (true) {
+			if (!fill(BluetoothProtocol.HEADER_LENGTH, canWait))
+				return NO_FRAME;
+			int payloadLength = ((this._buffer[this._start + 3] & 0xFF) << 8)
+					| (this._buffer[this._start + 4] & 0xFF);
+			if (this._buffer[this._start] != BluetoothProtocol.SYNC_1
+					|| this._buffer[this._start + 1] != BluetoothProtocol.SYNC_2
+					|| payloadLength > BluetoothProtocol.MAX_PAYLOAD_LENGTH) {
+				++this._start;
+				++this._skippedBytes;
+				continue;
+			}
+			int frameLength = BluetoothProtocol.HEADER_LENGTH + payloadLength
+					+ BluetoothProtocol.CRC_LENGTH;
+			if (!fill(frameLength, canWait))
+				return NO_FRAME;
+			int crcStart = this._start + frameLength
+					- BluetoothProtocol.CRC_LENGTH;
+			int crc = ((this._buffer[crcStart] & 0xFF) << 8)
+					| (this._buffer[crcStart + 1] & 0xFF);
+			if (crc != CRCUtility.computeCRC16(this._buffer, this._start + 2,
+					crcStart - this._start - 2)) {
+				// Looks for a frame starting within the corrupt one.
+				++this._start;
+				++this._skippedBytes;
+				++this._corruptFrames;
+				continue;
+			}
+			byte type = this._buffer[this._start + 2];
+			this._payloadStart = this._start + BluetoothProtocol.HEADER_LENGTH;
+			this._payloadEnd = crcStart;
+			this._position = this._payloadStart;
+			this._start += frameLength;
+			return type;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in the payload of the last frame read.
+	 */
+	final int getPayloadLength() {
+		return this._payloadEnd - this._payloadStart;
+	}
+
+	/**
+	 * Returns the number of bytes of the payload of the last frame not yet
+	 * read.
+	 */
+	final int getRemainingPayloadLength() {
+		return this._payloadEnd - this._position;
+	}
+
+	/**
+	 * Returns the number of bytes skipped to find the start of a frame.
+	 */
+	final int getSkippedBytes() {
+		return this._skippedBytes;
+	}
+
+	/**
+	 * Returns the number of frames dropped because their CRC did not match.
+	 */
+	final int getCorruptFrames() {
+		return this._corruptFrames;
+	}
+
+	final byte readByte() throws IOException {
+		check(1);
+		return this._buffer[this._position++];
+	}
+
+	final int readUnsignedByte() throws IOException {
+		check(1);
+		return this._buffer[this._position++] & 0xFF;
+	}
+
+	final short readShort() throws IOException {
+		check(2);
+		int value = (this._buffer[this._position] << 8)
+				| (this._buffer[this._position + 1] & 0xFF);
+		this._position += 2;
+		return (short) value;
+	}
+
+	final int readInt() throws IOException {
+		check(4);
+		int value = (this._buffer[this._position] << 24)
+				| ((this._buffer[this._position + 1] & 0xFF) << 16)
+				| ((this._buffer[this._position + 2] & 0xFF) << 8)
+				| (this._buffer[this._position + 3] & 0xFF);
+		this._position += 4;
+		return value;
+	}
+
+	final float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+
+	/**
+	 * Reads a value written by FrameWriter.writeUnsignedVarInt.
+	 */
+	final int readUnsignedVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	/**
+	 * Reads a value written by FrameWriter.writeSignedVarInt.
+	 */
+	final int readSignedVarInt() throws IOException {
+		int value = readUnsignedVarInt();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private void check(int length) throws EOFException {
+		if (this._position + length > this._payloadEnd)
+			throw new EOFException();
+	}
+
+	/**
+	 * Returns whether the given number of unused bytes are in the buffer,
+	 * waiting for them from the stream if it can.
+	 */
+	private boolean fill(int length, boolean canWait) throws IOException {
+		if (this._end - this._start >= length)
+			return true;
+		if (!canWait)
+			return false;
+		compact();
+		while (this._end < length) {
+			int read = this._inputStream.read(this._buffer, this._end,
+					this._buffer.length - this._end);
+			if (read < 0)
+				throw new EOFException();
+			this._end += read;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the unused bytes to the start of the buffer.
+	 */
+	private void compact() {
+		System.arraycopy(this._buffer, this._start, this._buffer, 0, this._end
+				- this._start);
+		this._end -= this._start;
+		this._start = 0;
+	}
+
+	public static void main(String[] args) throws IOException {
+		FrameReaderTest.testRoundTrip();
+		FrameReaderTest.testResyncsAfterCorruptByte();
+		FrameReaderTest.testResyncsAfterLostBytes();
+		FrameReaderTest.testPollsWholeFrames();
+	}
+
+	private static class FrameReaderTest {
+		private static final int NUMBER_OF_FRAMES = 6;
+
+		private static void testRoundTrip() throws IOException {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			FrameWriter writer = new FrameWriter(stream);
+			writer.startFrame((byte) 1);
+			writer.writeByte(-3);
+			writer.writeShort(-30000);
+			writer.writeInt(Integer.MIN_VALUE);
+			writer.writeFloat(1.25f);
+			writer.writeUnsignedVarInt(300);
+			writer.writeSignedVarInt(-1);
+			writer.writeSignedVarInt(Integer.MAX_VALUE);
+			writer.endFrame();
+			writer.startFrame((byte) 2);
+			writer.endFrame();
+			writer.flush();
+
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(
+					stream.toByteArray()));
+			Assert.assertTrue(reader.readFrame() == 1);
+			Assert.assertTrue(reader.getPayloadLength() == 19);
+			Assert.assertTrue(reader.readByte() == -3);
+			Assert.assertTrue(reader.readShort() == -30000);
+			Assert.assertTrue(reader.readInt() == Integer.MIN_VALUE);
+			Assert.assertTrue(reader.readFloat() == 1.25f);
+			Assert.assertTrue(reader.readUnsignedVarInt() == 300);
+			Assert.assertTrue(reader.readSignedVarInt() == -1);
+			Assert.assertTrue(reader.readSignedVarInt() == Integer.MAX_VALUE);
+			Assert.assertTrue(reader.getRemainingPayloadLength() == 0);
+			Assert.assertTrue(reader.readFrame() == 2);
+			Assert.assertTrue(reader.getPayloadLength() == 0);
+			Assert.assertTrue(reader.getSkippedBytes() == 0);
+			assertEndOfStream(reader);
+		}
+
+		private static void testResyncsAfterCorruptByte() throws IOException {
+			byte[] bytes = writeFrames();
+			// Flips a byte in the payload of the third frame.
+			int corruptByte = getFrameStart(2) + BluetoothProtocol.HEADER_LENGTH
+					+ 1;
+			bytes[corruptByte] ^= 0x10;
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(
+					bytes));
+			for (int frame = 0; frame < NUMBER_OF_FRAMES; ++frame) {
+				if (frame != 2)
+					assertFrame(reader, frame);
+			}
+			Assert.assertTrue(reader.getCorruptFrames() == 1);
+			Assert.assertTrue(reader.getSkippedBytes() == getFrameLength(2));
+			assertEndOfStream(reader);
+		}
+
+		private static void testResyncsAfterLostBytes() throws IOException {
+			byte[] bytes = writeFrames();
+			// Drops the bytes from the payload of the second frame to within
+			// the third, and puts a false start of a frame before the first.
+			int lostStart = getFrameStart(1) + BluetoothProtocol.HEADER_LENGTH
+					+ 2;
+			int lostEnd = getFrameStart(2) + 8;
+			byte[] received = new byte[bytes.length - (lostEnd - lostStart)
+					+ 2];
+			received[0] = BluetoothProtocol.SYNC_1;
+			received[1] = BluetoothProtocol.SYNC_2;
+			System.arraycopy(bytes, 0, received, 2, lostStart);
+			System.arraycopy(bytes, lostEnd, received, 2 + lostStart,
+					bytes.length - lostEnd);
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(
+					received));
+			for (int frame = 0; frame < NUMBER_OF_FRAMES; ++frame) {
+				if (frame != 1 && frame != 2)
+					assertFrame(reader, frame);
+			}
+			Assert.assertTrue(reader.getCorruptFrames() == 1);
+			assertEndOfStream(reader);
+		}
+
+		private static void testPollsWholeFrames() throws IOException {
+			byte[] bytes = writeFrames();
+			FrameReader reader = new FrameReader();
+			Assert.assertTrue(reader.pollFrame() == NO_FRAME);
+			// Feeds the frames a few bytes at a time, as a socket might.
+			int frame = 0;
+			for (int start = 0; start < bytes.length; start += 7) {
+				int length = Math.min(7, bytes.length - start);
+				reader.readFrom(Channels.newChannel(new ByteArrayInputStream(
+						bytes, start, length)));
+				int type = reader.pollFrame();
+				while (type != NO_FRAME) {
+					Assert.assertTrue(type == frame, "Wrong frame polled");
+					Assert.assertTrue(reader.readInt() == frame);
+					++frame;
+					type = reader.pollFrame();
+				}
+			}
+			Assert.assertTrue(frame == NUMBER_OF_FRAMES);
+			Assert.assertTrue(reader.getSkippedBytes() == 0);
+		}
+
+		/**
+		 * Returns NUMBER_OF_FRAMES frames with the frame index as the type,
+		 * each with a payload of its index and ten bytes per index.
+		 */
+		private static byte[] writeFrames() throws IOException {
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			FrameWriter writer = new FrameWriter(stream);
+			for (int frame = 0; frame < NUMBER_OF_FRAMES; ++frame) {
+				writer.startFrame((byte) frame);
+				writer.writeInt(frame);
+				for (int i = 0; i < 10 * frame; ++i) {
+					writer.writeByte(i);
+				}
+				writer.endFrame();
+			}
+			writer.flush();
+			return stream.toByteArray();
+		}
+
+		private static int getFrameLength(int frame) {
+			return BluetoothProtocol.HEADER_LENGTH + 4 + 10 * frame
+					+ BluetoothProtocol.CRC_LENGTH;
+		}
+
+		private static int getFrameStart(int frame) {
+			int start = 0;
+			for (int i = 0; i < frame; ++i) {
+				start += getFrameLength(i);
+			}
+			return start;
+		}
+
+		private static void assertFrame(FrameReader reader, int frame)
+				throws IOException {
+			Assert.assertTrue(reader.readFrame() == frame, "Wrong frame read");
+			Assert.assertTrue(reader.readInt() == frame);
+			for (int i = 0; i < 10 * frame; ++i) {
+				Assert.assertTrue(reader.readByte() == (byte) i);
+			}
+			Assert.assertTrue(reader.getRemainingPayloadLength() == 0);
+		}
+
+		private static void assertEndOfStream(FrameReader reader)
+				throws IOException {
+			try {
+				reader.readFrame();
+				Assert.assertTrue(false, "Frame read past the end");
+			} catch (EOFException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import comm.util.CRCUtility;
+
+/**
+ * A class that writes frames of the BluetoothProtocol to a stream. The payload
+ * of a frame is written between startFrame and endFrame. Frames are buffered
+ * until flush is called, so that several can be sent at once.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class FrameWriter {
+	/**
+	 * The number of frames of the largest size that fit in the buffer before
+	 * it is written to the stream.
+	 */
+	private static final int BUFFERED_FRAMES = 4;
+
+	private static final int NO_FRAME = -1;
+
+	private OutputStream _outputStream;
+	private final byte[] _buffer;
+	private int _length;
+	private int _frameStart;
+
+	FrameWriter(OutputStream outputStream) {
+		this._outputStream = outputStream;
+		this._buffer = new byte[BUFFERED_FRAMES
+				* BluetoothProtocol.MAX_FRAME_LENGTH];
+		this._length = 0;
+		this._frameStart = NO_FRAME;
+	}
+
+	/**
+	 * Writes to the given stream from now on, such as that of a new
+	 * connection. The frames not yet sent to the old stream are dropped.
+	 */
+	final void setOutputStream(OutputStream outputStream) {
+		this._outputStream = outputStream;
+		this._length = 0;
+		this._frameStart = NO_FRAME;
+	}
+
+	/**
+	 * Starts a frame of the given type.
+	 */
+	final void startFrame(byte type) throws IOException {
+		if (this._frameStart != NO_FRAME)
+			throw new IllegalStateException("Frame already started");
+		if (this._buffer.length - this._length < BluetoothProtocol.MAX_FRAME_LENGTH)
+			writeBuffer();
+		this._frameStart = this._length;
+		this._buffer[this._length++] = BluetoothProtocol.SYNC_1;
+		this._buffer[this._length++] = BluetoothProtocol.SYNC_2;
+		this._buffer[this._length++] = type;
+		// Leaves room for the payload length.
+		this._length += 2;
+	}
+
+	/**
+	 * Returns the number of bytes in the payload of the current frame.
+	 */
+	final int getPayloadLength() {
+		return this._length - this._frameStart
+				- BluetoothProtocol.HEADER_LENGTH;
+	}
+
+	final void writeByte(int value) {
+		reserve(1);
+		this._buffer[this._length++] = (byte) value;
+	}
+
+	final void writeShort(int value) {
+		reserve(2);
+		this._buffer[this._length++] = (byte) (value >> 8);
+		this._buffer[this._length++] = (byte) value;
+	}
+
+	final void writeInt(int value) {
+		reserve(4);
+		this._buffer[this._length++] = (byte) (value >> 24);
+		this._buffer[this._length++] = (byte) (value >> 16);
+		this._buffer[this._length++] = (byte) (value >> 8);
+		this._buffer[this._length++] = (byte) value;
+	}
+
+	final void writeFloat(float value) {
+		writeInt(Float.floatToIntBits(value));
+	}
+
+	/**
+	 * Writes a value that is not negative in 7-bit groups, lowest first, with
+	 * the high bit of each byte set if another follows.
+	 */
+	final void writeUnsignedVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+
+	/**
+	 * Writes a value as an unsigned varint after zigzag encoding, which maps
+	 * small values of either sign to small unsigned values.
+	 */
+	final void writeSignedVarInt(int value) {
+		writeUnsignedVarInt((value << 1) ^ (value >> 31));
+	}
+
+	/**
+	 * Ends the current frame by filling in its payload length and CRC.
+	 */
+	final void endFrame() {
+		if (this._frameStart == NO_FRAME)
+			throw new IllegalStateException("No frame started");
+		int payloadLength = getPayloadLength();
+		this._buffer[this._frameStart + 3] = (byte) (payloadLength >> 8);
+		this._buffer[this._frameStart + 4] = (byte) payloadLength;
+		int crc = CRCUtility.computeCRC16(this._buffer, this._frameStart + 2,
+				this._length - this._frameStart - 2);
+		this._buffer[this._length++] = (byte) (crc >> 8);
+		this._buffer[this._length++] = (byte) crc;
+		this._frameStart = NO_FRAME;
+	}
+
+	/**
+	 * Sends the frames ended since the last flush.
+	 */
+	final void flush() throws IOException {
+		writeBuffer();
+		this._outputStream.flush();
+	}
+
+	private void reserve(int length) {
+		if (this._frameStart == NO_FRAME)
+			throw new IllegalStateException("No frame started");
+		if (getPayloadLength() + length > BluetoothProtocol.MAX_PAYLOAD_LENGTH)
+			throw new IllegalStateException("Payload too long");
+	}
+
+	/**
+	 * Writes the ended frames to the stream, keeping the current frame in the
+	 * buffer.
+	 */
+	private void writeBuffer() throws IOException {
+		int end = this._frameStart == NO_FRAME ? this._length
+				: this._frameStart;
+		if (end == 0)
+			return;
+		this._outputStream.write(this._buffer, 0, end);
+		System.arraycopy(this._buffer, end, this._buffer, 0, this._length
+				- end);
+		this._length -= end;
+		if (this._frameStart != NO_FRAME)
+			this._frameStart -= end;
+	}
+}
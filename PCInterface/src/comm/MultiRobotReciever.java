@@ -0,0 +1,127 @@
+package comm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import comm.data.BluetoothDataCenter;
+
+/**
+ * A thread that receives the telemetry of several robots over TCP at once,
+ * each into the data center of its RobotConnection. A single thread waits on
+ * a selector for any of the connections to have bytes to read, so the number
+ * of robots does not set the number of threads.
+ *
+ * Connections are added from any thread while the reciever runs, and are
+ * closed when their robot ends the transmission or the link is lost.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class MultiRobotReciever extends Thread {
+	private final Selector _selector;
+
+	private final List<RobotConnection> _connections;
+	private final List<RobotConnection> _newConnections;
+	private boolean _isRecieving;
+
+	public MultiRobotReciever() throws IOException {
+		this._selector = Selector.open();
+		this._connections = new ArrayList<>();
+		this._newConnections = new ArrayList<>();
+		this._isRecieving = true;
+	}
+
+	/**
+	 * Connects to the robot at the given host and port, such as a
+	 * SimulatedRobot, and returns its connection.
+	 */
+	public final RobotConnection connect(String host, int port)
+			throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(host,
+				port));
+		channel.socket().setTcpNoDelay(true);
+		channel.configureBlocking(false);
+		RobotConnection connection = new RobotConnection(host + ":" + port,
+				channel, new BluetoothDataCenter());
+		synchronized (this) {
+			this._connections.add(connection);
+			this._newConnections.add(connection);
+		}
+		this._selector.wakeup();
+		return connection;
+	}
+
+	/**
+	 * Returns the connections made so far, including those closed.
+	 */
+	public synchronized final List<RobotConnection> getConnections() {
+		return new ArrayList<>(this._connections);
+	}
+
+	@Override
+	public final void run() {
+		while (isRecieving()) {
+			try {
+				this._selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			registerNewConnections();
+			Iterator<SelectionKey> keys = this._selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				RobotConnection connection = (RobotConnection) key
+						.attachment();
+				if (!connection.recieve()) {
+					key.cancel();
+					connection.close();
+				}
+			}
+		}
+		for (RobotConnection connection : getConnections()) {
+			connection.close();
+		}
+		try {
+			this._selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops the reciever and closes all of its connections.
+	 */
+	public final void stopRecieving() {
+		synchronized (this) {
+			this._isRecieving = false;
+		}
+		this._selector.wakeup();
+	}
+
+	private void registerNewConnections() {
+		synchronized (this) {
+			for (RobotConnection connection : this._newConnections) {
+				try {
+					connection.register(this._selector);
+				} catch (IOException e) {
+					e.printStackTrace();
+					connection.close();
+				}
+			}
+			this._newConnections.clear();
+		}
+	}
+
+	private synchronized boolean isRecieving() {
+		return this._isRecieving;
+	}
+}
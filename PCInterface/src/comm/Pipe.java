@@ -0,0 +1,134 @@
+package comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory pipe of bytes, written to by one stream and read from by
+ * the other. Writes wait while the pipe is full and reads while it is empty.
+ * Once the pipe is closed, from either end, both streams fail.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class Pipe {
+	private final byte[] _buffer;
+	private int _start;
+	private int _size;
+	private boolean _isClosed;
+
+	private final InputStream _inputStream;
+	private final OutputStream _outputStream;
+
+	Pipe(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Invalid capacity");
+		this._buffer = new byte[capacity];
+		this._start = 0;
+		this._size = 0;
+		this._isClosed = false;
+		this._inputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				return Pipe.this.available();
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+		this._outputStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+	}
+
+	final InputStream getInputStream() {
+		return this._inputStream;
+	}
+
+	final OutputStream getOutputStream() {
+		return this._outputStream;
+	}
+
+	synchronized final void close() {
+		this._isClosed = true;
+		notifyAll();
+	}
+
+	private synchronized int available() {
+		return this._size;
+	}
+
+	private synchronized int read(byte[] b, int off, int len)
+			throws IOException {
+		if (len == 0)
+			return 0;
+		while (this._size == 0 && !this._isClosed) {
+			waitForChange();
+		}
+		if (this._isClosed)
+			throw new IOException("Pipe closed");
+		int length = Math.min(len, this._size);
+		for (int i = 0; i < length; ++i) {
+			b[off + i] = this._buffer[(this._start + i) % this._buffer.length];
+		}
+		this._start = (this._start + length) % this._buffer.length;
+		this._size -= length;
+		notifyAll();
+		return length;
+	}
+
+	private synchronized void write(byte[] b, int off, int len)
+			throws IOException {
+		while (len > 0) {
+			while (this._size == this._buffer.length && !this._isClosed) {
+				waitForChange();
+			}
+			if (this._isClosed)
+				throw new IOException("Pipe closed");
+			int length = Math.min(len, this._buffer.length - this._size);
+			int end = this._start + this._size;
+			for (int i = 0; i < length; ++i) {
+				this._buffer[(end + i) % this._buffer.length] = b[off + i];
+			}
+			this._size += length;
+			off += length;
+			len -= length;
+			notifyAll();
+		}
+	}
+
+	private void waitForChange() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+	}
+}
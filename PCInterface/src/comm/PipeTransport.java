@@ -0,0 +1,48 @@
+package comm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A transport over in-memory pipes, used to connect to a robot simulated in
+ * the same process. Closing either end closes the link both ways.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class PipeTransport implements Transport {
+	private final Pipe _inputPipe;
+	private final Pipe _outputPipe;
+
+	private PipeTransport(Pipe inputPipe, Pipe outputPipe) {
+		this._inputPipe = inputPipe;
+		this._outputPipe = outputPipe;
+	}
+
+	/**
+	 * Returns two transports connected to each other, each buffering up to
+	 * capacity bytes in each direction.
+	 */
+	public static final PipeTransport[] createPair(int capacity) {
+		Pipe first = new Pipe(capacity);
+		Pipe second = new Pipe(capacity);
+		return new PipeTransport[] { new PipeTransport(first, second),
+				new PipeTransport(second, first) };
+	}
+
+	@Override
+	public final InputStream getInputStream() {
+		return this._inputPipe.getInputStream();
+	}
+
+	@Override
+	public final OutputStream getOutputStream() {
+		return this._outputPipe.getOutputStream();
+	}
+
+	@Override
+	public final void close() {
+		this._inputPipe.close();
+		this._outputPipe.close();
+	}
+}
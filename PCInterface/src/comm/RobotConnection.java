@@ -0,0 +1,177 @@
+package comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import comm.data.BluetoothDataCenter;
+
+/**
+ * A connection of a MultiRobotReciever to one robot, with its own data center.
+ * The frames of the robot are read by the thread of the reciever whenever its
+ * channel has bytes to read, so that no thread waits on a single robot.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class RobotConnection {
+	private final String _name;
+	private final SocketChannel _channel;
+	private final FrameReader _reader;
+	private final FrameWriter _writer;
+	private final TelemetryDecoder _decoder;
+
+	private final BluetoothDataCenter _dataCenter;
+
+	private boolean _isConnected;
+
+	RobotConnection(String name, SocketChannel channel,
+			BluetoothDataCenter dataCenter) {
+		this._name = name;
+		this._channel = channel;
+		this._reader = new FrameReader();
+		this._writer = new FrameWriter(new ChannelOutputStream(channel));
+		this._decoder = new TelemetryDecoder();
+		this._dataCenter = dataCenter;
+		this._isConnected = true;
+	}
+
+	public final String getName() {
+		return this._name;
+	}
+
+	public final BluetoothDataCenter getDataCenter() {
+		return this._dataCenter;
+	}
+
+	public synchronized final boolean isConnected() {
+		return this._isConnected;
+	}
+
+	/**
+	 * Returns the number of telemetry samples that never arrived.
+	 */
+	public final int getLostSamples() {
+		return this._decoder.getLostSamples();
+	}
+
+	/**
+	 * Returns the number of samples of the channel that never arrived.
+	 */
+	public final int getLostSamples(int channel) {
+		return this._decoder.getLostSamples(channel);
+	}
+
+	/**
+	 * Returns the number of frames dropped because they were corrupted.
+	 */
+	public final int getCorruptFrames() {
+		return this._reader.getCorruptFrames();
+	}
+
+	/**
+	 * Asks the robot to send each channel of the BluetoothProtocol at the
+	 * given period in ms, as BluetoothReciever.subscribe does.
+	 */
+	public final void subscribe(int[] periods) throws IOException {
+		BluetoothReciever.writeSubscription(this._writer, periods);
+	}
+
+	/**
+	 * Asks the robot to send the channels with a deadband only when they
+	 * change, as BluetoothReciever.setDeadbands does.
+	 */
+	public final void setDeadbands(int[][] deadbands, int heartbeatPeriod)
+			throws IOException {
+		BluetoothReciever.writeDeadbands(this._writer, deadbands,
+				heartbeatPeriod);
+	}
+
+	public final void endTransmission() throws IOException {
+		if (isConnected()) {
+			synchronized (this._writer) {
+				this._writer.startFrame(BluetoothProtocol.END_TRANSMISSION);
+				this._writer.endFrame();
+				this._writer.flush();
+			}
+		}
+	}
+
+	/**
+	 * Registers the channel with the selector, to be read when it has bytes
+	 * to read.
+	 */
+	final void register(Selector selector) throws IOException {
+		this._channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Reads the bytes available from the robot and decodes the whole frames
+	 * among them. Returns false once the robot has ended the transmission or
+	 * the link is lost.
+	 */
+	final boolean recieve() {
+		try {
+			if (this._reader.readFrom(this._channel) < 0)
+				return false;
+		} catch (IOException e) {
+			// The link is lost.
+			return false;
+		}
+		while (true) {
+			try {
+				int type = this._reader.pollFrame();
+				if (type == FrameReader.NO_FRAME)
+					return true;
+				if (type == BluetoothProtocol.END_TRANSMISSION)
+					return false;
+				if (type == BluetoothProtocol.TELEMETRY)
+					this._decoder.decode(this._reader, this._dataCenter);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	final void close() {
+		synchronized (this) {
+			this._isConnected = false;
+		}
+		try {
+			this._channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A stream writing to a channel that may not be able to take all the bytes
+	 * at once. Frames sent to the robot are short, so it yields until the
+	 * channel takes the rest rather than buffering them.
+	 */
+	private static final class ChannelOutputStream extends OutputStream {
+		private final SocketChannel _channel;
+
+		ChannelOutputStream(SocketChannel channel) {
+			this._channel = channel;
+		}
+
+		@Override
+		public final void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public final void write(byte[] b, int offset, int length)
+				throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+			while (buffer.hasRemaining()) {
+				if (this._channel.write(buffer) == 0)
+					Thread.yield();
+			}
+		}
+	}
+}
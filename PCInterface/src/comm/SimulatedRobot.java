@@ -0,0 +1,646 @@
+package comm;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import comm.data.Position;
+import comm.util.AngleUtility;
+
+/**
+ * A robot simulated on the computer, which speaks the BluetoothProtocol over a
+ * transport as the NXT does, so that the PCInterface can be run without
+ * hardware. The robot is a point on an empty field with walls around it. It
+ * carries out the commands of the computer and sends the channels subscribed
+ * to, batched and flushed as the NXT does. Like the NXT, it sends the
+ * channels with deadbands only when they change, and keeps the last samples
+ * so that it can send them again when the computer asks to resume.
+ *
+ * The robot keeps running when the link is lost, and continues over the next
+ * transport it is given with connect, as the NXT does when the computer
+ * connects again. Telemetry is held until the first frame of the computer on
+ * the new link, and if it is a RESUME frame, the samples kept that it asks
+ * for are sent first.
+ *
+ * Run on its own, it waits for TCP connections on the port given, or on
+ * DEFAULT_PORT. A connection made while the robot runs continues with the
+ * same robot, and one made after the computer ended the transmission starts
+ * a new robot.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class SimulatedRobot extends Thread {
+	public static final int DEFAULT_PORT = 5000;
+
+	private static final long PERIOD = BluetoothProtocol.MIN_PERIOD;
+	private static final int PERIODS_PER_FLUSH = 4;
+	private static final int[] DEFAULT_PERIODS = { 25, 25, 0, 25, 0, 0, 0 };
+	private static final int QUEUE_CAPACITY = 8;
+	private static final int HISTORY_CAPACITY = 240;
+
+	private static final double TILE_DISTANCE = 30.48;
+	private static final double FIELD_MIN = -TILE_DISTANCE;
+	private static final double FIELD_MAX = 11 * TILE_DISTANCE;
+	private static final int MAX_US_DISTANCE = 255;
+	private static final double CS_LINE_WIDTH = 0.5;
+	private static final int CS_LINE_VALUE = 20;
+	private static final int CS_FLOOR_VALUE = 45;
+
+	private static final double WHEEL_RADIUS = 2.1;
+	private static final double WHEEL_DISTANCE = 15.5;
+	private static final double MAX_POSITION_ERROR = 0.5;
+	private static final double MAX_ORIENTATION_ERROR = 0.5;
+	private static final double MAX_HEADING_ERROR = 3.0;
+	private static final double FIRE_TIME = 1.0;
+
+	private Transport _transport;
+	private final FrameWriter _writer;
+	private final TelemetryEncoder _encoder;
+	private final TelemetrySample[] _samples;
+	private final TelemetryHistory _history;
+
+	private final Position _position;
+	private double _leftTachoCount;
+	private double _rightTachoCount;
+	private double _maxSpeed;
+	private double _turnSpeed;
+	private int _lateness;
+	private final int[] _periods;
+	private final int[] _nextSequenceNumbers;
+	private final List<SimulatedCommand> _commands;
+	private boolean _isRunning;
+
+	private final TelemetryDeadbands _deadbands;
+
+	/**
+	 * The state of the link, guarded by the writer, which is locked for every
+	 * write. Telemetry is only written while the robot is connected.
+	 */
+	private boolean _isConnected;
+	private boolean _isResumeAsked;
+	private final int[] _askedSequenceNumbers;
+
+	/**
+	 * Creates a robot at the origin facing 0 degrees, communicating over the
+	 * given transport.
+	 */
+	public SimulatedRobot(Transport transport) {
+		this._transport = transport;
+		this._writer = new FrameWriter(transport.getOutputStream());
+		this._encoder = new TelemetryEncoder(this._writer);
+		int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+		this._samples = new TelemetrySample[channels];
+		for (int i = 0; i < channels; ++i) {
+			this._samples[i] = new TelemetrySample();
+		}
+		this._history = new TelemetryHistory(HISTORY_CAPACITY);
+		this._position = new Position();
+		this._leftTachoCount = 0;
+		this._rightTachoCount = 0;
+		this._maxSpeed = 15;
+		this._turnSpeed = 60;
+		this._lateness = 0;
+		this._periods = DEFAULT_PERIODS.clone();
+		this._nextSequenceNumbers = new int[channels];
+		this._commands = new ArrayList<>();
+		this._isRunning = true;
+		this._deadbands = new TelemetryDeadbands();
+		this._isConnected = true;
+		this._isResumeAsked = false;
+		this._askedSequenceNumbers = new int[channels];
+	}
+
+	public final static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		try (ServerSocket serverSocket = new ServerSocket(port)) {
+			System.out.println("Simulated robot waiting on port " + port);
+			SimulatedRobot robot = null;
+			while (true) {
+				Socket socket = serverSocket.accept();
+				Transport transport = new SocketTransport(socket);
+				if (robot != null && robot.isAlive()) {
+					robot.connect(transport);
+				} else {
+					robot = new SimulatedRobot(transport);
+					robot.start();
+				}
+			}
+		}
+	}
+
+	@Override
+	public final void run() {
+		Transport transport;
+		synchronized (this._writer) {
+			transport = this._transport;
+		}
+		readFromComputerInNewThread(transport);
+		long lastStartTime = System.currentTimeMillis() - PERIOD;
+		long periods = 0;
+		try {
+			while (isRunning()) {
+				long startTime = System.currentTimeMillis();
+				synchronized (this) {
+					this._lateness = (int) Math.max(0, startTime
+							- lastStartTime - PERIOD);
+					move(PERIOD / 1000.0);
+				}
+				lastStartTime = startTime;
+				sendTelemetry(periods);
+				++periods;
+				long timeLeft = startTime + PERIOD
+						- System.currentTimeMillis();
+				if (timeLeft > 0)
+					Thread.sleep(timeLeft);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		synchronized (this._writer) {
+			try {
+				if (this._isConnected) {
+					this._encoder.flush();
+					this._writer.startFrame(BluetoothProtocol.END_TRANSMISSION);
+					this._writer.endFrame();
+					this._writer.flush();
+				}
+			} catch (IOException e) {
+				// The link was lost.
+			}
+			this._transport.close();
+		}
+	}
+
+	/**
+	 * Continues over the given transport, such as a new link after the last
+	 * one was lost. The last link is closed, and the samples not yet sent
+	 * over it are only kept in the history.
+	 */
+	public final void connect(Transport transport) {
+		synchronized (this._writer) {
+			this._transport.close();
+			this._transport = transport;
+			this._writer.setOutputStream(transport.getOutputStream());
+			this._encoder.reset();
+			this._isConnected = false;
+			this._isResumeAsked = false;
+		}
+		readFromComputerInNewThread(transport);
+	}
+
+	/**
+	 * Stops the robot and ends the transmission.
+	 */
+	public synchronized final void end() {
+		this._isRunning = false;
+	}
+
+	public synchronized final Position getPosition() {
+		return new Position(this._position);
+	}
+
+	private synchronized boolean isRunning() {
+		return this._isRunning;
+	}
+
+	/**
+	 * Samples the channels due in the given period and keeps those that
+	 * changed. They are sent if the robot is connected, or with the samples
+	 * kept if the computer asked to resume. The robot is not locked while
+	 * writing, since it is locked before the writer when acknowledging
+	 * commands.
+	 */
+	private void sendTelemetry(long periods) {
+		int time = (int) (periods * PERIOD);
+		int numberOfSamples = 0;
+		synchronized (this) {
+			for (int channel = 0; channel < this._periods.length; ++channel) {
+				int period = this._periods[channel];
+				if (period == 0 || time % period != 0)
+					continue;
+				TelemetrySample sample = this._samples[numberOfSamples];
+				sample.channel = channel;
+				sample.time = time;
+				takeSample(channel, sample.values);
+				if (!this._deadbands.isChanged(sample))
+					continue;
+				sample.sequenceNumber = this._nextSequenceNumbers[channel]++;
+				++numberOfSamples;
+			}
+		}
+		synchronized (this._writer) {
+			for (int i = 0; i < numberOfSamples; ++i) {
+				this._history.add(this._samples[i]);
+			}
+			try {
+				if (this._isResumeAsked) {
+					sendSamplesKept();
+				} else if (this._isConnected) {
+					for (int i = 0; i < numberOfSamples; ++i) {
+						this._encoder.addSample(this._samples[i]);
+					}
+					if ((periods + 1) % PERIODS_PER_FLUSH == 0)
+						this._encoder.flush();
+				}
+			} catch (IOException e) {
+				disconnect(this._transport);
+			}
+		}
+	}
+
+	/**
+	 * Sends the samples kept from the sequence numbers the computer asked
+	 * for, as the NXT does, and starts sending the next samples. The writer
+	 * must be locked.
+	 */
+	private void sendSamplesKept() throws IOException {
+		this._isResumeAsked = false;
+		this._isConnected = true;
+		this._encoder.reset();
+		for (int i = 0; i < this._history.size(); ++i) {
+			TelemetrySample sample = this._history.get(i);
+			if (sample.sequenceNumber
+					>= this._askedSequenceNumbers[sample.channel])
+				this._encoder.addSample(sample);
+		}
+		this._encoder.flush();
+	}
+
+	/**
+	 * Stops writing to the given link once it is lost, if it is the current
+	 * one, and closes it. The samples are still kept until the computer
+	 * connects again.
+	 */
+	private void disconnect(Transport transport) {
+		synchronized (this._writer) {
+			if (transport == this._transport) {
+				this._isConnected = false;
+				this._isResumeAsked = false;
+			}
+		}
+		transport.close();
+	}
+
+	/**
+	 * Moves the robot for the given time in s to carry out the first command.
+	 */
+	private void move(double time) {
+		if (this._commands.isEmpty())
+			return;
+		SimulatedCommand command = this._commands.get(0);
+		boolean isDone = false;
+		switch (command.type) {
+		case BluetoothProtocol.TRAVEL_TO:
+			double dx = command.x - this._position.x;
+			double dy = command.y - this._position.y;
+			double distance = Math.sqrt(dx * dx + dy * dy);
+			if (distance <= MAX_POSITION_ERROR) {
+				isDone = true;
+				break;
+			}
+			double heading = Math.toDegrees(Math.atan2(dy, dx));
+			if (AngleUtility.absoluteDifference(heading,
+					this._position.orientation) > MAX_HEADING_ERROR) {
+				turnTowards(heading, time);
+			} else {
+				double step = Math.min(distance, this._maxSpeed * time);
+				this._position.x += step * dx / distance;
+				this._position.y += step * dy / distance;
+				this._leftTachoCount += Math.toDegrees(step / WHEEL_RADIUS);
+				this._rightTachoCount += Math.toDegrees(step / WHEEL_RADIUS);
+			}
+			break;
+		case BluetoothProtocol.TURN_TO:
+			if (AngleUtility.absoluteDifference(command.orientation,
+					this._position.orientation) <= MAX_ORIENTATION_ERROR)
+				isDone = true;
+			else
+				turnTowards(command.orientation, time);
+			break;
+		case BluetoothProtocol.FIRE:
+			command.timeLeft -= time;
+			isDone = command.timeLeft <= 0;
+			break;
+		default:
+			throw new IllegalStateException("Invalid command");
+		}
+		if (isDone) {
+			this._commands.remove(0);
+			sendAcknowledgement(command.requestID, BluetoothProtocol.DONE);
+		}
+	}
+
+	private void turnTowards(double orientation, double time) {
+		double difference = AngleUtility.difference(orientation,
+				this._position.orientation);
+		double step = Math.min(Math.abs(difference), this._turnSpeed * time);
+		if (difference < 0)
+			step = -step;
+		this._position.orientation = AngleUtility
+				.normalize(this._position.orientation + step);
+		double wheelStep = Math.toDegrees(Math.toRadians(step)
+				* WHEEL_DISTANCE / 2 / WHEEL_RADIUS);
+		this._leftTachoCount -= wheelStep;
+		this._rightTachoCount += wheelStep;
+	}
+
+	private void takeSample(int channel, int[] values) {
+		Position position = this._position;
+		switch (channel) {
+		case BluetoothProtocol.POSE:
+			values[0] = (int) Math.round(position.x
+					* BluetoothProtocol.POSITION_SCALE);
+			values[1] = (int) Math.round(position.y
+					* BluetoothProtocol.POSITION_SCALE);
+			values[2] = (int) Math.round(position.orientation
+					* BluetoothProtocol.ORIENTATION_SCALE)
+					% BluetoothProtocol.ORIENTATION_RANGE;
+			break;
+		case BluetoothProtocol.US:
+		case BluetoothProtocol.RAW_US:
+			values[0] = computeUSDistance(90);
+			values[1] = computeUSDistance(0);
+			values[2] = computeUSDistance(-90);
+			break;
+		case BluetoothProtocol.CS:
+			boolean isOnGridLine = isOnGridLine(position.x)
+					|| isOnGridLine(position.y);
+			values[0] = isOnGridLine ? CS_LINE_VALUE : CS_FLOOR_VALUE;
+			break;
+		case BluetoothProtocol.TACHO:
+			values[0] = (int) Math.round(this._leftTachoCount);
+			values[1] = (int) Math.round(this._rightTachoCount);
+			break;
+		case BluetoothProtocol.CORRECTION:
+			values[0] = 0;
+			values[1] = 0;
+			values[2] = 0;
+			values[3] = 0;
+			break;
+		case BluetoothProtocol.TIMING:
+			values[0] = (int) PERIOD;
+			values[1] = this._lateness;
+			values[2] = 0;
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid channel");
+		}
+	}
+
+	/**
+	 * Returns the distance in cm to the wall seen at the given angle from the
+	 * orientation of the robot.
+	 */
+	private int computeUSDistance(double angle) {
+		double direction = Math.toRadians(this._position.orientation + angle);
+		double cos = Math.cos(direction);
+		double sin = Math.sin(direction);
+		double distance = Double.POSITIVE_INFINITY;
+		if (cos > 0)
+			distance = Math.min(distance, (FIELD_MAX - this._position.x) / cos);
+		else if (cos < 0)
+			distance = Math.min(distance, (FIELD_MIN - this._position.x) / cos);
+		if (sin > 0)
+			distance = Math.min(distance, (FIELD_MAX - this._position.y) / sin);
+		else if (sin < 0)
+			distance = Math.min(distance, (FIELD_MIN - this._position.y) / sin);
+		return (int) Math.min(MAX_US_DISTANCE, Math.round(distance));
+	}
+
+	private static boolean isOnGridLine(double coordinate) {
+		double offset = Math.abs(coordinate
+				- Math.round(coordinate / TILE_DISTANCE) * TILE_DISTANCE);
+		return offset <= CS_LINE_WIDTH / 2;
+	}
+
+	/**
+	 * Reads the frames of the computer from the given link until it is lost.
+	 * Any first frame other than RESUME starts sending the next samples, as
+	 * on the NXT.
+	 */
+	private void readFromComputerInNewThread(final Transport transport) {
+		Thread thread = new Thread() {
+			public void run() {
+				FrameReader reader = new FrameReader(
+						transport.getInputStream());
+				try {
+					byte type = reader.readFrame();
+					if (type != BluetoothProtocol.RESUME)
+						connectLive(transport);
+					while (isRunning()) {
+						if (type == BluetoothProtocol.SUBSCRIBE)
+							readSubscription(reader);
+						else if (type == BluetoothProtocol.COMMAND)
+							readCommand(reader);
+						else if (type == BluetoothProtocol.DEADBAND)
+							readDeadbands(reader);
+						else if (type == BluetoothProtocol.RESUME)
+							readResume(reader, transport);
+						else if (type == BluetoothProtocol.END_TRANSMISSION)
+							end();
+						type = reader.readFrame();
+					}
+				} catch (IOException e) {
+					// The link was lost.
+					disconnect(transport);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void readSubscription(FrameReader reader) throws IOException {
+		int[] periods = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		while (reader.getRemainingPayloadLength() > 0) {
+			int channel = reader.readUnsignedByte();
+			int period = reader.readUnsignedVarInt();
+			if (channel < BluetoothProtocol.NUMBER_OF_CHANNELS && period >= 0) {
+				int remainder = period % BluetoothProtocol.MIN_PERIOD;
+				if (remainder != 0)
+					period += BluetoothProtocol.MIN_PERIOD - remainder;
+				periods[channel] = period;
+			}
+		}
+		synchronized (this) {
+			System.arraycopy(periods, 0, this._periods, 0, periods.length);
+			for (int channel = 0; channel < periods.length; ++channel) {
+				this._deadbands.sendNext(channel);
+			}
+		}
+	}
+
+	/**
+	 * Reads a DEADBAND frame. A frame with a channel that is not known, a
+	 * heartbeat period of 0 or a negative deadband is ignored, as on the NXT.
+	 */
+	private void readDeadbands(FrameReader reader) throws IOException {
+		int heartbeatPeriod = reader.readUnsignedVarInt();
+		int[][] deadbands = new int[BluetoothProtocol.NUMBER_OF_CHANNELS][];
+		while (reader.getRemainingPayloadLength() > 0) {
+			int channel = reader.readUnsignedByte();
+			if (channel >= BluetoothProtocol.NUMBER_OF_CHANNELS)
+				return;
+			deadbands[channel] = new int[BluetoothProtocol
+					.getChannelLength(channel)];
+			for (int i = 0; i < deadbands[channel].length; ++i) {
+				deadbands[channel][i] = reader.readUnsignedVarInt();
+			}
+		}
+		synchronized (this) {
+			try {
+				this._deadbands.set(deadbands, heartbeatPeriod);
+			} catch (IllegalArgumentException e) {
+				// Ignored, as on the NXT.
+			}
+		}
+	}
+
+	/**
+	 * Reads a RESUME frame from the given link, to send the samples kept from
+	 * the sequence numbers in it with the next telemetry. The samples kept of
+	 * the channels not in the frame are all sent.
+	 */
+	private void readResume(FrameReader reader, Transport transport)
+			throws IOException {
+		int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+		int[] nextSequenceNumbers = new int[channels];
+		for (int channel = 0; channel < channels; ++channel) {
+			nextSequenceNumbers[channel] = -1;
+		}
+		while (reader.getRemainingPayloadLength() > 0) {
+			int channel = reader.readUnsignedByte();
+			int sequenceNumber = reader.readUnsignedVarInt();
+			if (channel < channels)
+				nextSequenceNumbers[channel] = sequenceNumber;
+		}
+		synchronized (this._writer) {
+			if (transport != this._transport)
+				return;
+			System.arraycopy(nextSequenceNumbers, 0,
+					this._askedSequenceNumbers, 0, channels);
+			this._isResumeAsked = true;
+		}
+	}
+
+	/**
+	 * Starts sending the next samples over the given link, if it is the
+	 * current one, without sending any of the samples kept.
+	 */
+	private void connectLive(Transport transport) {
+		synchronized (this._writer) {
+			if (transport == this._transport)
+				this._isConnected = true;
+		}
+	}
+
+	private void readCommand(FrameReader reader) throws IOException {
+		SimulatedCommand command = new SimulatedCommand();
+		command.requestID = reader.readUnsignedVarInt();
+		command.type = reader.readUnsignedByte();
+		int parameter = 0;
+		int value = 0;
+		switch (command.type) {
+		case BluetoothProtocol.TRAVEL_TO:
+			command.x = (double) reader.readSignedVarInt()
+					/ BluetoothProtocol.POSITION_SCALE;
+			command.y = (double) reader.readSignedVarInt()
+					/ BluetoothProtocol.POSITION_SCALE;
+			break;
+		case BluetoothProtocol.TURN_TO:
+			command.orientation = (double) reader.readUnsignedVarInt()
+					/ BluetoothProtocol.ORIENTATION_SCALE;
+			break;
+		case BluetoothProtocol.FIRE:
+			command.timeLeft = reader.readUnsignedByte() * FIRE_TIME;
+			break;
+		case BluetoothProtocol.SET_PARAMETER:
+			parameter = reader.readUnsignedByte();
+			value = reader.readSignedVarInt();
+			break;
+		default:
+			// Has no arguments, or is rejected.
+		}
+		synchronized (this) {
+			dispatch(command, parameter, value);
+		}
+	}
+
+	/**
+	 * Carries out or queues the command, acknowledging it as the NXT does.
+	 */
+	private void dispatch(SimulatedCommand command, int parameter, int value) {
+		switch (command.type) {
+		case BluetoothProtocol.STOP:
+			sendAcknowledgement(command.requestID, BluetoothProtocol.ACCEPTED);
+			for (SimulatedCommand cancelled : this._commands) {
+				sendAcknowledgement(cancelled.requestID,
+						BluetoothProtocol.CANCELLED);
+			}
+			this._commands.clear();
+			sendAcknowledgement(command.requestID, BluetoothProtocol.DONE);
+			break;
+		case BluetoothProtocol.SET_PARAMETER:
+			sendAcknowledgement(command.requestID, BluetoothProtocol.ACCEPTED);
+			int status = BluetoothProtocol.DONE;
+			if (parameter == BluetoothProtocol.MAX_SPEED && value > 0)
+				this._maxSpeed = (double) value
+						/ BluetoothProtocol.POSITION_SCALE;
+			else if (parameter == BluetoothProtocol.TURN_SPEED && value > 0)
+				this._turnSpeed = value;
+			else
+				status = BluetoothProtocol.REJECTED;
+			sendAcknowledgement(command.requestID, status);
+			break;
+		case BluetoothProtocol.TRAVEL_TO:
+		case BluetoothProtocol.TURN_TO:
+		case BluetoothProtocol.FIRE:
+			if (this._commands.size() == QUEUE_CAPACITY) {
+				sendAcknowledgement(command.requestID,
+						BluetoothProtocol.REJECTED);
+			} else {
+				this._commands.add(command);
+				sendAcknowledgement(command.requestID,
+						BluetoothProtocol.ACCEPTED);
+			}
+			break;
+		default:
+			sendAcknowledgement(command.requestID, BluetoothProtocol.REJECTED);
+		}
+	}
+
+	/**
+	 * Sends an acknowledgement, which is lost if the link is, as on the NXT.
+	 */
+	private void sendAcknowledgement(int requestID, int status) {
+		synchronized (this._writer) {
+			if (!this._isConnected)
+				return;
+			try {
+				this._writer.startFrame(BluetoothProtocol.ACKNOWLEDGEMENT);
+				this._writer.writeUnsignedVarInt(requestID);
+				this._writer.writeByte(status);
+				this._writer.endFrame();
+				this._writer.flush();
+			} catch (IOException e) {
+				disconnect(this._transport);
+			}
+		}
+	}
+
+	/**
+	 * A command waiting to be carried out, with its arguments in cm, degrees
+	 * and s.
+	 */
+	private static final class SimulatedCommand {
+		int requestID;
+		int type;
+		double x;
+		double y;
+		double orientation;
+		double timeLeft;
+	}
+}
@@ -0,0 +1,24 @@
+package comm;
+
+import java.io.IOException;
+
+/**
+ * A connector to a robot over TCP, such as a SimulatedRobot.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class SocketConnector implements Connector {
+	private final String _host;
+	private final int _port;
+
+	public SocketConnector(String host, int port) {
+		this._host = host;
+		this._port = port;
+	}
+
+	@Override
+	public final Transport connect() throws IOException {
+		return new SocketTransport(this._host, this._port);
+	}
+}
@@ -0,0 +1,57 @@
+package comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A transport over a TCP connection, used to stand in for Bluetooth when
+ * talking to a simulated robot.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class SocketTransport implements Transport {
+	private final Socket _socket;
+	private final InputStream _inputStream;
+	private final OutputStream _outputStream;
+
+	/**
+	 * Connects to the given host and port.
+	 */
+	public SocketTransport(String host, int port) throws IOException {
+		this(new Socket(host, port));
+	}
+
+	/**
+	 * Uses a socket that is already connected.
+	 */
+	public SocketTransport(Socket socket) throws IOException {
+		this._socket = socket;
+		// Frames are written whole and flushed, so they are not delayed to be
+		// merged with later ones.
+		this._socket.setTcpNoDelay(true);
+		this._inputStream = socket.getInputStream();
+		this._outputStream = socket.getOutputStream();
+	}
+
+	@Override
+	public final InputStream getInputStream() {
+		return this._inputStream;
+	}
+
+	@Override
+	public final OutputStream getOutputStream() {
+		return this._outputStream;
+	}
+
+	@Override
+	public final void close() {
+		try {
+			this._socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
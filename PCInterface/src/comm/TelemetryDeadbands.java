@@ -0,0 +1,115 @@
+package comm;
+
+/**
+ * The deadbands of the telemetry channels, which decide which due samples are
+ * sent. A channel with deadbands is only sent when it changes: a due sample is
+ * dropped unless one of its values moved past its deadband since the last
+ * sample sent, or the heartbeat period has passed since then. The other
+ * channels are sent at every period.
+ *
+ * The deadbands are not synchronized, and must be locked by their owner.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetryDeadbands {
+	private final boolean[] _hasDeadbands;
+	private final int[][] _deadbands;
+	private int _heartbeatPeriod;
+	private final boolean[] _hasSent;
+	private final int[] _lastSentTimes;
+	private final int[][] _lastSentValues;
+
+	/**
+	 * Creates deadbands with every channel sent at every period.
+	 */
+	TelemetryDeadbands() {
+		int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+		int values = BluetoothProtocol.MAX_CHANNEL_VALUES;
+		this._hasDeadbands = new boolean[channels];
+		this._deadbands = new int[channels][values];
+		this._heartbeatPeriod = 0;
+		this._hasSent = new boolean[channels];
+		this._lastSentTimes = new int[channels];
+		this._lastSentValues = new int[channels][values];
+	}
+
+	/**
+	 * Replaces the deadbands of the values of every channel, with null for
+	 * the channels sent at every period, and the heartbeat period in ms of the
+	 * others. The next sample of each channel is sent.
+	 */
+	final void set(int[][] deadbands, int heartbeatPeriod) {
+		check(deadbands, heartbeatPeriod);
+		for (int channel = 0; channel < deadbands.length; ++channel) {
+			this._hasDeadbands[channel] = deadbands[channel] != null;
+			if (deadbands[channel] != null)
+				System.arraycopy(deadbands[channel], 0,
+						this._deadbands[channel], 0, deadbands[channel].length);
+			this._hasSent[channel] = false;
+		}
+		this._heartbeatPeriod = heartbeatPeriod;
+	}
+
+	/**
+	 * Has the next sample of the channel sent whatever its values, such as
+	 * when the channel is subscribed to again.
+	 */
+	final void sendNext(int channel) {
+		this._hasSent[channel] = false;
+	}
+
+	/**
+	 * Returns true if the sample should be sent: if its channel has no
+	 * deadbands, if one of its values moved past its deadband since the last
+	 * sample sent, or if the heartbeat period has passed since then. If so,
+	 * keeps it as the last sample sent.
+	 */
+	final boolean isChanged(TelemetrySample sample) {
+		int channel = sample.channel;
+		int[] deadbands = this._deadbands[channel];
+		int[] lastValues = this._lastSentValues[channel];
+		int length = BluetoothProtocol.getChannelLength(channel);
+		boolean isChanged = !this._hasDeadbands[channel]
+				|| !this._hasSent[channel]
+				|| sample.time - this._lastSentTimes[channel]
+						>= this._heartbeatPeriod;
+		for (int i = 0; i < length && !isChanged; ++i) {
+			int difference = Math.abs(sample.values[i] - lastValues[i]);
+			if (channel == BluetoothProtocol.POSE
+					&& i == BluetoothProtocol.POSE_ORIENTATION)
+				difference = Math.min(difference,
+						BluetoothProtocol.ORIENTATION_RANGE - difference);
+			isChanged = difference > deadbands[i];
+		}
+		if (isChanged) {
+			this._hasSent[channel] = true;
+			this._lastSentTimes[channel] = sample.time;
+			System.arraycopy(sample.values, 0, lastValues, 0, length);
+		}
+		return isChanged;
+	}
+
+	/**
+	 * Throws an IllegalArgumentException unless there are deadbands for each
+	 * value of the channels that have some, none of them negative, and the
+	 * heartbeat period is positive.
+	 */
+	static void check(int[][] deadbands, int heartbeatPeriod) {
+		if (deadbands.length != BluetoothProtocol.NUMBER_OF_CHANNELS)
+			throw new IllegalArgumentException("Invalid deadbands");
+		for (int channel = 0; channel < deadbands.length; ++channel) {
+			if (deadbands[channel] == null)
+				continue;
+			if (deadbands[channel].length != BluetoothProtocol
+					.getChannelLength(channel))
+				throw new IllegalArgumentException("Invalid deadbands");
+			for (int i = 0; i < deadbands[channel].length; ++i) {
+				if (deadbands[channel][i] < 0)
+					throw new IllegalArgumentException("Invalid deadband");
+			}
+		}
+		if (heartbeatPeriod <= 0)
+			throw new IllegalArgumentException("Invalid heartbeat period");
+	}
+}
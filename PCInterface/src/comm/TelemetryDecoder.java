@@ -0,0 +1,282 @@
+package comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import comm.data.BluetoothDataCenter;
+import comm.data.TelemetryTimeline;
+import comm.test.Assert;
+
+/**
+ * A class that reads the samples of TELEMETRY frames of the BluetoothProtocol
+ * into a data center. Gaps in the sequence numbers of the samples of a channel
+ * are counted as lost samples.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetryDecoder {
+	private final boolean[] _hasReadChannel;
+	private final int[] _nextSequenceNumbers;
+	private final int[] _lostSamples;
+
+	/**
+	 * The time and values of the last sample read of each channel, in the
+	 * units of the protocol.
+	 */
+	private final int[] _times;
+	private final int[][] _values;
+
+	TelemetryDecoder() {
+		int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+		this._hasReadChannel = new boolean[channels];
+		this._nextSequenceNumbers = new int[channels];
+		this._lostSamples = new int[channels];
+		this._times = new int[channels];
+		this._values = new int[channels][BluetoothProtocol.MAX_CHANNEL_VALUES];
+	}
+
+	/**
+	 * Reads the samples of the TELEMETRY frame last read by the reader into
+	 * the data center in order, and returns the number of samples read. Frames
+	 * of unknown channels are skipped.
+	 */
+	final int decode(FrameReader reader, BluetoothDataCenter dataCenter)
+			throws IOException {
+		int channel = reader.readUnsignedByte();
+		if (channel >= BluetoothProtocol.NUMBER_OF_CHANNELS)
+			return 0;
+		int sequenceNumber = reader.readInt();
+		int length = BluetoothProtocol.getChannelLength(channel);
+		int[] values = this._values[channel];
+		int numberOfSamples = 0;
+		while (reader.getRemainingPayloadLength() > 0) {
+			if (numberOfSamples == 0)
+				readKeyframe(reader, channel, length);
+			else
+				readDifferences(reader, channel, length);
+			++numberOfSamples;
+			store(channel, dataCenter);
+			dataCenter.setChannelValues(channel, this._times[channel], values,
+					length);
+			dataCenter.setRobotTime(this._times[channel]);
+		}
+		if (this._hasReadChannel[channel]
+				&& sequenceNumber > this._nextSequenceNumbers[channel])
+			this._lostSamples[channel] += sequenceNumber
+					- this._nextSequenceNumbers[channel];
+		this._hasReadChannel[channel] = true;
+		this._nextSequenceNumbers[channel] = sequenceNumber + numberOfSamples;
+		return numberOfSamples;
+	}
+
+	/**
+	 * Returns the number of samples missing from the sequences so far.
+	 */
+	final int getLostSamples() {
+		int lostSamples = 0;
+		for (int channel = 0; channel < BluetoothProtocol.NUMBER_OF_CHANNELS;
+				++channel) {
+			lostSamples += this._lostSamples[channel];
+		}
+		return lostSamples;
+	}
+
+	/**
+	 * Returns the number of samples of the channel missing from its sequence
+	 * so far.
+	 */
+	final int getLostSamples(int channel) {
+		return this._lostSamples[channel];
+	}
+
+	/**
+	 * Returns the sequence number of the next sample of the channel expected,
+	 * or -1 if none was read.
+	 */
+	final int getNextSequenceNumber(int channel) {
+		return this._hasReadChannel[channel]
+				? this._nextSequenceNumbers[channel] : -1;
+	}
+
+	/**
+	 * Stores the last sample of the channels known to the data center in its
+	 * own units.
+	 */
+	private void store(int channel, BluetoothDataCenter dataCenter) {
+		int[] values = this._values[channel];
+		switch (channel) {
+		case BluetoothProtocol.POSE:
+			dataCenter.setPosition((double) values[0]
+					/ BluetoothProtocol.POSITION_SCALE, (double) values[1]
+					/ BluetoothProtocol.POSITION_SCALE, (double) values[2]
+					/ BluetoothProtocol.ORIENTATION_SCALE);
+			break;
+		case BluetoothProtocol.US:
+			dataCenter.setUSDistanceAtAngle(values[0], 90);
+			dataCenter.setUSDistanceAtAngle(values[1], 0);
+			dataCenter.setUSDistanceAtAngle(values[2], -90);
+			break;
+		case BluetoothProtocol.CS:
+			dataCenter.setCSValue(values[0]);
+			break;
+		default:
+			// Only kept as channel values.
+		}
+	}
+
+	private void readKeyframe(FrameReader reader, int channel, int length)
+			throws IOException {
+		int[] values = this._values[channel];
+		this._times[channel] = reader.readUnsignedVarInt();
+		for (int i = 0; i < length; ++i) {
+			values[i] = reader.readSignedVarInt();
+		}
+	}
+
+	private void readDifferences(FrameReader reader, int channel, int length)
+			throws IOException {
+		int[] values = this._values[channel];
+		this._times[channel] += reader.readUnsignedVarInt();
+		for (int i = 0; i < length; ++i) {
+			values[i] += reader.readSignedVarInt();
+		}
+		if (channel == BluetoothProtocol.POSE) {
+			int orientation = BluetoothProtocol.POSE_ORIENTATION;
+			values[orientation] = (values[orientation]
+					+ BluetoothProtocol.ORIENTATION_RANGE)
+					% BluetoothProtocol.ORIENTATION_RANGE;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		TelemetryDecoderTest.testRoundTripIsLossless();
+		TelemetryDecoderTest.testCountsLostSamples();
+	}
+
+	private static class TelemetryDecoderTest {
+		private static final int NUMBER_OF_SAMPLES = 2000;
+		private static final int PERIOD = 25;
+
+		/**
+		 * Sends random walks on every channel, with jumps and orientations
+		 * that wrap around, and checks that every sample decoded is the one
+		 * sent.
+		 */
+		private static void testRoundTripIsLossless() throws IOException {
+			int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+			Random random = new Random(1);
+			int[][][] sent = new int[channels][][];
+			BluetoothDataCenter dataCenter = roundTrip(random, sent, 0);
+			TelemetryTimeline timeline = dataCenter.getTimeline();
+			for (int channel = 0; channel < channels; ++channel) {
+				Assert.assertTrue(timeline.getNumberOfSamples(channel)
+						== NUMBER_OF_SAMPLES);
+				for (int i = 0; i < NUMBER_OF_SAMPLES; ++i) {
+					Assert.assertTrue(Arrays.equals(sent[channel][i],
+							timeline.getValues(channel, i * PERIOD)),
+							"Sample changed by the round trip");
+				}
+			}
+			int[] pose = sent[BluetoothProtocol.POSE][NUMBER_OF_SAMPLES - 1];
+			Assert.assertTrue(dataCenter.getXPosition() == (double) pose[0]
+					/ BluetoothProtocol.POSITION_SCALE);
+			Assert.assertTrue(dataCenter.getOrientation() == (double) pose[2]
+					/ BluetoothProtocol.ORIENTATION_SCALE);
+		}
+
+		/**
+		 * Skips sequence numbers now and then, as samples dropped on the
+		 * robot, and checks that the decoder counts each of them.
+		 */
+		private static void testCountsLostSamples() throws IOException {
+			Random random = new Random(2);
+			int[][][] sent = new int[BluetoothProtocol.NUMBER_OF_CHANNELS][][];
+			roundTrip(random, sent, 0.05);
+		}
+
+		/**
+		 * Encodes NUMBER_OF_SAMPLES random samples of each channel, keeping
+		 * them in the given array, skips sequence numbers with the given
+		 * probability, and returns the data center they are decoded into.
+		 */
+		private static BluetoothDataCenter roundTrip(Random random,
+				int[][][] sent, double skipProbability) throws IOException {
+			int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			FrameWriter writer = new FrameWriter(stream);
+			TelemetryEncoder encoder = new TelemetryEncoder(writer);
+			TelemetrySample sample = new TelemetrySample();
+			int[] lostSamples = new int[channels];
+			for (int channel = 0; channel < channels; ++channel) {
+				int length = BluetoothProtocol.getChannelLength(channel);
+				sent[channel] = new int[NUMBER_OF_SAMPLES][length];
+				int sequenceNumber = 0;
+				for (int i = 0; i < NUMBER_OF_SAMPLES; ++i) {
+					if (random.nextDouble() < skipProbability) {
+						int skipped = 1 + random.nextInt(3);
+						sequenceNumber += skipped;
+						lostSamples[channel] += skipped;
+					}
+					int[] values = sent[channel][i];
+					for (int j = 0; j < length; ++j) {
+						int last = i == 0 ? 0 : sent[channel][i - 1][j];
+						values[j] = nextValue(random, channel, j, last);
+					}
+					sample.channel = channel;
+					sample.sequenceNumber = sequenceNumber++;
+					sample.time = i * PERIOD;
+					System.arraycopy(values, 0, sample.values, 0, length);
+					encoder.addSample(sample);
+				}
+			}
+			encoder.flush();
+
+			FrameReader reader = new FrameReader(new ByteArrayInputStream(
+					stream.toByteArray()));
+			TelemetryDecoder decoder = new TelemetryDecoder();
+			BluetoothDataCenter dataCenter = new BluetoothDataCenter(
+					NUMBER_OF_SAMPLES);
+			int numberOfSamples = 0;
+			try {
+				while (true) {
+					Assert.assertTrue(
+							reader.readFrame() == BluetoothProtocol.TELEMETRY);
+					numberOfSamples += decoder.decode(reader, dataCenter);
+				}
+			} catch (EOFException e) {
+			}
+			Assert.assertTrue(numberOfSamples == NUMBER_OF_SAMPLES * channels);
+			for (int channel = 0; channel < channels; ++channel) {
+				Assert.assertTrue(
+						decoder.getLostSamples(channel) == lostSamples[channel],
+						"Wrong number of lost samples");
+			}
+			return dataCenter;
+		}
+
+		/**
+		 * Returns a value close to the last one most of the time, and any
+		 * value of the protocol otherwise.
+		 */
+		private static int nextValue(Random random, int channel, int index,
+				int last) {
+			boolean isOrientation = channel == BluetoothProtocol.POSE
+					&& index == BluetoothProtocol.POSE_ORIENTATION;
+			if (random.nextInt(50) == 0) {
+				if (isOrientation)
+					return random.nextInt(BluetoothProtocol.ORIENTATION_RANGE);
+				return random.nextInt();
+			}
+			int value = last + random.nextInt(201) - 100;
+			if (isOrientation)
+				value = (value + BluetoothProtocol.ORIENTATION_RANGE)
+						% BluetoothProtocol.ORIENTATION_RANGE;
+			return value;
+		}
+	}
+}
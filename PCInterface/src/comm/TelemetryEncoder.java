@@ -0,0 +1,108 @@
+package comm;
+
+import java.io.IOException;
+
+/**
+ * A class that writes telemetry samples into TELEMETRY frames of the
+ * BluetoothProtocol. The consecutive samples of each channel are batched
+ * SAMPLES_PER_FRAME to a frame, which is written once it is full, and a gap in
+ * the sequence numbers of a channel starts a new frame. Each sample after the
+ * first of a frame is sent as the differences from the one before.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+final class TelemetryEncoder {
+	static final int SAMPLES_PER_FRAME = 4;
+
+	private final FrameWriter _writer;
+
+	/**
+	 * The samples of each channel not yet written, each as its time followed
+	 * by its values.
+	 */
+	private final int[][][] _batches;
+	private final int[] _batchSizes;
+	private final int[] _firstSequenceNumbers;
+
+	TelemetryEncoder(FrameWriter writer) {
+		this._writer = writer;
+		int channels = BluetoothProtocol.NUMBER_OF_CHANNELS;
+		this._batches = new int[channels][SAMPLES_PER_FRAME][1
+				+ BluetoothProtocol.MAX_CHANNEL_VALUES];
+		this._batchSizes = new int[channels];
+		this._firstSequenceNumbers = new int[channels];
+	}
+
+	/**
+	 * Adds a sample, and writes the frame of its channel if it is full.
+	 */
+	final void addSample(TelemetrySample sample) throws IOException {
+		int channel = sample.channel;
+		if (this._batchSizes[channel] != 0
+				&& sample.sequenceNumber != this._firstSequenceNumbers[channel]
+						+ this._batchSizes[channel])
+			writeBatch(channel);
+		if (this._batchSizes[channel] == 0)
+			this._firstSequenceNumbers[channel] = sample.sequenceNumber;
+		int[] batchSample = this._batches[channel][this._batchSizes[channel]++];
+		batchSample[0] = sample.time;
+		System.arraycopy(sample.values, 0, batchSample, 1,
+				BluetoothProtocol.getChannelLength(channel));
+		if (this._batchSizes[channel] == SAMPLES_PER_FRAME)
+			writeBatch(channel);
+	}
+
+	/**
+	 * Sends the samples added since the last flush, including those of frames
+	 * that are not full.
+	 */
+	final void flush() throws IOException {
+		for (int channel = 0; channel < BluetoothProtocol.NUMBER_OF_CHANNELS;
+				++channel) {
+			if (this._batchSizes[channel] != 0)
+				writeBatch(channel);
+		}
+		this._writer.flush();
+	}
+
+	/**
+	 * Drops the samples added since the last flush without sending them.
+	 */
+	final void reset() {
+		for (int channel = 0; channel < BluetoothProtocol.NUMBER_OF_CHANNELS;
+				++channel) {
+			this._batchSizes[channel] = 0;
+		}
+	}
+
+	private void writeBatch(int channel) throws IOException {
+		FrameWriter writer = this._writer;
+		int[][] batch = this._batches[channel];
+		int length = BluetoothProtocol.getChannelLength(channel);
+		writer.startFrame(BluetoothProtocol.TELEMETRY);
+		writer.writeByte(channel);
+		writer.writeInt(this._firstSequenceNumbers[channel]);
+		writer.writeUnsignedVarInt(batch[0][0]);
+		for (int i = 1; i <= length; ++i) {
+			writer.writeSignedVarInt(batch[0][i]);
+		}
+		for (int j = 1; j < this._batchSizes[channel]; ++j) {
+			writer.writeUnsignedVarInt(batch[j][0] - batch[j - 1][0]);
+			for (int i = 1; i <= length; ++i) {
+				int difference = batch[j][i] - batch[j - 1][i];
+				if (channel == BluetoothProtocol.POSE
+						&& i - 1 == BluetoothProtocol.POSE_ORIENTATION) {
+					// Takes the difference the short way around.
+					if (difference > BluetoothProtocol.ORIENTATION_RANGE / 2)
+						difference -= BluetoothProtocol.ORIENTATION_RANGE;
+					else if (difference <= -BluetoothProtocol.ORIENTATION_RANGE / 2)
+						difference += BluetoothProtocol.ORIENTATION_RANGE;
+				}
+				writer.writeSignedVarInt(difference);
+			}
+		}
+		writer.endFrame();
+		this._batchSizes[channel] = 0;
+	}
+}
@@ -0,0 +1,22 @@
+package comm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An interface to be implemented by the links over which the robot and the
+ * computer exchange the frames of the BluetoothProtocol.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public interface Transport {
+	public InputStream getInputStream();
+
+	public OutputStream getOutputStream();
+
+	/**
+	 * Closes the link. Reads and writes waiting on it fail.
+	 */
+	public void close();
+}
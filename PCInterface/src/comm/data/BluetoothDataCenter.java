@@ -1,5 +1,6 @@
 package comm.data;
 
+import comm.BluetoothProtocol;
 import comm.util.AngleUtility;
 
 /**
@@ -20,7 +21,30 @@ public final class BluetoothDataCenter {
 	private final Object _csValueLock;
 	private int _csValue;
 
+	private final Object _robotTimeLock;
+	private long _robotTime;
+
+	private final Object _channelLock;
+	private int[][] _channelValues;
+	private long[] _channelTimes;
+
+	/**
+	 * The number of samples of each channel kept in the timeline by default,
+	 * about 25 s of a channel sent every 25 ms.
+	 */
+	public static final int DEFAULT_TIMELINE_CAPACITY = 1024;
+
+	private final TelemetryTimeline _timeline;
+
 	public BluetoothDataCenter() {
+		this(DEFAULT_TIMELINE_CAPACITY);
+	}
+
+	/**
+	 * Creates a data center whose timeline keeps the given number of samples
+	 * of each channel, or that keeps no timeline if it is 0.
+	 */
+	public BluetoothDataCenter(int timelineCapacity) {
 		this._odometerLock = new Object();
 		this._position = new Position();
 
@@ -31,6 +55,19 @@ public final class BluetoothDataCenter {
 		}
 		this._csValueLock = new Object();
 		this._csValue = 0;
+
+		this._robotTimeLock = new Object();
+		this._robotTime = 0;
+
+		this._channelLock = new Object();
+		this._channelValues = new int[BluetoothProtocol.NUMBER_OF_CHANNELS][];
+		for (int i = 0; i < BluetoothProtocol.NUMBER_OF_CHANNELS; ++i) {
+			this._channelValues[i] = new int[BluetoothProtocol.MAX_CHANNEL_VALUES];
+		}
+		this._channelTimes = new long[BluetoothProtocol.NUMBER_OF_CHANNELS];
+
+		this._timeline = timelineCapacity == 0 ? null : new TelemetryTimeline(
+				timelineCapacity);
 	}
 
 	public final void setPosition(double x, double y, double orientation) {
@@ -141,4 +178,66 @@ public final class BluetoothDataCenter {
 			return this._csValue;
 		}
 	}
+
+	/**
+	 * Sets the time in ms on the robot at which the stored data was sampled.
+	 */
+	public final void setRobotTime(long robotTime) {
+		synchronized (this._robotTimeLock) {
+			this._robotTime = robotTime;
+		}
+	}
+
+	public final long getRobotTime() {
+		synchronized (this._robotTimeLock) {
+			return this._robotTime;
+		}
+	}
+
+	/**
+	 * Sets the values of the last sample of a channel of the
+	 * BluetoothProtocol, in the units of the protocol, and the time in ms on
+	 * the robot at which it was sampled. The sample is also added to the
+	 * timeline, if there is one.
+	 */
+	public final void setChannelValues(int channel, long time, int[] values,
+			int length) {
+		synchronized (this._channelLock) {
+			System.arraycopy(values, 0, this._channelValues[channel], 0, length);
+			this._channelTimes[channel] = time;
+		}
+		if (this._timeline != null)
+			this._timeline.addSample(channel, time, values, length);
+	}
+
+	/**
+	 * Returns the timeline of the recent samples received, or null if there is
+	 * none.
+	 */
+	public final TelemetryTimeline getTimeline() {
+		return this._timeline;
+	}
+
+	/**
+	 * Returns the values of the last sample of a channel of the
+	 * BluetoothProtocol, in the units of the protocol.
+	 */
+	public final int[] getChannelValues(int channel) {
+		synchronized (this._channelLock) {
+			int[] values = new int[BluetoothProtocol.getChannelLength(channel)];
+			System.arraycopy(this._channelValues[channel], 0, values, 0,
+					values.length);
+			return values;
+		}
+	}
+
+	/**
+	 * Returns the time in ms on the robot of the last sample of a channel, or
+	 * 0 if none was received.
+	 */
+	public final long getChannelTime(int channel) {
+		synchronized (this._channelLock) {
+			return this._channelTimes[channel];
+		}
+	}
 }
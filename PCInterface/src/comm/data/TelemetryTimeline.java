@@ -0,0 +1,151 @@
+package comm.data;
+
+import comm.BluetoothProtocol;
+
+/**
+ * A class to store the recent samples received of each channel of the
+ * BluetoothProtocol, so that the values of a channel can be looked up at the
+ * times they cover. Channels sent only when they change arrive as sparse
+ * samples, and the values at a time are those of the last sample at or before
+ * it, which stayed within the deadband until the next.
+ *
+ * Each channel keeps its last samples in a ring of fixed capacity, stored in
+ * primitive arrays allocated with its first sample, so that the memory used
+ * does not grow with the length of the session. The oldest sample is
+ * overwritten once the ring is full.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class TelemetryTimeline {
+	private final int _capacity;
+	private final long[][] _times;
+	private final int[][] _values;
+	private final int[] _starts;
+	private final int[] _sizes;
+
+	/**
+	 * Creates a timeline keeping the given number of samples of each channel.
+	 */
+	public TelemetryTimeline(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Invalid capacity");
+		this._capacity = capacity;
+		this._times = new long[BluetoothProtocol.NUMBER_OF_CHANNELS][];
+		this._values = new int[BluetoothProtocol.NUMBER_OF_CHANNELS][];
+		this._starts = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+		this._sizes = new int[BluetoothProtocol.NUMBER_OF_CHANNELS];
+	}
+
+	/**
+	 * Returns the number of samples of each channel kept.
+	 */
+	public final int getCapacity() {
+		return this._capacity;
+	}
+
+	/**
+	 * Adds a sample of a channel taken at the given time in ms on the robot. A
+	 * sample earlier than the last one of its channel means the robot started
+	 * again, and starts the channel over.
+	 */
+	public synchronized final void addSample(int channel, long time,
+			int[] values, int length) {
+		if (length != BluetoothProtocol.getChannelLength(channel))
+			throw new IllegalArgumentException("Invalid length");
+		if (this._times[channel] == null) {
+			this._times[channel] = new long[this._capacity];
+			this._values[channel] = new int[this._capacity * length];
+		}
+		int size = this._sizes[channel];
+		if (size > 0 && time < this._times[channel][toIndex(channel, size - 1)]) {
+			this._starts[channel] = 0;
+			size = 0;
+		}
+		int index = toIndex(channel, size);
+		if (size == this._capacity)
+			this._starts[channel] = (this._starts[channel] + 1)
+					% this._capacity;
+		else
+			++size;
+		this._sizes[channel] = size;
+		this._times[channel][index] = time;
+		System.arraycopy(values, 0, this._values[channel], index * length,
+				length);
+	}
+
+	/**
+	 * Returns the number of samples of the channel kept.
+	 */
+	public synchronized final int getNumberOfSamples(int channel) {
+		return this._sizes[channel];
+	}
+
+	/**
+	 * Returns the values of the channel at the given time in ms on the robot,
+	 * or null if no sample of the channel kept was taken by then.
+	 */
+	public synchronized final int[] getValues(int channel, long time) {
+		int sample = sampleAt(channel, time);
+		if (sample < 0)
+			return null;
+		return copyValues(channel, toIndex(channel, sample));
+	}
+
+	/**
+	 * Returns the values of the channel at every period in ms from the start
+	 * time until the end time, both on the robot. The values before the first
+	 * sample of the channel kept are null.
+	 */
+	public synchronized final int[][] getValues(int channel, long startTime,
+			long endTime, long period) {
+		if (period <= 0 || endTime < startTime)
+			throw new IllegalArgumentException("Invalid period");
+		int[][] timeline = new int[(int) ((endTime - startTime) / period) + 1][];
+		int size = this._sizes[channel];
+		int sample = sampleAt(channel, startTime);
+		for (int i = 0; i < timeline.length; ++i) {
+			long time = startTime + i * period;
+			while (sample + 1 < size
+					&& this._times[channel][toIndex(channel, sample + 1)] <= time) {
+				++sample;
+			}
+			if (sample >= 0)
+				timeline[i] = copyValues(channel, toIndex(channel, sample));
+		}
+		return timeline;
+	}
+
+	/**
+	 * Returns the number, from the oldest kept, of the last sample of the
+	 * channel at or before the given time, or -1 if there is none.
+	 */
+	private int sampleAt(int channel, long time) {
+		int low = 0;
+		int high = this._sizes[channel] - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this._times[channel][toIndex(channel, middle)] <= time)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high;
+	}
+
+	/**
+	 * Returns the index in the ring of the channel of the sample with the
+	 * given number from the oldest kept.
+	 */
+	private int toIndex(int channel, int sample) {
+		return (this._starts[channel] + sample) % this._capacity;
+	}
+
+	private int[] copyValues(int channel, int index) {
+		int length = BluetoothProtocol.getChannelLength(channel);
+		int[] values = new int[length];
+		System.arraycopy(this._values[channel], index * length, values, 0,
+				length);
+		return values;
+	}
+}
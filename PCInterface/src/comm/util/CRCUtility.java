@@ -0,0 +1,47 @@
+package comm.util;
+
+/**
+ * A utility class to compute the CRC-16-CCITT checksums of the frames sent
+ * between the robot and the computer.
+ *
+ * @author Andrei Purcarus
+ *
+ */
+public final class CRCUtility {
+	private static final int POLYNOMIAL = 0x1021;
+	private static final int INITIAL_VALUE = 0xFFFF;
+
+	/**
+	 * The checksum of each byte value, so that the checksum is updated one byte
+	 * at a time rather than one bit at a time.
+	 */
+	private static final char[] TABLE = new char[256];
+
+	static {
+		for (int i = 0; i < 256; ++i) {
+			int crc = i << 8;
+			for (int bit = 0; bit < 8; ++bit) {
+				if ((crc & 0x8000) != 0)
+					crc = (crc << 1) ^ POLYNOMIAL;
+				else
+					crc <<= 1;
+			}
+			TABLE[i] = (char) crc;
+		}
+	}
+
+	/**
+	 * Returns the checksum of the given bytes of the buffer, from 0 to 0xFFFF.
+	 */
+	public static final int computeCRC16(byte[] buffer, int offset, int length) {
+		int crc = INITIAL_VALUE;
+		for (int i = offset; i < offset + length; ++i) {
+			crc = ((crc << 8) ^ TABLE[((crc >> 8) ^ buffer[i]) & 0xFF]) & 0xFFFF;
+		}
+		return crc;
+	}
+
+	private CRCUtility() {
+
+	}
+}
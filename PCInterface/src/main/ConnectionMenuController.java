@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 
 import comm.BluetoothReciever;
+import comm.SocketConnector;
 import comm.data.BluetoothDataCenter;
 import javafx.fxml.FXML;
 import javafx.scene.control.TextField;
@@ -21,6 +22,12 @@ public final class ConnectionMenuController {
 	private static final String PATH_TO_DEFAULT_FIELD_FILE = "res"
 			+ File.separator + "defaultConnection.txt";
 
+	/**
+	 * The prefix of the NXT names that are the host and port of a simulated
+	 * robot to connect to over TCP, as in tcp:localhost:5000.
+	 */
+	private static final String TCP_PREFIX = "tcp:";
+
 	private Main _main;
 
 	public void setMain(Main main) {
@@ -58,10 +65,20 @@ public final class ConnectionMenuController {
 	private void connectToNXT(String name, String id) throws IOException {
 		this._main.setLoadingMenu(name);
 		try {
-			BluetoothReciever bluetoothReciever = new BluetoothReciever(name,
-					id, new BluetoothDataCenter());
+			BluetoothReciever bluetoothReciever;
+			if (name.startsWith(TCP_PREFIX)) {
+				String address = name.substring(TCP_PREFIX.length());
+				int separator = address.lastIndexOf(':');
+				bluetoothReciever = new BluetoothReciever(new SocketConnector(
+						address.substring(0, separator),
+						Integer.parseInt(address.substring(separator + 1))),
+						new BluetoothDataCenter());
+			} else {
+				bluetoothReciever = new BluetoothReciever(name, id,
+						new BluetoothDataCenter());
+			}
 			this._main.setDataDisplay(bluetoothReciever);
-		} catch (NXTCommException e) {
+		} catch (NXTCommException | IOException | RuntimeException e) {
 			this._main.setErrorMessage(name);
 		}
 	}